@@ -14,12 +14,15 @@
 
 package com.cloudant.sync.sqlite.android;
 
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.cloudant.android.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.StatementCache;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -32,15 +35,46 @@ public class AndroidSQLite extends SQLDatabase {
 
     android.database.sqlite.SQLiteDatabase database = null;
 
+    /**
+     * Compiled statements reused by {@link #execSQL(String, Object[])}. Queries,
+     * inserts, updates and deletes use the compiled-statement cache inside
+     * {@link SQLiteDatabase} instead, which is sized to match but doesn't
+     * count its hits and misses.
+     */
+    private final StatementCache<SQLiteStatement> statementCache =
+            new StatementCache<SQLiteStatement>(StatementCache.DEFAULT_CAPACITY) {
+                @Override
+                protected void dispose(SQLiteStatement statement) {
+                    statement.close();
+                }
+            };
 
     public static AndroidSQLite createAndroidSQLite(String path) {
         SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.CREATE_IF_NECESSARY);
         return new AndroidSQLite(db);
     }
 
+    public static AndroidSQLite openReadOnlyAndroidSQLite(String path) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+        return new AndroidSQLite(db);
+    }
+
     public AndroidSQLite(final android.database.sqlite.SQLiteDatabase database) {
         this.database = database;
+        // 50 statements, within SQLiteDatabase.MAX_SQL_CACHE_SIZE of 100
+        this.database.setMaxSqlCacheSize(StatementCache.DEFAULT_CAPACITY);
+    }
 
+    /**
+     * Returns the cache used by {@link #execSQL(String, Object[])}. On Android
+     * its hit and miss counts cover only that method: the statements compiled
+     * for queries, inserts, updates and deletes are cached by
+     * {@link SQLiteDatabase} and aren't counted.
+     * @return the statement cache for {@code execSQL}
+     */
+    @Override
+    public StatementCache<SQLiteStatement> getStatementCache() {
+        return statementCache;
     }
 
     @Override
@@ -48,6 +82,11 @@ public class AndroidSQLite extends SQLDatabase {
         database.execSQL("VACUUM");
     }
 
+    @Override
+    public boolean enableWriteAheadLogging() {
+        return this.database.enableWriteAheadLogging();
+    }
+
     @Override
     public void open() {
         // database should be already opened
@@ -55,6 +94,7 @@ public class AndroidSQLite extends SQLDatabase {
 
     @Override
     public void close() {
+        statementCache.clear();
         this.database.close();
     }
 
@@ -92,7 +132,21 @@ public class AndroidSQLite extends SQLDatabase {
     public void execSQL(String sql, Object[] bindArgs) throws SQLException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(sql.trim()),
                 "Input SQL can not be empty String.");
-        this.database.execSQL(sql, bindArgs);
+        SQLiteStatement stmt = statementCache.checkout(sql);
+        if (stmt == null) {
+            stmt = this.database.compileStatement(sql);
+        }
+        try {
+            if (bindArgs != null) {
+                for (int i = 0; i < bindArgs.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(stmt, i + 1, bindArgs[i]);
+                }
+            }
+            stmt.execute();
+        } finally {
+            stmt.clearBindings();
+            statementCache.checkin(sql, stmt);
+        }
     }
 
     @Override
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Non-blocking versions of the main {@link Datastore} methods, see
+ * {@link DatastoreImpl#async()}.</p>
+ *
+ * <p>Each method returns as soon as the operation has been queued, with a
+ * future for its result. Callbacks can be added to the future, for example
+ * with {@link com.google.common.util.concurrent.Futures#addCallback}, so many
+ * operations can be in progress without a thread waiting for each one.</p>
+ *
+ * <p>When an operation fails, the future fails with the exception the
+ * equivalent {@code Datastore} method declares, or a runtime exception. For
+ * example, the cause of the {@link java.util.concurrent.ExecutionException}
+ * is a {@link ConflictException} if a revision to update isn't a leaf
+ * revision. This includes failures detected before the operation is queued,
+ * such as a null argument or a closed datastore: the methods never throw.</p>
+ *
+ * <p>Writes post the same events as the {@code Datastore} methods. The events
+ * are posted on the executor passed to {@link DatastoreImpl#async(Executor)},
+ * or for {@link DatastoreImpl#async()} on a thread shared by the datastore's
+ * writes, in the order the writes completed. Callbacks run by the same-thread
+ * executor run on that thread too for writes, and on one of the datastore's
+ * database threads for reads, so callbacks on reads should return quickly.</p>
+ *
+ * @api_public
+ */
+public interface AsyncDatastore {
+
+    /**
+     * @see Datastore#getDocument(String)
+     * @param documentId ID of the document
+     * @return a future for the current winning revision of the document, which
+     *         fails with a {@link DocumentNotFoundException} if it doesn't exist
+     */
+    ListenableFuture<DocumentRevision> getDocument(String documentId);
+
+    /**
+     * @see Datastore#getDocument(String, String)
+     * @param documentId ID of the document
+     * @param revisionId revision of the document
+     * @return a future for the revision, which fails with a
+     *         {@link DocumentNotFoundException} if it doesn't exist
+     */
+    ListenableFuture<DocumentRevision> getDocument(String documentId, String revisionId);
+
+    /**
+     * @see Datastore#getDocumentsWithIds(List)
+     * @param documentIds list of document IDs
+     * @return a future for the current winning revisions of the documents,
+     *         which fails with a {@link DocumentException}
+     */
+    ListenableFuture<List<DocumentRevision>> getDocumentsWithIds(List<String> documentIds);
+
+    /**
+     * @see Datastore#getAllDocuments(int, int, boolean)
+     * @param offset start position
+     * @param limit maximum number of documents to return
+     * @param descending whether the documents are read in descending order
+     * @return a future for the current winning revisions of the documents
+     */
+    ListenableFuture<List<DocumentRevision>> getAllDocuments(int offset, int limit,
+                                                             boolean descending);
+
+    /**
+     * @see Datastore#changes(long, int)
+     * @param since the sequence number to read changes after
+     * @param limit the maximum number of changes to return
+     * @return a future for the changes
+     */
+    ListenableFuture<Changes> changes(long since, int limit);
+
+    /**
+     * @see Datastore#createDocumentFromRevision(DocumentRevision)
+     * @param rev the new document
+     * @return a future for the created revision, which fails with a
+     *         {@link DocumentException}
+     */
+    ListenableFuture<DocumentRevision> createDocumentFromRevision(DocumentRevision rev);
+
+    /**
+     * @see Datastore#updateDocumentFromRevision(DocumentRevision)
+     * @param rev the updated revision
+     * @return a future for the new revision, which fails with a
+     *         {@link ConflictException} if {@code rev} isn't a leaf revision or
+     *         another {@link DocumentException}
+     */
+    ListenableFuture<DocumentRevision> updateDocumentFromRevision(DocumentRevision rev);
+
+    /**
+     * @see Datastore#deleteDocumentFromRevision(DocumentRevision)
+     * @param rev the revision to delete
+     * @return a future for the deleted revision, which fails with a
+     *         {@link ConflictException} if {@code rev} isn't a leaf revision or
+     *         another {@link DocumentException}
+     */
+    ListenableFuture<DocumentRevision> deleteDocumentFromRevision(DocumentRevision rev);
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentUpdated;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Returns the futures of a {@link DatastoreImpl}'s database queue, rather
+ * than waiting for them.</p>
+ *
+ * <p>The work done by a {@code DatastoreImpl} method after its database task
+ * has completed, such as posting events, is done by a transformation of the
+ * task's future. Exceptions are mapped to the types the {@code Datastore}
+ * methods declare by a fallback. Exceptions thrown before the task is
+ * queued, such as for a closed datastore or an invalid argument, are
+ * returned as failed futures too.</p>
+ *
+ * <p>The transformations run on an executor, never on the thread which
+ * completed the database task, as that thread may be shared by other
+ * datastores' tasks.</p>
+ */
+class AsyncDatastoreImpl implements AsyncDatastore {
+
+    private final DatastoreImpl datastore;
+    private final Executor executor;
+
+    /**
+     * @param datastore the datastore whose tasks are queued
+     * @param executor runs the work done after each write, and so the
+     *                 callbacks of the futures returned for writes
+     */
+    AsyncDatastoreImpl(DatastoreImpl datastore, Executor executor) {
+        this.datastore = datastore;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns a new executor which runs its tasks one at a time, in the order
+     * they were submitted, on a daemon thread which exits while it is idle.
+     */
+    static Executor newEventExecutor() {
+        return new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "datastore-async-events");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<DocumentRevision> getDocument(String documentId) {
+        return getDocument(documentId, null);
+    }
+
+    @Override
+    public ListenableFuture<DocumentRevision> getDocument(String documentId, String revisionId) {
+        ListenableFuture<DocumentRevision> document;
+        try {
+            document = datastore.submitGetDocument(documentId, revisionId);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.NOT_FOUND.map(document);
+    }
+
+    @Override
+    public ListenableFuture<List<DocumentRevision>> getDocumentsWithIds(List<String> documentIds) {
+        ListenableFuture<List<DocumentRevision>> documents;
+        try {
+            documents = datastore.submitGetDocumentsWithIds(documentIds);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.DOCUMENT.map(documents);
+    }
+
+    @Override
+    public ListenableFuture<List<DocumentRevision>> getAllDocuments(int offset, int limit,
+                                                                    boolean descending) {
+        ListenableFuture<List<DocumentRevision>> documents;
+        try {
+            documents = datastore.submitGetAllDocuments(offset, limit, descending);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.DATASTORE.map(documents);
+    }
+
+    @Override
+    public ListenableFuture<Changes> changes(long since, int limit) {
+        ListenableFuture<Changes> changes;
+        try {
+            changes = datastore.submitChanges(since, limit);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.DATASTORE.map(changes);
+    }
+
+    @Override
+    public ListenableFuture<DocumentRevision> createDocumentFromRevision(DocumentRevision rev) {
+        ListenableFuture<DocumentRevision> created;
+        try {
+            created = datastore.submitCreateDocument(rev);
+        } catch (AttachmentException e) {
+            return Futures.immediateFailedFuture(e);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.DOCUMENT.map(Futures.transform(created,
+                new Function<DocumentRevision, DocumentRevision>() {
+                    @Override
+                    public DocumentRevision apply(DocumentRevision revision) {
+                        return datastore.documentCreated(revision);
+                    }
+                }, executor));
+    }
+
+    @Override
+    public ListenableFuture<DocumentRevision> updateDocumentFromRevision(DocumentRevision rev) {
+        ListenableFuture<DocumentUpdated> updated;
+        try {
+            updated = datastore.submitUpdateDocument(rev);
+        } catch (AttachmentException e) {
+            return Futures.immediateFailedFuture(e);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.DOCUMENT.map(Futures.transform(updated,
+                new Function<DocumentUpdated, DocumentRevision>() {
+                    @Override
+                    public DocumentRevision apply(DocumentUpdated event) {
+                        return datastore.documentUpdated(event);
+                    }
+                }, executor));
+    }
+
+    @Override
+    public ListenableFuture<DocumentRevision> deleteDocumentFromRevision(
+            final DocumentRevision rev) {
+        ListenableFuture<DocumentRevision> deleted;
+        try {
+            deleted = datastore.submitDeleteDocument(rev);
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return ExceptionMapper.DOCUMENT.map(Futures.transform(deleted,
+                new Function<DocumentRevision, DocumentRevision>() {
+                    @Override
+                    public DocumentRevision apply(DocumentRevision deleted) {
+                        return datastore.documentDeleted(rev, deleted);
+                    }
+                }, executor));
+    }
+
+    /**
+     * Makes a future fail with an exception of the type an operation declares.
+     * Runtime exceptions and errors are passed on unchanged, as are checked
+     * exceptions of the declared type. Other checked exceptions, such as the
+     * {@code SQLException}s thrown by database tasks, are wrapped.
+     */
+    private abstract static class ExceptionMapper {
+
+        static final ExceptionMapper NOT_FOUND =
+                new ExceptionMapper(DocumentNotFoundException.class) {
+                    @Override
+                    Exception wrap(Exception e) {
+                        return new DocumentNotFoundException(e);
+                    }
+                };
+
+        static final ExceptionMapper DOCUMENT = new ExceptionMapper(DocumentException.class) {
+            @Override
+            Exception wrap(Exception e) {
+                return new DocumentException(e);
+            }
+        };
+
+        static final ExceptionMapper DATASTORE = new ExceptionMapper(DatastoreException.class) {
+            @Override
+            Exception wrap(Exception e) {
+                return new DatastoreException(e);
+            }
+        };
+
+        private final Class<? extends Exception> declared;
+
+        ExceptionMapper(Class<? extends Exception> declared) {
+            this.declared = declared;
+        }
+
+        abstract Exception wrap(Exception e);
+
+        <T> ListenableFuture<T> map(ListenableFuture<T> future) {
+            return Futures.withFallback(future, new FutureFallback<T>() {
+                @Override
+                public ListenableFuture<T> create(Throwable t) throws Exception {
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    if (t instanceof RuntimeException || declared.isInstance(t)) {
+                        throw (Exception) t;
+                    }
+                    throw wrap((Exception) t);
+                }
+            });
+        }
+    }
+}
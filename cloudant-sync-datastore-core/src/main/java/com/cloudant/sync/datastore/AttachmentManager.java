@@ -16,9 +16,11 @@ package com.cloudant.sync.datastore;
 
 import com.cloudant.android.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.RowMapper;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.collect.Lists;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileExistsException;
@@ -31,11 +33,13 @@ import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,30 +58,33 @@ class AttachmentManager {
 
     private static final Logger logger = Logger.getLogger(AttachmentManager.class.getCanonicalName());
 
-    private static final String SQL_ATTACHMENTS_SELECT = "SELECT sequence, " +
-            "filename, " +
-            "key, " +
-            "type, " +
-            "encoding, " +
-            "length, " +
-            "encoded_length, " +
-            "revpos " +
-            "FROM attachments " +
-            "WHERE filename = ? and sequence = ?";
-
-    private static final String SQL_ATTACHMENTS_SELECT_ALL = "SELECT sequence, " +
-            "filename, " +
-            "key, " +
-            "type, " +
-            "encoding, " +
-            "length, " +
-            "encoded_length, " +
-            "revpos " +
-            "FROM attachments " +
-            "WHERE sequence = ?";
-
-    private static final String SQL_ATTACHMENTS_SELECT_ALL_KEYS = "SELECT key " +
-            "FROM attachments";
+    /**
+     * Columns of an attachment, along with the name of the file it is stored in.
+     */
+    private static final String ATTACHMENT_COLS = "attachments.sequence, " +
+            "attachments.filename, " +
+            "attachments.key, " +
+            "attachments.type, " +
+            "attachments.encoding, " +
+            "attachments.length, " +
+            "attachments.encoded_length, " +
+            "attachments.revpos, " +
+            "attachments_key_filename.filename AS file ";
+
+    private static final String ATTACHMENTS_JOIN_FILES = "FROM attachments " +
+            "LEFT OUTER JOIN attachments_key_filename " +
+            "ON attachments_key_filename.key = lower(hex(attachments.key)) ";
+
+    private static final String SQL_ATTACHMENTS_SELECT = "SELECT " + ATTACHMENT_COLS +
+            ATTACHMENTS_JOIN_FILES +
+            "WHERE attachments.filename = ? and attachments.sequence = ?";
+
+    /**
+     * SQL statement to select the attachments of a set of revisions.
+     */
+    private static final String SQL_ATTACHMENTS_SELECT_FOR_SEQUENCES = "SELECT " +
+            ATTACHMENT_COLS + ATTACHMENTS_JOIN_FILES +
+            "WHERE attachments.sequence IN ( %s )";
 
     /**
      * Name of database mapping key to filename.
@@ -89,10 +96,23 @@ class AttachmentManager {
     private static final String SQL_FILENAME_LOOKUP_QUERY = String.format(
             "SELECT filename FROM %1$s WHERE key=?", ATTACHMENTS_KEY_FILENAME);
     /**
-     * SQL statement to return all key,filename mappings.
+     * Name of table listing the keys of blobs no attachment uses.
+     */
+    private static final String ATTACHMENTS_ORPHANS = "attachments_orphans";
+    /**
+     * SQL statement to return the key,filename mappings of the first {@code %d}
+     * unused blobs, in the order they became unused.
      */
-    private static final String SQL_ATTACHMENTS_SELECT_KEYS_FILENAMES = String.format(
-            "SELECT key,filename FROM %1$s", ATTACHMENTS_KEY_FILENAME);
+    private static final String SQL_ORPHANS_SELECT_KEYS_FILENAMES = "SELECT " +
+            "attachments_orphans.key, attachments_key_filename.filename " +
+            "FROM attachments_orphans LEFT OUTER JOIN attachments_key_filename " +
+            "ON attachments_key_filename.key = attachments_orphans.key " +
+            "ORDER BY attachments_orphans.rowid LIMIT %d";
+    /**
+     * SQL statement to move an unused blob's key to the end of the list.
+     */
+    private static final String SQL_ORPHANS_REQUEUE =
+            "INSERT OR REPLACE INTO attachments_orphans (key) VALUES (?)";
     /**
      * Random number generator used to generate filenames.
      */
@@ -289,18 +309,8 @@ class AttachmentManager {
              c = db.rawQuery(SQL_ATTACHMENTS_SELECT,
                      new String[]{attachmentName, String.valueOf(sequence)});
             if (c.moveToFirst()) {
-                 String filename = c.getString(c.getColumnIndex("filename"));
-                 byte[] key = c.getBlob(c.getColumnIndex("key"));
-                 String type = c.getString(c.getColumnIndex("type"));
-                 int encoding = c.getInt(c.getColumnIndex("encoding"));
-                 long length = c.getInt(c.getColumnIndex("length"));
-                 long encodedLength = c.getInt(c.getColumnIndex("encoded_length"));
-                 int revpos = c.getInt(c.getColumnIndex("revpos"));
-                 File file = fileFromKey(db, key, attachmentsDir, false);
- 
-                 return new SavedAttachment(sequence, filename, key, type, Attachment.Encoding
-                         .values()[encoding], length, encodedLength, revpos, file,
-                         attachmentStreamFactory);
+                return new AttachmentRowMapper(c, attachmentsDir, attachmentStreamFactory)
+                        .mapStoredRow();
             }
 
             return null;
@@ -318,32 +328,56 @@ class AttachmentManager {
                                                                        AttachmentStreamFactory attachmentStreamFactory,
                                                                        long sequence)
             throws AttachmentException {
-        Cursor c = null;
-        try {
-            LinkedList<SavedAttachment> atts = new LinkedList<SavedAttachment>();
-            c = db.rawQuery(SQL_ATTACHMENTS_SELECT_ALL,
-                    new String[]{String.valueOf(sequence)});
-            while (c.moveToNext()) {
-                String filename = c.getString(c.getColumnIndex("filename"));
-                byte[] key = c.getBlob(c.getColumnIndex("key"));
-                String type = c.getString(c.getColumnIndex("type"));
-                int encoding = c.getInt(c.getColumnIndex("encoding"));
-                long length = c.getInt(c.getColumnIndex("length"));
-                long encodedLength = c.getInt(c.getColumnIndex("encoded_length"));
-                int revpos = c.getInt(c.getColumnIndex("revpos"));
-                File file = fileFromKey(db, key, attachmentsDir, false);
-                
-                atts.add(new SavedAttachment(sequence, filename, key, type, Attachment.Encoding
-                        .values()[encoding], length, encodedLength, revpos, file,
-                        attachmentStreamFactory));
+        return attachmentsForRevisions(db, attachmentsDir, attachmentStreamFactory,
+                Collections.singletonList(sequence)).get(sequence);
+    }
+
+    /**
+     * <p>Returns the attachments of several revisions, keyed by sequence.</p>
+     *
+     * <p>The attachments are read with one query per
+     * {@link DatastoreImpl#SQLITE_QUERY_PLACEHOLDERS_LIMIT} revisions, rather than
+     * at least one query per revision, so this should be used when reading many
+     * revisions.</p>
+     *
+     * @return map of sequence to the attachments of that revision. There is a
+     *      list, which may be empty, for each of the sequences given.
+     */
+    protected static Map<Long, List<SavedAttachment>> attachmentsForRevisions(SQLDatabase db,
+                                                                              String attachmentsDir,
+                                                                              AttachmentStreamFactory attachmentStreamFactory,
+                                                                              Collection<Long> sequences)
+            throws AttachmentException {
+        Map<Long, List<SavedAttachment>> attachments = new HashMap<Long, List<SavedAttachment>>();
+        for (Long sequence : sequences) {
+            attachments.put(sequence, new LinkedList<SavedAttachment>());
+        }
+
+        List<Long> uniqueSequences = new ArrayList<Long>(attachments.keySet());
+        for (List<Long> batch : Lists.partition(uniqueSequences,
+                DatastoreImpl.SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                args[i] = String.valueOf(batch.get(i));
+            }
+            Cursor c = null;
+            try {
+                c = db.rawQuery(String.format(SQL_ATTACHMENTS_SELECT_FOR_SEQUENCES,
+                        DatabaseUtils.makePlaceholders(batch.size())), args);
+                AttachmentRowMapper mapper = new AttachmentRowMapper(c, attachmentsDir,
+                        attachmentStreamFactory);
+                while (c.moveToNext()) {
+                    SavedAttachment attachment = mapper.mapStoredRow();
+                    attachments.get(attachment.seq).add(attachment);
+                }
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "Failed to get attachments", e);
+                throw new AttachmentException(e);
+            } finally {
+                DatabaseUtils.closeCursorQuietly(c);
             }
-            return atts;
-        } catch (SQLException e) {
-            logger.log(Level.SEVERE, "Failed to get attachments", e);
-            throw new AttachmentException(e);
-        } finally {
-            DatabaseUtils.closeCursorQuietly(c);
         }
+        return attachments;
     }
 
     private static void copyCursorValuesToNewSequence(SQLDatabase db, Cursor c, long newSequence) {
@@ -406,66 +440,69 @@ class AttachmentManager {
     }
 
     /**
-     * Called by BasicDatastore on the execution queue, this needs have the db passed ot it
+     * Deletes up to {@code limit} of the blobs listed in the
+     * {@code attachments_orphans} table, which no attachment uses any more.
+     * Called by DatastoreImpl on the execution queue, in a transaction, this
+     * needs have the db passed to it.
+     *
+     * A blob whose file can't be deleted is moved to the end of the list, so
+     * it is tried again after the others.
+     *
      * @param db database to purge attachments from
+     * @param attachmentsDir Root directory for attachment blobs.
+     * @param limit the maximum number of blobs to delete
+     * @return the number of blobs deleted
      */
-    protected static void purgeAttachments(SQLDatabase db, String attachmentsDir) {
-        // it's easier to deal with Strings since java doesn't know how to compare byte[]s
-        Set<String> currentKeys = new HashSet<String>();
+    protected static int purgeAttachments(SQLDatabase db, String attachmentsDir, int limit) {
+        // read the slice before changing the table it comes from
+        Map<String, String> orphans = new LinkedHashMap<String, String>();
         Cursor c = null;
         try {
-            // delete attachment table entries for revs which have been purged
-            db.delete("attachments", "sequence IN " +
-                    "(SELECT sequence from revs WHERE json IS null)", null);
-
-            // get all keys from attachments table
-            c = db.rawQuery(SQL_ATTACHMENTS_SELECT_ALL_KEYS, null);
+            c = db.rawQuery(String.format(SQL_ORPHANS_SELECT_KEYS_FILENAMES, limit), null);
             while (c.moveToNext()) {
-                byte[] key = c.getBlob(0);
-                currentKeys.add(keyToString(key));
+                orphans.put(c.getString(0), c.getString(1));
             }
-
         } catch (SQLException e) {
             logger.log(Level.SEVERE,
-                    "SQL exception in purgeAttachments when updating attachments table", e);
-            return;  // not safe to continue
+                    "SQL exception in purgeAttachments when reading unused attachments", e);
+            return 0;
         } finally {
             DatabaseUtils.closeCursorQuietly(c);
         }
 
+        File attachments = new File(attachmentsDir);
+        int purged = 0;
         try {
-
-            // Now iterate through the attachments_key_filename, deleting items we need to
-            // (both db row and file on disk).
-            File attachments = new File(attachmentsDir);
-            c = db.rawQuery(SQL_ATTACHMENTS_SELECT_KEYS_FILENAMES, null);
-            while (c.moveToNext()) {
-                String keyForFile = c.getString(0);
-
-                if (!currentKeys.contains(keyForFile)) {
-                    File f = new File(attachments, c.getString(1));
+            for (Map.Entry<String, String> orphan : orphans.entrySet()) {
+                String key = orphan.getKey();
+                if (orphan.getValue() != null) {
+                    File f = new File(attachments, orphan.getValue());
                     try {
-                        boolean deleted = f.delete();
-                        if (deleted) {
-                            db.delete(ATTACHMENTS_KEY_FILENAME, "key = ?", new String[]{keyForFile});
-                        } else {
+                        // a file which has gone already was deleted by an earlier
+                        // purge whose transaction didn't commit
+                        if (!f.delete() && f.exists()) {
                             logger.warning("Could not delete file from BLOB store: " +
                                     f.getAbsolutePath());
+                            db.execSQL(SQL_ORPHANS_REQUEUE, new Object[]{key});
+                            continue;
                         }
                     } catch (SecurityException e) {
                         String msg = String.format("SecurityException deleting %s from blob store",
                                 f.getAbsolutePath());
                         logger.log(Level.WARNING, msg, e);
+                        db.execSQL(SQL_ORPHANS_REQUEUE, new Object[]{key});
+                        continue;
                     }
+                    db.delete(ATTACHMENTS_KEY_FILENAME, "key = ?", new String[]{key});
                 }
+                db.delete(ATTACHMENTS_ORPHANS, "key = ?", new String[]{key});
+                purged++;
             }
-
         } catch (SQLException e) {
             logger.log(Level.SEVERE,
                     "SQL exception in purgeAttachments when removing redundant attachments", e);
-        } finally {
-            DatabaseUtils.closeCursorQuietly(c);
         }
+        return purged;
     }
 
     private static String keyToString(byte[] key) {
@@ -499,7 +536,11 @@ class AttachmentManager {
         String keyString = keyToString(key);
         String filename = null;
 
-        db.beginTransaction();
+        // Only a lookup which may create a mapping needs a transaction, plain
+        // lookups avoid one so they can run on read-only connections.
+        if (allowCreateName) {
+            db.beginTransaction();
+        }
         Cursor c = null;
         try {
             c = db.rawQuery(SQL_FILENAME_LOOKUP_QUERY, new String[]{ keyString });
@@ -510,13 +551,17 @@ class AttachmentManager {
                 filename = generateFilenameForKey(db, keyString);
                 logger.finest(String.format("Added filename %s for key %s", filename, keyString));
             }
-            db.setTransactionSuccessful();
+            if (allowCreateName) {
+                db.setTransactionSuccessful();
+            }
         } catch (SQLException e) {
             logger.log(Level.WARNING, "Couldn't read key,filename mapping database", e);
             filename = null;
         } finally {
             DatabaseUtils.closeCursorQuietly(c);
-            db.endTransaction();
+            if (allowCreateName) {
+                db.endTransaction();
+            }
         }
 
         if (filename != null) {
@@ -586,5 +631,64 @@ class AttachmentManager {
         }
 
     }
-}
 
+    /**
+     * Converts rows selecting {@code ATTACHMENT_COLS} into {@code SavedAttachment}s.
+     */
+    private static class AttachmentRowMapper extends RowMapper<SavedAttachment> {
+
+        private final String attachmentsDir;
+        private final AttachmentStreamFactory attachmentStreamFactory;
+
+        private final int sequenceColumn;
+        private final int filenameColumn;
+        private final int keyColumn;
+        private final int typeColumn;
+        private final int encodingColumn;
+        private final int lengthColumn;
+        private final int encodedLengthColumn;
+        private final int revposColumn;
+        private final int fileColumn;
+
+        AttachmentRowMapper(Cursor cursor, String attachmentsDir,
+                            AttachmentStreamFactory attachmentStreamFactory) {
+            super(cursor);
+            this.attachmentsDir = attachmentsDir;
+            this.attachmentStreamFactory = attachmentStreamFactory;
+            this.sequenceColumn = column("sequence");
+            this.filenameColumn = column("filename");
+            this.keyColumn = column("key");
+            this.typeColumn = column("type");
+            this.encodingColumn = column("encoding");
+            this.lengthColumn = column("length");
+            this.encodedLengthColumn = column("encoded_length");
+            this.revposColumn = column("revpos");
+            this.fileColumn = column("file");
+        }
+
+        /**
+         * Converts the current row, checking that the attachment has a file.
+         * @throws AttachmentException if there's no file for the attachment's key
+         */
+        SavedAttachment mapStoredRow() throws AttachmentException {
+            if (cursor.getString(fileColumn) == null) {
+                throw new AttachmentException("Couldn't retrieve filename for attachment");
+            }
+            return mapRow();
+        }
+
+        @Override
+        public SavedAttachment mapRow() {
+            return new SavedAttachment(cursor.getLong(sequenceColumn),
+                    cursor.getString(filenameColumn),
+                    cursor.getBlob(keyColumn),
+                    cursor.getString(typeColumn),
+                    Attachment.Encoding.values()[cursor.getInt(encodingColumn)],
+                    cursor.getInt(lengthColumn),
+                    cursor.getInt(encodedLengthColumn),
+                    cursor.getInt(revposColumn),
+                    new File(attachmentsDir, cursor.getString(fileColumn)),
+                    attachmentStreamFactory);
+        }
+    }
+}
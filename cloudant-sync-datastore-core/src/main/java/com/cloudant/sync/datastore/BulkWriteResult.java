@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>{@code BulkWriteResult} objects describe the outcome of writing one
+ * revision passed to a bulk method such as
+ * {@link Datastore#createDocumentsFromRevisions(java.util.List)}.</p>
+ *
+ * <p>Either {@link #getRevision()} returns the revision written to the
+ * datastore, or {@link #getError()} returns the reason it wasn't written.</p>
+ *
+ * @api_public
+ */
+public class BulkWriteResult {
+
+    private final DocumentRevision input;
+
+    private final DocumentRevision revision;
+
+    private final DocumentException error;
+
+    BulkWriteResult(DocumentRevision input, DocumentRevision revision,
+                    DocumentException error) {
+        this.input = input;
+        this.revision = revision;
+        this.error = error;
+    }
+
+    /**
+     * <p>Returns the revision passed to the bulk method.</p>
+     *
+     * @return the revision passed to the bulk method
+     */
+    public DocumentRevision getInput() {
+        return this.input;
+    }
+
+    /**
+     * <p>Returns the revision written to the datastore.</p>
+     *
+     * @return the new revision, or {@code null} if it wasn't written
+     */
+    public DocumentRevision getRevision() {
+        return this.revision;
+    }
+
+    /**
+     * <p>Returns the reason the revision wasn't written, for example a
+     * {@link ConflictException} if the document has been changed since the
+     * input revision was read.</p>
+     *
+     * @return the error, or {@code null} if the revision was written
+     */
+    public DocumentException getError() {
+        return this.error;
+    }
+
+    /**
+     * @return {@code true} if the revision was written
+     */
+    public boolean isSuccessful() {
+        return this.error == null;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link DocumentIterator} which reads the next chunk of revisions when
+ * the current one has been consumed.
+ */
+abstract class ChunkedDocumentIterator implements DocumentIterator {
+
+    private Iterator<DocumentRevision> chunk = null;
+    private boolean finished = false;
+
+    /**
+     * Reads the chunk following the previous one.
+     * @return the next revisions, or an empty list if there are no more
+     */
+    protected abstract List<DocumentRevision> nextChunk();
+
+    @Override
+    public boolean hasNext() {
+        while (!finished && (chunk == null || !chunk.hasNext())) {
+            List<DocumentRevision> next = nextChunk();
+            if (next == null || next.isEmpty()) {
+                finished = true;
+                chunk = null;
+            } else {
+                chunk = next.iterator();
+            }
+        }
+        return !finished;
+    }
+
+    @Override
+    public DocumentRevision next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Documents can't be removed using an iterator");
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        chunk = null;
+    }
+}
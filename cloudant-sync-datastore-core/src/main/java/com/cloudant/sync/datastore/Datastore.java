@@ -144,6 +144,44 @@ public interface Datastore {
      */
     List<DocumentRevision> getAllDocuments(int offset, int limit, boolean descending);
 
+    /**
+     * <p>Enumerates the current winning revision for all documents in the
+     * datastore, continuing after a given document.</p>
+     *
+     * <p>Documents are in the same order as
+     * {@link #getAllDocuments(int, int, boolean)}. To page through the
+     * datastore, pass {@code null} for the first page and the ID of the last
+     * document returned for each following page. Unlike an offset, the
+     * position of the page doesn't affect how long it takes to read.</p>
+     *
+     * @param afterDocumentId ID of the document to start after, or
+     *                        {@code null} to start with the first document
+     * @param limit maximum number of documents to return
+     * @param descending whether the documents are read in ascending or
+     *                   descending order.
+     * @return list of {@code DBObjects}, maximum length {@code limit}.
+     * @throws DocumentNotFoundException if there is no document with ID
+     *                                   {@code afterDocumentId}
+     */
+    List<DocumentRevision> getAllDocumentsAfter(String afterDocumentId, int limit,
+                                                boolean descending)
+            throws DocumentNotFoundException;
+
+    /**
+     * <p>Iterates over the current winning revision for all non-deleted documents
+     * in the datastore, in the same order as
+     * {@link #getAllDocuments(int, int, boolean)}.</p>
+     *
+     * <p>Documents are read a chunk at a time as the iterator is advanced, so this
+     * uses a bounded amount of memory however many documents the datastore
+     * contains.</p>
+     *
+     * @param descending whether the documents are read in ascending or
+     *                   descending order.
+     * @return an iterator over the documents
+     */
+    DocumentIterator iterateAllDocuments(boolean descending);
+
     /**
      * <p>Enumerates the current winning revision for all documents in the
      * datastore and return a list of their document identifiers.</p>
@@ -203,6 +241,21 @@ public interface Datastore {
      */
     Changes changes(long since, int limit);
 
+    /**
+     * <p>Iterates over the documents changed after {@code since}, returning the
+     * same documents as repeated calls to {@link #changes(long, int)}.</p>
+     *
+     * <p>Changes are read a chunk at a time as the iterator is advanced, so this
+     * uses a bounded amount of memory however many changes there are. The
+     * sequence number of the last revision returned can be used as
+     * {@code since} to resume the iteration later.</p>
+     *
+     * @param since the lower bound (exclusive) of the change set
+     *              sequence number
+     * @return an iterator over the changed documents
+     */
+    DocumentIterator iterateChanges(long since);
+
     /**
      * <p>Returns the EventBus which this Datastore posts
      * {@link com.cloudant.sync.notifications.DocumentModified Document Notification Events} to.</p>
@@ -221,6 +274,9 @@ public interface Datastore {
      * conflicted revisions of the document.
      * </p>
      *
+     * <p>The IDs may be read from the database as the iterator is used, so
+     * conflicts can be resolved while iterating.</p>
+     *
      * @return Iterable of String over ids of all Documents with
      *         conflicted revisions
      *
@@ -318,6 +374,80 @@ public interface Datastore {
      */
     DocumentRevision deleteDocumentFromRevision(DocumentRevision rev) throws ConflictException;
 
+    /**
+     * <p>Adds new documents with bodies and attachments from {@code revs}, as
+     * {@link #createDocumentFromRevision(DocumentRevision)} does for one document.</p>
+     *
+     * <p>All the documents are written in a single transaction. A revision which
+     * can't be written, for example because a document with its ID already exists,
+     * doesn't prevent the others being written: its error is returned in its
+     * {@link BulkWriteResult}.</p>
+     *
+     * <p>Once the transaction has been committed, a
+     * {@link com.cloudant.sync.notifications.DocumentCreated DocumentCreated}
+     * event is posted on the event bus for each document created.</p>
+     *
+     * @param revs the <code>DocumentRevision</code>s to be created
+     * @return the result for each revision, in the same order as {@code revs}
+     * @throws java.lang.IllegalArgumentException if any revision isn't valid for
+     *         creating a document, in which case nothing is written
+     * @throws com.cloudant.sync.datastore.InvalidDocumentException if any body has
+     *         a field name starting with '_', in which case nothing is written
+     * @throws com.cloudant.sync.datastore.DocumentException if there was an error
+     *         committing the transaction, in which case nothing is written
+     * @see Datastore#getEventBus()
+     */
+    List<BulkWriteResult> createDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DocumentException;
+
+    /**
+     * <p>Updates documents that exist in the datastore with bodies and attachments
+     * from {@code revs}, as {@link #updateDocumentFromRevision(DocumentRevision)}
+     * does for one document.</p>
+     *
+     * <p>All the documents are written in a single transaction. A revision which
+     * can't be written, for example because it is not a current revision of its
+     * document, doesn't prevent the others being written: its
+     * {@link ConflictException} is returned in its {@link BulkWriteResult}.</p>
+     *
+     * <p>Once the transaction has been committed, a
+     * {@link com.cloudant.sync.notifications.DocumentUpdated DocumentUpdated}
+     * event is posted on the event bus for each document updated.</p>
+     *
+     * @param revs the <code>DocumentRevision</code>s to be updated
+     * @return the result for each revision, in the same order as {@code revs}
+     * @throws java.lang.IllegalArgumentException if any revision isn't valid for
+     *         updating a document, in which case nothing is written
+     * @throws com.cloudant.sync.datastore.DocumentException if there was an error
+     *         committing the transaction, in which case nothing is written
+     * @see Datastore#getEventBus()
+     */
+    List<BulkWriteResult> updateDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DocumentException;
+
+    /**
+     * <p>Deletes documents from the datastore, as
+     * {@link #deleteDocumentFromRevision(DocumentRevision)} does for one document.</p>
+     *
+     * <p>All the documents are deleted in a single transaction. A revision which
+     * can't be deleted doesn't prevent the others being deleted: its error is
+     * returned in its {@link BulkWriteResult}.</p>
+     *
+     * <p>Once the transaction has been committed, a
+     * {@link com.cloudant.sync.notifications.DocumentDeleted DocumentDeleted}
+     * event is posted on the event bus for each document deleted.</p>
+     *
+     * @param revs the <code>DocumentRevision</code>s to be deleted
+     * @return the result for each revision, in the same order as {@code revs}
+     * @throws java.lang.IllegalArgumentException if any revision has no ID or
+     *         revision ID, in which case nothing is deleted
+     * @throws com.cloudant.sync.datastore.DocumentException if there was an error
+     *         committing the transaction, in which case nothing is deleted
+     * @see Datastore#getEventBus()
+     */
+    List<BulkWriteResult> deleteDocumentsFromRevisions(List<DocumentRevision> revs)
+            throws DocumentException;
+
     /**
      * <p>Delete all leaf revisions for the document</p>
      *
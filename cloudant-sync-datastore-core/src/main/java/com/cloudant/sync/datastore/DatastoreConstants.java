@@ -125,4 +125,124 @@ class DatastoreConstants {
         };
     }
 
+    // Keeps the number of non-deleted documents in the info table, so it can be read
+    // without counting them. Triggers maintain it for every change to revs, including
+    // changes made by older versions of the code, and it's rolled back with them.
+    public static String[] getSchemaVersion101() {
+        return new String[]{
+                "    INSERT INTO info (key, value) " +
+                "        SELECT 'docCount', COUNT(DISTINCT doc_id) FROM revs " +
+                "        WHERE current = 1 AND deleted = 0; ",
+                "    CREATE TRIGGER revs_doc_count_insert AFTER INSERT ON revs " +
+                "        WHEN NEW.current = 1 AND NEW.deleted = 0 " +
+                "    BEGIN " +
+                "        UPDATE info SET value = value + 1 WHERE key = 'docCount'; " +
+                "    END; ",
+                "    CREATE TRIGGER revs_doc_count_delete AFTER DELETE ON revs " +
+                "        WHEN OLD.current = 1 AND OLD.deleted = 0 " +
+                "    BEGIN " +
+                "        UPDATE info SET value = value - 1 WHERE key = 'docCount'; " +
+                "    END; ",
+                "    CREATE TRIGGER revs_doc_count_update AFTER UPDATE OF current, deleted ON revs " +
+                "        WHEN (OLD.current = 1 AND OLD.deleted = 0) " +
+                "            != (NEW.current = 1 AND NEW.deleted = 0) " +
+                "    BEGIN " +
+                "        UPDATE info SET value = value + " +
+                "            (CASE WHEN NEW.current = 1 AND NEW.deleted = 0 THEN 1 ELSE -1 END) " +
+                "            WHERE key = 'docCount'; " +
+                "    END; "
+        };
+    }
+
+    // Marks the revisions which have no children, so the leaves of a document can be found
+    // with an index lookup instead of excluding every parent in the revs table. Revisions are
+    // leaves when inserted; the trigger clears the flag of the parent, including for
+    // revisions inserted by older versions of the code.
+    public static String[] getSchemaVersion102() {
+        return new String[]{
+                "    ALTER TABLE revs ADD COLUMN leaf BOOLEAN NOT NULL DEFAULT 1; ",
+                "    UPDATE revs SET leaf = 0 WHERE sequence IN " +
+                "        (SELECT parent FROM revs WHERE parent NOT NULL); ",
+                "    CREATE INDEX revs_leaf ON revs(doc_id, leaf, deleted); ",
+                "    CREATE TRIGGER revs_leaf_insert AFTER INSERT ON revs " +
+                "        WHEN NEW.parent NOT NULL " +
+                "    BEGIN " +
+                "        UPDATE revs SET leaf = 0 WHERE sequence = NEW.parent AND leaf = 1; " +
+                "    END; "
+        };
+    }
+
+    // Records the format each revision's body is stored in, see DocumentBodyFormat. Bodies
+    // written by older versions of the code are JSON.
+    public static String[] getSchemaVersion103() {
+        return new String[]{
+                "    ALTER TABLE revs ADD COLUMN json_format INTEGER NOT NULL DEFAULT 0; "
+        };
+    }
+
+    // Marks the revisions whose bodies are compressed, see
+    // DatastoreImpl.setDocumentBodyCompressionThreshold
+    public static String[] getSchemaVersion104() {
+        return new String[]{
+                "    ALTER TABLE revs ADD COLUMN json_deflated BOOLEAN NOT NULL DEFAULT 0; "
+        };
+    }
+
+    // Lists the documents with more than one non-deleted leaf revision, so conflicts can be
+    // found without grouping every leaf in the datastore. The triggers recompute a document's
+    // entry whenever a revision is added to it or one of its revisions stops being a leaf or
+    // is deleted, including changes made by older versions of the code.
+    public static String[] getSchemaVersion105() {
+        String updateConflicts =
+                "        DELETE FROM conflicts WHERE doc_id = NEW.doc_id; " +
+                "        INSERT INTO conflicts (doc_id) SELECT NEW.doc_id WHERE " +
+                "            (SELECT COUNT(*) FROM revs WHERE doc_id = NEW.doc_id " +
+                "                AND leaf = 1 AND deleted = 0) > 1; ";
+        return new String[]{
+                "    CREATE TABLE conflicts ( " +
+                "        doc_id INTEGER PRIMARY KEY REFERENCES docs(doc_id)); ",
+                "    INSERT INTO conflicts (doc_id) SELECT doc_id FROM revs " +
+                "        WHERE leaf = 1 AND deleted = 0 GROUP BY doc_id HAVING COUNT(*) > 1; ",
+                "    CREATE TRIGGER revs_conflicts_insert AFTER INSERT ON revs " +
+                "        WHEN NEW.leaf = 1 AND NEW.deleted = 0 " +
+                "    BEGIN " + updateConflicts + "END; ",
+                "    CREATE TRIGGER revs_conflicts_update AFTER UPDATE OF leaf, deleted ON revs " +
+                "        WHEN OLD.leaf != NEW.leaf OR OLD.deleted != NEW.deleted " +
+                "    BEGIN " + updateConflicts + "END; "
+        };
+    }
+
+    // Lists the attachment blobs no longer used by any revision, so they can be deleted
+    // without comparing every key in the attachments table with every blob. The attachments
+    // of a revision are deleted when compaction removes its body, as they were by
+    // purgeAttachments, and a blob's key is recorded when its last attachment is deleted.
+    // Adding an attachment with the key takes it off the list again.
+    public static String[] getSchemaVersion106() {
+        return new String[]{
+                "    CREATE INDEX attachments_by_key ON attachments(key); ",
+                "    CREATE TABLE attachments_orphans ( " +
+                "        key TEXT PRIMARY KEY); ",
+                "    DELETE FROM attachments WHERE sequence IN " +
+                "        (SELECT sequence FROM revs WHERE json IS NULL); ",
+                "    INSERT INTO attachments_orphans (key) " +
+                "        SELECT key FROM attachments_key_filename WHERE key NOT IN " +
+                "        (SELECT lower(hex(key)) FROM attachments); ",
+                "    CREATE TRIGGER revs_json_delete_attachments AFTER UPDATE OF json ON revs " +
+                "        WHEN OLD.json NOT NULL AND NEW.json IS NULL " +
+                "    BEGIN " +
+                "        DELETE FROM attachments WHERE sequence = NEW.sequence; " +
+                "    END; ",
+                "    CREATE TRIGGER attachments_orphans_delete AFTER DELETE ON attachments " +
+                "        WHEN NOT EXISTS (SELECT 1 FROM attachments WHERE key = OLD.key) " +
+                "    BEGIN " +
+                "        INSERT OR IGNORE INTO attachments_orphans (key) " +
+                "            VALUES (lower(hex(OLD.key))); " +
+                "    END; ",
+                "    CREATE TRIGGER attachments_orphans_insert AFTER INSERT ON attachments " +
+                "    BEGIN " +
+                "        DELETE FROM attachments_orphans WHERE key = lower(hex(NEW.key)); " +
+                "    END; "
+        };
+    }
+
 }
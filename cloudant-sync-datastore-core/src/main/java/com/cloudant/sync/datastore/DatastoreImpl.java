@@ -28,6 +28,7 @@ import com.cloudant.sync.datastore.migrations.MigrateDatabase6To100;
 import com.cloudant.sync.datastore.migrations.SchemaOnlyMigration;
 import com.cloudant.sync.event.EventBus;
 import com.cloudant.sync.notifications.DatabaseClosed;
+import com.cloudant.sync.notifications.DatabaseCompactionProgress;
 import com.cloudant.sync.notifications.DocumentCreated;
 import com.cloudant.sync.notifications.DocumentDeleted;
 import com.cloudant.sync.notifications.DocumentModified;
@@ -36,15 +37,21 @@ import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.sqlite.SavepointSQLDatabase;
+import com.cloudant.sync.sqlite.SerialExecutorPool;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
 import com.cloudant.sync.util.JSONUtils;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -58,12 +65,22 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,7 +92,10 @@ public class DatastoreImpl implements Datastore {
     private static final String LOG_TAG = "BasicDatastore";
     private static final Logger logger = Logger.getLogger(DatastoreImpl.class.getCanonicalName());
 
-    private static final String FULL_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, json, current, deleted, parent";
+    private static final String FULL_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, json, json_format, json_deflated, current, deleted, parent";
+
+    // document columns needed to build a revision tree, without the body
+    private static final String REVISION_TREE_COLS = "docs.docid, docs.doc_id, revid, sequence, current, deleted, parent";
 
     private static final String GET_DOC_NUMERIC_ID =
             "SELECT doc_id from docs WHERE docid=?";
@@ -105,15 +125,11 @@ public class DatastoreImpl implements Datastore {
 
     // get all non-deleted leaf rev ids for a given doc id
     public static final String GET_NON_DELETED_LEAFS = "SELECT revs.revid FROM revs " +
-            "WHERE revs.doc_id = ? " +
-            "AND revs.deleted = 0 AND revs.sequence NOT IN " +
-            "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
+            "WHERE revs.doc_id = ? AND revs.leaf = 1 AND revs.deleted = 0 ";
 
     // get all leaf rev ids for a given doc id
     public static final String GET_ALL_LEAFS = "SELECT revs.revid FROM revs " +
-            "WHERE revs.doc_id = ? " +
-            "AND revs.sequence NOT IN " +
-            "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
+            "WHERE revs.doc_id = ? AND revs.leaf = 1 ";
 
     // Limit of parameters (placeholders) one query can have.
     // SQLite has limit on the number of placeholders on a single query, default 999.
@@ -139,6 +155,108 @@ public class DatastoreImpl implements Datastore {
      */
     private final SQLDatabaseQueue queue;
 
+    /**
+     * Pool of threads shared with other datastores, or null if this datastore
+     * has threads of its own.
+     */
+    private final SerialExecutorPool executors;
+    private final String executorKey;
+
+    /** Number of users, such as replications, needing the connections kept open */
+    private final AtomicInteger pins = new AtomicInteger();
+
+    /** Savepoint around each revision written by a bulk method */
+    private static final String BULK_WRITE_SAVEPOINT = "bulk_write_item";
+
+    /** Number of documents or sequence numbers read at a time by iterators, {@value}. */
+    static final int ITERATOR_CHUNK_SIZE = 100;
+
+    /** Number of documents whose conflicts are resolved in each transaction, {@value}. */
+    static final int CONFLICT_RESOLUTION_CHUNK_SIZE = 100;
+
+    /** Value of the auto_vacuum pragma when incremental vacuuming is enabled */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Number of unused attachment files compaction deletes in each task, {@value}. */
+    static final int ATTACHMENT_PURGE_BATCH_SIZE = 100;
+
+    /** Number of sequence numbers incremental compaction removes bodies from in each
+     * transaction, {@value}. */
+    static final int COMPACTION_BATCH_SIZE = 500;
+
+    /** Number of database pages incremental compaction frees in each task, {@value}. */
+    static final int VACUUM_BATCH_PAGES = 256;
+
+    /** Number of revision bodies converted in each transaction, {@value}. */
+    static final int BODY_CONVERSION_BATCH_SIZE = 100;
+
+    /** Number of documents, by internal ID, checked for revisions beyond the revisions
+     * limit in each transaction, {@value}. */
+    static final int REVISION_PRUNING_BATCH_SIZE = 500;
+
+    // documents in a range of internal IDs with more revisions than the limit, which are the
+    // only ones which can have a branch longer than it
+    private static final String GET_DOCUMENTS_TO_PRUNE = "SELECT docs.docid FROM revs, docs " +
+            "WHERE revs.doc_id > ? AND revs.doc_id <= ? AND docs.doc_id = revs.doc_id " +
+            "GROUP BY revs.doc_id HAVING COUNT(*) > CAST(? AS INTEGER)";
+
+    // number of revisions of a document, its tree can't have a branch longer than this
+    private static final String COUNT_REVISIONS_OF_DOCUMENT = "SELECT COUNT(*) " +
+            "FROM revs, docs WHERE docs.docid = ? AND revs.doc_id = docs.doc_id";
+
+    // bodies which aren't in the given format, or are compressed, in the order they were written
+    private static final String GET_BODIES_TO_CONVERT = "SELECT sequence, json, json_format, " +
+            "json_deflated FROM revs WHERE sequence > ? AND json NOT NULL AND " +
+            "(json_format != ? OR json_deflated = 1) ORDER BY sequence LIMIT ?";
+
+    // bodies which aren't in the given format, or are large and uncompressed
+    private static final String GET_BODIES_TO_CONVERT_AND_COMPRESS = "SELECT sequence, json, " +
+            "json_format, json_deflated FROM revs WHERE sequence > ? AND json NOT NULL AND " +
+            "(json_format != ? OR " +
+            "(json_deflated = 0 AND LENGTH(json) >= CAST(? AS INTEGER))) " +
+            "ORDER BY sequence LIMIT ?";
+
+    /**
+     * Value for {@link #setDocumentBodyCompressionThreshold(int)} which stops
+     * bodies being compressed, {@value}.
+     */
+    public static final int NO_BODY_COMPRESSION = -1;
+
+    /** Format new revision bodies are stored in. */
+    private volatile DocumentBodyFormat bodyFormat = DocumentBodyFormat.JSON;
+
+    /** Size from which new revision bodies are compressed, or NO_BODY_COMPRESSION. */
+    private volatile int bodyCompressionThreshold = NO_BODY_COMPRESSION;
+
+    /**
+     * Value for {@link #setRevisionsLimit(int)} which keeps every revision of
+     * each document, {@value}.
+     */
+    public static final int NO_REVISIONS_LIMIT = -1;
+
+    /** Number of revisions kept on each branch of a document, or NO_REVISIONS_LIMIT. */
+    private volatile int revisionsLimit = NO_REVISIONS_LIMIT;
+
+    private static final String COUNT_DOCUMENTS =
+            "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
+
+    private static final String GET_DOCUMENT_COUNT =
+            "SELECT CAST(value AS INTEGER) FROM info WHERE key = 'docCount'";
+
+    /**
+     * The document count and last sequence number, cached until the next write
+     * to the database.
+     */
+    private volatile CachedValue cachedDocumentCount;
+    private volatile CachedValue cachedLastSequence;
+
+    /** Non-blocking versions of this datastore's methods, posting events on their own thread */
+    private final AsyncDatastore async =
+            new AsyncDatastoreImpl(this, AsyncDatastoreImpl.newEventExecutor());
+
+    /** Recently read revisions, or null if they aren't cached. */
+    private volatile DocumentCache documentCache;
+
     /** Name used to get storage folder for attachments */
     private static final String ATTACHMENTS_EXTENSION_NAME = "com.cloudant.attachments";
 
@@ -164,6 +282,42 @@ public class DatastoreImpl implements Datastore {
      * @throws IOException
      */
     public DatastoreImpl(String dir, String name, KeyProvider provider) throws SQLException, IOException, DatastoreException {
+        this(dir, name, provider, 0);
+    }
+
+    /**
+     * Constructor for a datastore which serves reads from a pool of read-only
+     * connections, concurrently with writes.
+     * @param dir The directory where the datastore will be created
+     * @param name The user-defined name of the datastore
+     * @param provider The key provider object that contains the user-defined SQLCipher key
+     * @param readerConnections The number of read-only connections to use, zero to
+     *                          execute reads on the same thread as writes.
+     * @throws SQLException
+     * @throws IOException
+     * @see SQLDatabaseQueue#SQLDatabaseQueue(String, KeyProvider, int)
+     */
+    public DatastoreImpl(String dir, String name, KeyProvider provider, int readerConnections)
+            throws SQLException, IOException, DatastoreException {
+        this(dir, name, provider, readerConnections, null);
+    }
+
+    /**
+     * Constructor for a datastore which executes its database tasks on a pool of
+     * threads shared with other datastores.
+     * @param dir The directory where the datastore will be created
+     * @param name The user-defined name of the datastore
+     * @param provider The key provider object that contains the user-defined SQLCipher key
+     * @param readerConnections The number of read-only connections to use, zero to
+     *                          execute reads on the same thread as writes.
+     * @param executors The shared pool, or null to give the datastore its own thread
+     * @throws SQLException
+     * @throws IOException
+     * @see SQLDatabaseQueue#SQLDatabaseQueue(String, KeyProvider, int, ExecutorService)
+     */
+    public DatastoreImpl(String dir, String name, KeyProvider provider, int readerConnections,
+                         SerialExecutorPool executors)
+            throws SQLException, IOException, DatastoreException {
         Preconditions.checkNotNull(dir);
         Preconditions.checkNotNull(name);
         Preconditions.checkNotNull(provider);
@@ -173,7 +327,10 @@ public class DatastoreImpl implements Datastore {
         this.datastoreName = name;
         this.extensionsDir = FilenameUtils.concat(this.datastoreDir, "extensions");
         final String dbFilename = FilenameUtils.concat(this.datastoreDir, DB_FILE_NAME);
-        queue = new SQLDatabaseQueue(dbFilename, provider);
+        this.executors = executors;
+        this.executorKey = dbFilename;
+        queue = new SQLDatabaseQueue(dbFilename, provider, readerConnections,
+                newExtensionExecutor());
 
         int dbVersion = queue.getVersion();
         // Increment the hundreds position if a schema change means that older
@@ -182,11 +339,40 @@ public class DatastoreImpl implements Datastore {
             throw new DatastoreException(String.format("Database version is higher than the version supported " +
                     "by this library, current version %d , highest supported version %d",dbVersion, 99));
         }
+        if (dbVersion == 0) {
+            // auto_vacuum can only be changed before the first table is created, or
+            // by a VACUUM, so existing databases are changed by compact() instead
+            try {
+                queue.submit(new SQLQueueCallable<Object>() {
+                    @Override
+                    public Object call(SQLDatabase db) throws Exception {
+                        enableIncrementalVacuum(db);
+                        return null;
+                    }
+                }).get();
+            } catch (InterruptedException e) {
+                throw new DatastoreException("Interrupted while creating database", e);
+            } catch (ExecutionException e) {
+                throw new DatastoreException("Failed to enable incremental vacuum", e);
+            }
+        }
         queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion3()), 3);
         queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion4()), 4);
         queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion5()), 5);
         queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion6()), 6);
         queue.updateSchema(new MigrateDatabase6To100(), 100);
+        queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion101()), 101);
+        queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion102()), 102);
+        queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion103()), 103);
+        queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion104()), 104);
+        queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion105()), 105);
+        queue.updateSchema(new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion106()), 106);
+        checkDocumentCount();
+        if (readerConnections > 0) {
+            // Reads don't wait behind the migrations on the writer thread, so wait
+            // for the schema to be up to date before any can be submitted.
+            queue.getVersion();
+        }
         this.eventBus = new EventBus();
 
         this.attachmentsDir = this.extensionDataFolder(ATTACHMENTS_EXTENSION_NAME);
@@ -207,9 +393,15 @@ public class DatastoreImpl implements Datastore {
     public long getLastSequence() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
 
+        long writeCount = queue.getWriteCount();
+        CachedValue cached = cachedLastSequence;
+        if (cached != null && cached.writeCount == writeCount) {
+            return cached.value;
+        }
+
         try {
 
-            return queue.submit(new SQLQueueCallable<Long>() {
+            long lastSequence = queue.submitRead(new SQLQueueCallable<Long>() {
                 @Override
                 public Long call(SQLDatabase db) throws Exception {
                     String sql = "SELECT MAX(sequence) FROM revs";
@@ -235,6 +427,8 @@ public class DatastoreImpl implements Datastore {
                     return result;
                 }
             }).get();
+            cachedLastSequence = new CachedValue(writeCount, lastSequence);
+            return lastSequence;
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get last Sequence",e);
             throw new RuntimeException(e);
@@ -253,27 +447,23 @@ public class DatastoreImpl implements Datastore {
     @Override
     public int getDocumentCount() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
+
+        long writeCount = queue.getWriteCount();
+        CachedValue cached = cachedDocumentCount;
+        if (cached != null && cached.writeCount == writeCount) {
+            return (int) cached.value;
+        }
+
         try {
-            return queue.submit(new SQLQueueCallable<Integer>(){
+            int documentCount = queue.submitRead(new SQLQueueCallable<Integer>(){
                 @Override
                 public Integer call(SQLDatabase db) throws Exception {
-                    String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
-                    Cursor cursor = null;
-                    int result = 0;
-                    try {
-                        cursor = db.rawQuery(sql, null);
-                        if (cursor.moveToFirst()) {
-                            result = cursor.getInt(0);
-                        }
-                    } catch (SQLException e) {
-                        logger.log(Level.SEVERE, "Error getting document count", e);
-                        throw new DatastoreException(e);
-                    } finally {
-                        DatabaseUtils.closeCursorQuietly(cursor);
-                    }
-                    return result;
+                    // maintained by triggers on revs, see DatastoreConstants
+                    return getCountInQueue(db, GET_DOCUMENT_COUNT);
                 }
             }).get();
+            cachedDocumentCount = new CachedValue(writeCount, documentCount);
+            return documentCount;
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get document count",e);
         } catch (ExecutionException e) {
@@ -309,6 +499,53 @@ public class DatastoreImpl implements Datastore {
         return getDocument(id, null);
     }
 
+    private int getCountInQueue(SQLDatabase db, String sql) throws DatastoreException {
+        Cursor cursor = null;
+        int result = 0;
+        try {
+            cursor = db.rawQuery(sql, null);
+            if (cursor.moveToFirst()) {
+                result = cursor.getInt(0);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error getting document count", e);
+            throw new DatastoreException(e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return result;
+    }
+
+    /**
+     * Compares the document count kept in the info table with the number of
+     * documents in the revs table, correcting it if they differ.
+     */
+    private void checkDocumentCount() throws DatastoreException {
+        try {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
+                    int counted = getCountInQueue(db, COUNT_DOCUMENTS);
+                    int stored = getCountInQueue(db, GET_DOCUMENT_COUNT);
+                    if (counted != stored) {
+                        logger.warning(String.format("Document count of %s was %d, " +
+                                "expected %d, correcting it", datastoreName, stored, counted));
+                        ContentValues values = new ContentValues();
+                        values.put("value", Integer.toString(counted));
+                        db.update("info", values, "key = ?", new String[]{"docCount"});
+                    }
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to check document count", e);
+            throw new DatastoreException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to check document count", e);
+            throw new DatastoreException(e);
+        }
+    }
+
     private long getSequenceInQueue(SQLDatabase db, String id, String rev)
             throws DatastoreException {
         Cursor cursor = null;
@@ -367,10 +604,10 @@ public class DatastoreImpl implements Datastore {
             String sql = (rev == null) ? GET_DOCUMENT_CURRENT_REVISION : GET_DOCUMENT_GIVEN_REVISION;
             cursor = db.rawQuery(sql, args);
             if (cursor.moveToFirst()) {
-                long sequence = cursor.getLong(3);
+                RevisionRowMapper mapper = new RevisionRowMapper(cursor);
                 List<? extends Attachment> atts = AttachmentManager.attachmentsForRevision(db,
-                        this.attachmentsDir, this.attachmentStreamFactory, sequence);
-                return getFullRevisionFromCurrentCursor(cursor, atts);
+                        this.attachmentsDir, this.attachmentStreamFactory, mapper.sequence());
+                return mapper.mapRow().setAttachments(atts).build();
             } else {
                 throw new DocumentNotFoundException(id,rev);
             }
@@ -384,23 +621,48 @@ public class DatastoreImpl implements Datastore {
 
     @Override
     public DocumentRevision getDocument(final String id, final String rev) throws DocumentNotFoundException{
+        try {
+            return submitGetDocument(id, rev).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to get document",e);
+        } catch (ExecutionException e) {
+            throw new DocumentNotFoundException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads a revision of a document, or the winning revision if {@code rev} is
+     * null, from the revision cache if it's there.
+     */
+    ListenableFuture<DocumentRevision> submitGetDocument(final String id, final String rev) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "DocumentRevisionTree id cannot " +
                 "be empty");
 
-        try {
-            return queue.submit(new SQLQueueCallable<DocumentRevision>(){
+        final DocumentCache cache = documentCache;
+        if (cache == null) {
+            return queue.submitRead(new SQLQueueCallable<DocumentRevision>(){
                 @Override
                 public DocumentRevision call(SQLDatabase db) throws Exception {
                     return getDocumentInQueue(db, id, rev);
                 }
-            }).get();
-        } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to get document",e);
-        } catch (ExecutionException e) {
-            throw new DocumentNotFoundException(e);
+            }, SQLDatabaseQueue.Priority.INTERACTIVE);
         }
-        return null;
+
+        DocumentRevision cached = cache.get(id, rev);
+        if (cached != null) {
+            return Futures.immediateFuture(cached);
+        }
+        final long writeCount = cache.beforeRead();
+        return queue.submitRead(new SQLQueueCallable<DocumentRevision>(){
+            @Override
+            public DocumentRevision call(SQLDatabase db) throws Exception {
+                DocumentRevision revision = getDocumentInQueue(db, id, rev);
+                cache.put(revision, writeCount);
+                return revision;
+            }
+        }, SQLDatabaseQueue.Priority.INTERACTIVE);
     }
 
     /**
@@ -415,7 +677,7 @@ public class DatastoreImpl implements Datastore {
     public DocumentRevisionTree getAllRevisionsOfDocument(final String docId) {
 
         try {
-            return queue.submit(new SQLQueueCallable<DocumentRevisionTree>() {
+            return queue.submitRead(new SQLQueueCallable<DocumentRevisionTree>() {
                 @Override
                 public DocumentRevisionTree call(SQLDatabase db) throws Exception {
 
@@ -431,70 +693,231 @@ public class DatastoreImpl implements Datastore {
         return null;
     }
 
-    private DocumentRevisionTree getAllRevisionsOfDocumentInQueue(SQLDatabase db, String docId)
-            throws DocumentNotFoundException, AttachmentException, DatastoreException {
-        String sql = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
-                "WHERE docs.docid=? AND revs.doc_id = docs.doc_id ORDER BY sequence ASC";
-
-        String[] args = {docId};
-        Cursor cursor = null;
+    /**
+     * <p>Returns the structure of a document's revision tree.</p>
+     *
+     * <p>Unlike {@link #getAllRevisionsOfDocument(String)}, the revisions in the
+     * tree don't have their bodies or attachments loaded, which makes this much
+     * cheaper for documents with long histories. Use it when only the revision
+     * ids, parents and flags are needed, and call {@link #getDocument(String, String)}
+     * for the revisions whose content is needed.</p>
+     *
+     * @param docId  id of the document
+     * @return {@code DocumentRevisionTree} of the specified document, with revisions
+     *      which have a {@code null} body and no attachments
+     */
+    public DocumentRevisionTree getRevisionTreeOfDocument(final String docId) {
 
         try {
-            DocumentRevisionTree tree = new DocumentRevisionTree();
-            cursor = db.rawQuery(sql, args);
-            while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = AttachmentManager.attachmentsForRevision(db,
-                        this.attachmentsDir, this.attachmentStreamFactory, sequence);
-                DocumentRevision rev = getFullRevisionFromCurrentCursor(cursor, atts);
-                logger.finer("Rev: " + rev);
-                tree.add(rev);
-            }
-            return tree;
-        } catch (SQLException e) {
-            logger.log(Level.SEVERE, "Error getting all revisions of document", e);
-            throw new DatastoreException("DocumentRevisionTree not found with id: " + docId, e);
-        } finally {
-            DatabaseUtils.closeCursorQuietly(cursor);
+            return queue.submitRead(new SQLQueueCallable<DocumentRevisionTree>() {
+                @Override
+                public DocumentRevisionTree call(SQLDatabase db) throws Exception {
+                    return getRevisionTreeOfDocumentInQueue(db, docId);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get revision tree of document", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get revision tree of document", e);
         }
+        return null;
+    }
 
+    /**
+     * <p>Returns the {@code DocumentRevisionTree}s of several documents, keyed
+     * by document id.</p>
+     *
+     * <p>The trees are read using a few queries for the whole set of documents,
+     * rather than a few queries per document, so this should be used in place of
+     * {@link #getAllRevisionsOfDocument(String)} when many trees are needed.</p>
+     *
+     * @param docIds ids of the documents
+     * @return map of document id to {@code DocumentRevisionTree}. Documents which
+     *      don't exist are not in the map.
+     * @throws DatastoreException if the trees could not be read
+     */
+    public Map<String, DocumentRevisionTree> getAllRevisionsOfDocuments(
+            final Collection<String> docIds) throws DatastoreException {
+        return getRevisionTrees(docIds, true);
     }
 
+    /**
+     * <p>Returns the structure of several documents' revision trees, keyed by
+     * document id.</p>
+     *
+     * <p>This is the equivalent of {@link #getRevisionTreeOfDocument(String)} for
+     * many documents, the revisions in the trees have no body or attachments.</p>
+     *
+     * @param docIds ids of the documents
+     * @return map of document id to {@code DocumentRevisionTree}. Documents which
+     *      don't exist are not in the map.
+     * @throws DatastoreException if the trees could not be read
+     */
+    public Map<String, DocumentRevisionTree> getRevisionTreesOfDocuments(
+            final Collection<String> docIds) throws DatastoreException {
+        return getRevisionTrees(docIds, false);
+    }
 
-    @Override
-    public Changes changes(long since, final int limit) {
+    /**
+     * <p>Returns the revisions with the given sequence numbers, with their bodies
+     * and attachments, keyed by sequence.</p>
+     *
+     * <p>The revisions are read with one query per batch of sequences, and their
+     * attachments with one more, so this should be used in place of
+     * {@link #getDocument(String, String)} when many revisions are needed.</p>
+     *
+     * @param sequences sequence numbers of the revisions
+     * @return map of sequence to {@code DocumentRevision}. Sequences which
+     *      don't exist are not in the map.
+     * @throws DatastoreException if the revisions could not be read
+     */
+    public Map<Long, DocumentRevision> getRevisionsWithSequences(
+            final Collection<Long> sequences) throws DatastoreException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
-        final long verifiedSince = since >= 0 ? since : 0;
+        Preconditions.checkNotNull(sequences, "Input sequence collection cannot be null");
+        try {
+            return queue.submitRead(new SQLQueueCallable<Map<Long, DocumentRevision>>() {
+                @Override
+                public Map<Long, DocumentRevision> call(SQLDatabase db) throws Exception {
+                    return getRevisionsWithSequencesInQueue(db, sequences);
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get revisions with sequences", e);
+            throw new DatastoreException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get revisions with sequences", e);
+            throw new DatastoreException(e);
+        }
+    }
+
+    private Map<Long, DocumentRevision> getRevisionsWithSequencesInQueue(SQLDatabase db,
+                                                                      Collection<Long> sequences)
+            throws AttachmentException, DocumentException, DatastoreException {
+        final String GET_REVISIONS_BY_SEQUENCES = "SELECT " + FULL_DOCUMENT_COLS +
+                " FROM revs, docs WHERE sequence IN ( %s ) AND docs.doc_id = revs.doc_id";
+
+        Map<Long, DocumentRevision> revisions = new HashMap<Long, DocumentRevision>();
+        List<List<Long>> batches = Lists.partition(new ArrayList<Long>(
+                new LinkedHashSet<Long>(sequences)), SQLITE_QUERY_PLACEHOLDERS_LIMIT);
+        for (List<Long> batch : batches) {
+            String sql = String.format(GET_REVISIONS_BY_SEQUENCES,
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                args[i] = Long.toString(batch.get(i));
+            }
+            for (DocumentRevision revision : getRevisionsFromRawQuery(db, sql, args)) {
+                revisions.put(revision.getSequence(), revision);
+            }
+        }
+        return revisions;
+    }
 
+    private Map<String, DocumentRevisionTree> getRevisionTrees(final Collection<String> docIds,
+                                                               final boolean withContent)
+            throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(docIds, "Input document id collection cannot be null");
         try {
-            return queue.submit(new SQLQueueCallable<Changes>() {
+            return queue.submitRead(new SQLQueueCallable<Map<String, DocumentRevisionTree>>() {
                 @Override
-                public Changes call(SQLDatabase db) throws Exception {
-                    String[] args = {Long.toString(verifiedSince), Long.toString(verifiedSince + limit)};
-                    Cursor cursor = null;
-                    try {
-                        Long lastSequence = verifiedSince;
-                        List<Long> ids = new ArrayList<Long>();
-                        cursor = db.rawQuery(SQL_CHANGE_IDS_SINCE_LIMIT, args);
-                        while (cursor.moveToNext()) {
-                            ids.add(cursor.getLong(0));
-                            lastSequence = Math.max(lastSequence, cursor.getLong(1));
-                        }
-                        List<DocumentRevision> results = getDocumentsWithInternalIdsInQueue(db, ids);
-                        if(results.size() != ids.size()) {
-                            throw new IllegalStateException("The number of document does not match number of ids, " +
-                                    "something must be wrong here.");
-                        }
+                public Map<String, DocumentRevisionTree> call(SQLDatabase db) throws Exception {
+                    return getRevisionTreesInQueue(db, docIds, withContent);
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get revision trees of documents", e);
+            throw new DatastoreException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get revision trees of documents", e);
+            throw new DatastoreException(e);
+        }
+    }
 
-                        return new Changes(lastSequence, results);
-                    } catch (SQLException e) {
-                        throw new IllegalStateException("Error querying all changes since: " + verifiedSince + ", limit: " + limit, e);
-                    } finally {
-                        DatabaseUtils.closeCursorQuietly(cursor);
+    private DocumentRevisionTree getRevisionTreeOfDocumentInQueue(SQLDatabase db, String docId)
+            throws DatastoreException {
+        return singleTree(getRevisionTreesInQueue(db, Collections.singletonList(docId), false),
+                docId);
+    }
+
+    private DocumentRevisionTree getAllRevisionsOfDocumentInQueue(SQLDatabase db, String docId)
+            throws DatastoreException {
+        return singleTree(getRevisionTreesInQueue(db, Collections.singletonList(docId), true),
+                docId);
+    }
+
+    private static DocumentRevisionTree singleTree(Map<String, DocumentRevisionTree> trees,
+                                                   String docId) {
+        DocumentRevisionTree tree = trees.get(docId);
+        return tree != null ? tree : new DocumentRevisionTree();
+    }
+
+    /**
+     * Reads the revision trees of the documents, with or without the revisions'
+     * bodies and attachments.
+     */
+    private Map<String, DocumentRevisionTree> getRevisionTreesInQueue(SQLDatabase db,
+                                                                      Collection<String> docIds,
+                                                                      boolean withContent)
+            throws DatastoreException {
+        final String GET_REVISIONS_BY_DOC_IDS = "SELECT %1$s FROM revs, docs " +
+                "WHERE docs.docid IN ( %2$s ) AND revs.doc_id = docs.doc_id ORDER BY sequence ASC";
+
+        Map<String, DocumentRevisionTree> trees = new HashMap<String, DocumentRevisionTree>();
+
+        // Split into batches because of SQLite's limit on the number of placeholders.
+        List<String> uniqueIds = new ArrayList<String>(new LinkedHashSet<String>(docIds));
+        for (List<String> batch : Lists.partition(uniqueIds, SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String sql = String.format(GET_REVISIONS_BY_DOC_IDS,
+                    withContent ? FULL_DOCUMENT_COLS : REVISION_TREE_COLS,
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            String[] args = batch.toArray(new String[batch.size()]);
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery(sql, args);
+                List<DocumentRevision> revs;
+                if (withContent) {
+                    try {
+                        revs = getFullRevisionsFromCursor(db, cursor);
+                    } catch (AttachmentException e) {
+                        throw new DatastoreException("Could not read attachments for " +
+                                "DocumentRevisionTrees for ids: " + batch, e);
+                    }
+                } else {
+                    revs = new ArrayList<DocumentRevision>();
+                    for (DocumentRevisionBuilder builder :
+                            new RevisionRowMapper(cursor).mapRemainingRows()) {
+                        revs.add(builder.build());
                     }
                 }
-            }).get();
+                for (DocumentRevision rev : revs) {
+                    logger.finer("Rev: " + rev);
+                    // Rows are in sequence order, so a revision's parent is
+                    // always added to its tree before the revision.
+                    DocumentRevisionTree tree = trees.get(rev.getId());
+                    if (tree == null) {
+                        tree = new DocumentRevisionTree();
+                        trees.put(rev.getId(), tree);
+                    }
+                    tree.add(rev);
+                }
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "Error getting revision trees of documents", e);
+                throw new DatastoreException("Could not read DocumentRevisionTrees for ids: " +
+                        batch, e);
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
+            }
+        }
+        return trees;
+    }
+
+
+    @Override
+    public Changes changes(long since, final int limit) {
+        try {
+            return submitChanges(since, limit).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to get changes",e);
         } catch (ExecutionException e) {
@@ -510,6 +933,82 @@ public class DatastoreImpl implements Datastore {
 
     }
 
+    /**
+     * Reads the changes for {@link #changes(long, int)}.
+     */
+    ListenableFuture<Changes> submitChanges(long since, final int limit) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
+        final long verifiedSince = since >= 0 ? since : 0;
+
+        return queue.submitRead(new SQLQueueCallable<Changes>() {
+            @Override
+            public Changes call(SQLDatabase db) throws Exception {
+                String[] args = {Long.toString(verifiedSince), Long.toString(verifiedSince + limit)};
+                Cursor cursor = null;
+                try {
+                    Long lastSequence = verifiedSince;
+                    List<Long> ids = new ArrayList<Long>();
+                    cursor = db.rawQuery(SQL_CHANGE_IDS_SINCE_LIMIT, args);
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getLong(0));
+                        lastSequence = Math.max(lastSequence, cursor.getLong(1));
+                    }
+                    List<DocumentRevision> results = getDocumentsWithInternalIdsInQueue(db, ids);
+                    if(results.size() != ids.size()) {
+                        throw new IllegalStateException("The number of document does not match number of ids, " +
+                                "something must be wrong here.");
+                    }
+
+                    return new Changes(lastSequence, results);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Error querying all changes since: " + verifiedSince + ", limit: " + limit, e);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        });
+    }
+
+    @Override
+    public DocumentIterator iterateChanges(long since) {
+        return iterateChanges(since, ITERATOR_CHUNK_SIZE);
+    }
+
+    /**
+     * Iterates over the documents changed after {@code since}, reading the
+     * changes for {@code chunkSize} sequence numbers at a time.
+     * @see Datastore#iterateChanges(long)
+     */
+    public DocumentIterator iterateChanges(final long since, final int chunkSize) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        return new ChunkedDocumentIterator() {
+            private long lastSequence = Math.max(since, 0);
+
+            @Override
+            protected List<DocumentRevision> nextChunk() {
+                while (true) {
+                    Changes changes = changes(lastSequence, chunkSize);
+                    if (changes == null) {
+                        throw new IllegalStateException("Failed to get changes since " +
+                                lastSequence);
+                    }
+                    if (changes.size() > 0) {
+                        lastSequence = changes.getLastSequence();
+                        return changes.getResults();
+                    }
+                    // No changes in this range of sequence numbers, skip it unless
+                    // it reached the end.
+                    if (lastSequence + chunkSize >= getLastSequence()) {
+                        return Collections.emptyList();
+                    }
+                    lastSequence += chunkSize;
+                }
+            }
+        };
+    }
+
     /**
      * Get list of documents for given list of numeric ids. The result list is ordered by sequence number,
      * and only the current revisions are returned.
@@ -521,7 +1020,7 @@ public class DatastoreImpl implements Datastore {
         Preconditions.checkNotNull(docIds, "Input document internal id list cannot be null");
 
         try {
-            return queue.submit(new SQLQueueCallable<List<DocumentRevision>>() {
+            return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>() {
                 @Override
                 public List<DocumentRevision> call(SQLDatabase db) throws Exception {
                     return getDocumentsWithInternalIdsInQueue(db, docIds);
@@ -584,39 +1083,144 @@ public class DatastoreImpl implements Datastore {
 
     @Override
     public List<DocumentRevision> getAllDocuments(final int offset,final  int limit,final boolean descending) {
-        Preconditions.checkState(this.isOpen(), "Database is closed");
-        if (offset < 0) {
-            throw new IllegalArgumentException("offset must be >= 0");
-        }
+        try {
+            return submitGetAllDocuments(offset, limit, descending).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to get all documents",e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE,"Failed to get all documents",e);
+        }
+        return null;
+
+    }
+
+    /**
+     * Reads the documents for {@link #getAllDocuments(int, int, boolean)}.
+     */
+    ListenableFuture<List<DocumentRevision>> submitGetAllDocuments(final int offset,
+                                                                   final int limit,
+                                                                   final boolean descending) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must be >= 0");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must be >= 0");
+        }
+        return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>(){
+            @Override
+            public List<DocumentRevision> call(SQLDatabase db) throws Exception {
+                // Generate the SELECT statement, based on the options:
+                String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                                "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " +
+                                "ORDER BY docs.doc_id %1$s, revid DESC LIMIT %2$s OFFSET %3$s ",
+                        (descending ? "DESC" : "ASC"), limit, offset);
+                return getRevisionsFromRawQuery(db, sql, new String[]{});
+            }
+        });
+    }
+
+    @Override
+    public DocumentIterator iterateAllDocuments(boolean descending) {
+        return iterateAllDocuments(descending, ITERATOR_CHUNK_SIZE);
+    }
+
+    /**
+     * Iterates over all documents, reading {@code chunkSize} documents at a time.
+     * @see Datastore#iterateAllDocuments(boolean)
+     */
+    public DocumentIterator iterateAllDocuments(final boolean descending, final int chunkSize) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        return new ChunkedDocumentIterator() {
+            private long lastInternalId = descending ? Long.MAX_VALUE : 0;
+
+            @Override
+            protected List<DocumentRevision> nextChunk() {
+                List<DocumentRevision> chunk = getAllDocumentsAfter(lastInternalId, chunkSize,
+                        descending);
+                if (!chunk.isEmpty()) {
+                    lastInternalId = chunk.get(chunk.size() - 1).getInternalNumericId();
+                }
+                return chunk;
+            }
+        };
+    }
+
+    @Override
+    public List<DocumentRevision> getAllDocumentsAfter(final String afterDocumentId,
+                                                       final int limit,
+                                                       final boolean descending)
+            throws DocumentNotFoundException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
         if (limit < 0) {
             throw new IllegalArgumentException("limit must be >= 0");
         }
         try {
-            return queue.submit(new SQLQueueCallable<List<DocumentRevision>>(){
+            return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>() {
                 @Override
                 public List<DocumentRevision> call(SQLDatabase db) throws Exception {
-                    // Generate the SELECT statement, based on the options:
-                    String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
-                                    "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " +
-                                    "ORDER BY docs.doc_id %1$s, revid DESC LIMIT %2$s OFFSET %3$s ",
-                            (descending ? "DESC" : "ASC"), limit, offset);
-                    return getRevisionsFromRawQuery(db, sql, new String[]{});
+                    long after = descending ? Long.MAX_VALUE : 0;
+                    if (afterDocumentId != null) {
+                        after = getNumericIdInQueue(db, afterDocumentId);
+                        if (after < 0) {
+                            throw new DocumentNotFoundException(
+                                    "No document with id " + afterDocumentId);
+                        }
+                    }
+                    return getAllDocumentsAfter(db, after, limit, descending);
                 }
             }).get();
         } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to get all documents",e);
+            logger.log(Level.SEVERE, "Failed to get all documents", e);
+            throw new IllegalStateException("Interrupted while getting all documents", e);
         } catch (ExecutionException e) {
-            logger.log(Level.SEVERE,"Failed to get all documents",e);
+            if (e.getCause() instanceof DocumentNotFoundException) {
+                throw (DocumentNotFoundException) e.getCause();
+            }
+            logger.log(Level.SEVERE, "Failed to get all documents", e);
+            throw new IllegalStateException("Failed to get all documents", e.getCause());
         }
-        return null;
+    }
+
+    /**
+     * Returns up to {@code limit} current revisions of non-deleted documents, ordered
+     * by internal id, starting after the document with internal id {@code after}.
+     * Unlike an OFFSET, the start is found by a seek on the primary key.
+     */
+    private List<DocumentRevision> getAllDocumentsAfter(SQLDatabase db, long after, int limit,
+                                                        boolean descending)
+            throws AttachmentException, DocumentException, DatastoreException {
+        String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                        "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " +
+                        "AND docs.doc_id %1$s ? ORDER BY docs.doc_id %2$s LIMIT %3$d",
+                (descending ? "<" : ">"), (descending ? "DESC" : "ASC"), limit);
+        return getRevisionsFromRawQuery(db, sql, new String[]{Long.toString(after)});
+    }
 
+    private List<DocumentRevision> getAllDocumentsAfter(final long after, final int limit,
+                                                        final boolean descending) {
+        try {
+            return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>() {
+                @Override
+                public List<DocumentRevision> call(SQLDatabase db) throws Exception {
+                    return getAllDocumentsAfter(db, after, limit, descending);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get all documents", e);
+            throw new IllegalStateException("Interrupted while getting all documents", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get all documents", e);
+            throw new IllegalStateException("Failed to get all documents", e.getCause());
+        }
     }
 
     @Override
     public List<String> getAllDocumentIds() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new GetAllDocumentIdsCallable()).get();
+            return queue.submitRead(new GetAllDocumentIdsCallable()).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get all document ids",e);
         } catch (ExecutionException e) {
@@ -628,21 +1232,8 @@ public class DatastoreImpl implements Datastore {
     @Override
     public List<DocumentRevision> getDocumentsWithIds(final List<String> docIds)  throws
             DocumentException {
-        Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkNotNull(docIds, "Input document id list cannot be null");
         try {
-            return queue.submit(new SQLQueueCallable<List<DocumentRevision>>(){
-                @Override
-                public List<DocumentRevision> call(SQLDatabase db) throws Exception {
-                    String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs" +
-                            " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id " +
-                            " ORDER BY docs.doc_id ", DatabaseUtils.makePlaceholders(docIds.size()));
-                    String[] args = docIds.toArray(new String[docIds.size()]);
-                    List<DocumentRevision> docs = getRevisionsFromRawQuery(db,sql, args);
-                    // Sort in memory since seems not able to sort them using SQL
-                    return sortDocumentsAccordingToIdList(docIds, docs);
-                }
-            }).get();
+            return submitGetDocumentsWithIds(docIds).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to get documents with ids", e);
             throw new DocumentException("Failed to get documents with ids", e);
@@ -652,11 +1243,33 @@ public class DatastoreImpl implements Datastore {
         }
     }
 
+    /**
+     * Reads the documents for {@link #getDocumentsWithIds(List)}.
+     */
+    ListenableFuture<List<DocumentRevision>> submitGetDocumentsWithIds(
+            final List<String> docIds) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(docIds, "Input document id list cannot be null");
+        return queue.submitRead(new SQLQueueCallable<List<DocumentRevision>>(){
+            @Override
+            public List<DocumentRevision> call(SQLDatabase db) throws Exception {
+                String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs" +
+                        " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id " +
+                        " ORDER BY docs.doc_id ", DatabaseUtils.makePlaceholders(docIds.size()));
+                String[] args = docIds.toArray(new String[docIds.size()]);
+                List<DocumentRevision> docs = getRevisionsFromRawQuery(db,sql, args);
+                // Sort in memory since seems not able to sort them using SQL
+                return sortDocumentsAccordingToIdList(docIds, docs);
+            }
+        });
+    }
+
     public List<String> getPossibleAncestorRevisionIDs(final String docId,
                                                        final String revId,
                                                        final int limit) {
         try {
-            return queue.submit(new GetPossibleAncestorRevisionIdsCallable(docId, revId, limit)).get();
+            return queue.submitRead(new GetPossibleAncestorRevisionIdsCallable(docId, revId, limit),
+                    SQLDatabaseQueue.Priority.BACKGROUND).get();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
@@ -699,12 +1312,12 @@ public class DatastoreImpl implements Datastore {
     public LocalDocument getLocalDocument(final String docId) throws DocumentNotFoundException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new SQLQueueCallable<LocalDocument>(){
+            return queue.submitRead(new SQLQueueCallable<LocalDocument>(){
                 @Override
                 public LocalDocument call(SQLDatabase db) throws Exception {
                     return doGetLocalDocument(db, docId);
                 }
-            }).get();
+            }, SQLDatabaseQueue.Priority.INTERACTIVE).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get local document",e);
         } catch (ExecutionException e) {
@@ -758,7 +1371,7 @@ public class DatastoreImpl implements Datastore {
         }
         callable.deleted = false;
         callable.current = true;
-        callable.data = body.asBytes();
+        setRevisionBody(callable, body);
         callable.available = true;
         callable.call(db);
 
@@ -869,16 +1482,9 @@ public class DatastoreImpl implements Datastore {
         }
 
 
-        DocumentRevisionTree revisionTree;
-        try {
-            revisionTree = getAllRevisionsOfDocumentInQueue(db, docId);
-        } catch(AttachmentException e){
-            // we can't get load the document, due to an attachment error,
-            // throw an exception saying we couldn't find the document.
-            throw new DocumentNotFoundException(e);
-        }
+        DocumentRevisionTree revisionTree = getRevisionTreeOfDocumentInQueue(db, docId);
 
-         if (!revisionTree.leafRevisionIds().contains(prevRevId)) {
+        if (!revisionTree.leafRevisionIds().contains(prevRevId)) {
             throw new ConflictException("Document has newer revisions than the revision " +
                     "passed to delete; get the newest revision of the document and try again.");
         }
@@ -981,7 +1587,7 @@ public class DatastoreImpl implements Datastore {
             if (cursor.moveToFirst()) {
                 byte[] json = cursor.getBlob(0);
 
-                return new LocalDocument(docId, DocumentBodyImpl.bodyWith(json));
+                return new LocalDocument(docId, DocumentBodyImpl.bodyFromStorage(json));
             } else {
                 throw new DocumentNotFoundException(String.format("No local document found with id: %s", docId));
             }
@@ -999,13 +1605,7 @@ public class DatastoreImpl implements Datastore {
         Cursor cursor = null;
         try {
             cursor = db.rawQuery(sql, args);
-            while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = AttachmentManager.attachmentsForRevision(db,
-                        this.attachmentsDir, this.attachmentStreamFactory, sequence);
-                DocumentRevision row = getFullRevisionFromCurrentCursor(cursor, atts);
-                result.add(row);
-            }
+            result.addAll(getFullRevisionsFromCursor(db, cursor));
         } catch (SQLException e) {
            throw new DatastoreException(e);
         } finally {
@@ -1027,7 +1627,7 @@ public class DatastoreImpl implements Datastore {
     public String getPublicIdentifier() throws DatastoreException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         try {
-            return queue.submit(new SQLQueueCallable < String > () {
+            return queue.submitRead(new SQLQueueCallable < String > () {
                 @Override
                 public String call(SQLDatabase db) throws Exception {
                     Cursor cursor = null;
@@ -1238,6 +1838,9 @@ public class DatastoreImpl implements Datastore {
 
 
                         }
+                        pruneRevisionHistoryInQueue(db, item.rev.getId(),
+                                CouchUtils.generationFromRevId(item.rev.getRevision()));
+
                         if (ok) {
                             logger.log(Level.FINER, "Inserted revision: %s", item.rev);
                             if (documentCreated != null) {
@@ -1249,7 +1852,13 @@ public class DatastoreImpl implements Datastore {
                     }
                     return null;
                 }
-            }).get();
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+
+            List<String> docIds = new ArrayList<String>(items.size());
+            for (ForceInsertItem item : items) {
+                docIds.add(item.rev.getId());
+            }
+            invalidateCachedDocuments(docIds);
 
             // if we got here, everything got written to the database successfully
             // now raise any events we stored up
@@ -1323,15 +1932,22 @@ public class DatastoreImpl implements Datastore {
         Preconditions.checkNotNull(revisions, "Revision history should not be null.");
         Preconditions.checkArgument(revisions.size() > 0, "Revision history should have at least one revision." );
 
-        // do we have a common ancestor?
-        long ancestorSequence = getSequenceInQueue(db, newRevision.getId(), revisions.get(0));
+        // do we have a common ancestor? Look for the latest one, as the earlier
+        // revisions of the history may have been pruned from this datastore
+        int ancestor = -1;
+        for (int i = revisions.size() - 2; i >= 0 && ancestor == -1; i--) {
+            if (getSequenceInQueue(db, newRevision.getId(), revisions.get(i)) != -1) {
+                ancestor = i;
+            }
+        }
 
         long sequence;
 
-        if(ancestorSequence == -1) {
+        if(ancestor == -1) {
             sequence = insertDocumentHistoryToNewTree(db,newRevision, revisions, docNumericId);
         } else {
-            sequence = insertDocumentHistoryIntoExistingTree(db,newRevision, revisions, docNumericId, attachments);
+            sequence = insertDocumentHistoryIntoExistingTree(db,newRevision,
+                    revisions.subList(ancestor, revisions.size()), docNumericId, attachments);
         }
         return sequence;
     }
@@ -1369,7 +1985,7 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = parentSeq;
         callable.deleted = newRevision.isDeleted();
         callable.current = false; // we'll call pickWinnerOfConflicts to set this if it needs it
-        callable.data = newRevision.asBytes();
+        setRevisionBody(callable, newRevision.getBody());
         callable.available = true;
         long newLeafSeq = callable.call(db);
 
@@ -1419,7 +2035,7 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = parentSequence;
         callable.deleted = newRevision.isDeleted();
         callable.current = false; // we'll call pickWinnerOfConflicts to set this if it needs it
-        callable.data = newRevision.asBytes();
+        setRevisionBody(callable, newRevision.getBody());
         callable.available = !newRevision.isDeleted();
         long newLeafSeq = callable.call(db);
 
@@ -1525,12 +2141,73 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = parentSequence;
         callable.deleted = rev.isDeleted();
         callable.current = true;
-        callable.data = rev.getBody().asBytes();
+        setRevisionBody(callable, rev.getBody());
         callable.available = true;
         long sequence = callable.call(db);
         return sequence;
     }
 
+    /**
+     * Sets the body of the revision to be inserted, in the format bodies are
+     * currently stored in.
+     */
+    private void setRevisionBody(InsertRevisionCallable callable, DocumentBody body) {
+        if (body == null) {
+            callable.data = null;
+            callable.dataFormat = DocumentBodyFormat.JSON.code;
+            callable.dataDeflated = false;
+            return;
+        }
+        StoredBody stored = new StoredBody(body, bodyFormat, bodyCompressionThreshold);
+        callable.data = stored.data;
+        callable.dataFormat = stored.format.code;
+        callable.dataDeflated = stored.deflated;
+    }
+
+    /**
+     * Converts up to {@link #BODY_CONVERSION_BATCH_SIZE} revision bodies
+     * written after sequence {@code after} to {@code format}, compressing
+     * those at least {@code threshold} bytes long.
+     * @return the sequences of the revisions converted, in order
+     */
+    private static List<Long> convertDocumentBodiesInQueue(SQLDatabase db, long after,
+                                                           DocumentBodyFormat format,
+                                                           int threshold)
+            throws SQLException {
+        List<Long> sequences = new ArrayList<Long>();
+        List<DocumentBody> bodies = new ArrayList<DocumentBody>();
+        Cursor cursor = null;
+        try {
+            if (threshold == NO_BODY_COMPRESSION) {
+                cursor = db.rawQuery(GET_BODIES_TO_CONVERT, new String[]{Long.toString(after),
+                        Integer.toString(format.code),
+                        Integer.toString(BODY_CONVERSION_BATCH_SIZE)});
+            } else {
+                cursor = db.rawQuery(GET_BODIES_TO_CONVERT_AND_COMPRESS, new String[]{
+                        Long.toString(after), Integer.toString(format.code),
+                        Integer.toString(threshold),
+                        Integer.toString(BODY_CONVERSION_BATCH_SIZE)});
+            }
+            while (cursor.moveToNext()) {
+                sequences.add(cursor.getLong(0));
+                bodies.add(DocumentBodyImpl.bodyFromStorage(cursor.getBlob(1),
+                        DocumentBodyFormat.fromCode(cursor.getInt(2)), cursor.getInt(3) > 0));
+            }
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        for (int i = 0; i < sequences.size(); i++) {
+            StoredBody stored = new StoredBody(bodies.get(i), format, threshold);
+            ContentValues values = new ContentValues();
+            values.put("json", stored.data);
+            values.put("json_format", stored.format.code);
+            values.put("json_deflated", stored.deflated);
+            db.update("revs", values, "sequence=?", new String[]{sequences.get(i).toString()});
+        }
+        return sequences;
+    }
+
     private void changeDocumentToBeCurrent(SQLDatabase db, long sequence) {
         ContentValues args = new ContentValues();
         args.put("current", 1);
@@ -1551,18 +2228,37 @@ public class DatastoreImpl implements Datastore {
             queue.submit(new SQLQueueCallable<Object>() {
                 @Override
                 public Object call(SQLDatabase db) {
+                    // The revisions' attachments are deleted by a trigger, which
+                    // records the blobs no longer used by any attachment.
                     logger.finer("Deleting JSON of old revisions...");
                     ContentValues args = new ContentValues();
                     args.put("json", (String) null);
                     int i = db.update("revs", args, "current=0", null);
+                    return null;
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+
+            logger.finer("Deleting old attachments...");
+            while (purgeAttachments(ATTACHMENT_PURGE_BATCH_SIZE) == ATTACHMENT_PURGE_BATCH_SIZE) {
+                // each batch is a separate task, so other work can run between them
+            }
 
-                    logger.finer("Deleting old attachments...");
-                    AttachmentManager.purgeAttachments(db, attachmentsDir);
+            queue.submit(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
                     logger.finer("Vacuuming SQLite database...");
+                    // the VACUUM also converts databases created before incremental
+                    // vacuuming was enabled
+                    enableIncrementalVacuum(db);
                     db.compactDatabase();
                     return null;
                 }
-            }).get();
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+            // the bodies of cached revisions which are no longer current have gone
+            DocumentCache cache = documentCache;
+            if (cache != null) {
+                cache.invalidateAll();
+            }
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to compact database",e);
         } catch (ExecutionException e) {
@@ -1571,264 +2267,1248 @@ public class DatastoreImpl implements Datastore {
 
     }
 
-    @Override
-    public void close() {
-        queue.shutdown();
-        eventBus.post(new DatabaseClosed(datastoreName));
-
-    }
-
-    boolean isOpen() {
-        return !queue.isShutdown();
-    }
-
     /**
-     * Returns the subset of given the document id/revisions that are not stored in the database.
-     *
-     * The input revisions is a map, whose key is document id, and value is a list of revisions.
-     * An example input could be (in json format):
+     * <p>Compacts the database, like {@link #compact()}, as a series of short
+     * tasks at {@link SQLDatabaseQueue.Priority#BACKGROUND} priority rather
+     * than one long one, so the datastore can still be read and written while
+     * it runs.</p>
      *
-     * { "03ee06461a12f3c288bb865b22000170":
-     *     [
-     *       "1-b2e54331db828310f3c772d6e042ac9c",
-     *       "2-3a24009a9525bde9e4bfa8a99046b00d"
-     *     ],
-     *   "82e04f650661c9bdb88c57e044000a4b":
-     *     [
-     *       "3-bb39f8c740c6ffb8614c7031b46ac162"
-     *     ]
-     * }
+     * <p>The bodies of revisions which are no longer current are removed
+     * {@value #COMPACTION_BATCH_SIZE} sequence numbers at a time, then unused
+     * attachment files are deleted, then the database's free pages are
+     * returned to the file system {@value #VACUUM_BATCH_PAGES} at a time using
+     * SQLite's incremental vacuum. Databases created by older versions of
+     * this library need one call to {@link #compact()} before their pages can
+     * be freed this way; until then the free pages are reused by later
+     * writes.</p>
      *
-     * The output is in same format.
+     * <p>A {@link DatabaseCompactionProgress} event is posted after each task.
+     * This method blocks until the compaction is complete, and should be
+     * called on a background thread. Interrupting the thread, for example by
+     * cancelling a {@code Future} running this method, stops the compaction
+     * after the current task; calling this method again starts it again.</p>
      *
-     * @see <a href="http://wiki.apache.org/couchdb/HttpPostRevsDiff">HttpPostRevsDiff documentation</a>
-     * @param revisions a Multimap of document id → revision id
-     * @return a Map of document id → collection of revision id: the subset of given the document
-     * id/revisions that are not stored in the database
+     * @return true if the compaction completed, false if it was stopped by an
+     *         interrupt or the datastore being closed
+     * @throws DatastoreException if a compaction task failed
      */
-    public Map<String, Collection<String>> revsDiff(final Multimap<String, String> revisions) {
+    public boolean compactIncrementally() throws DatastoreException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkNotNull(revisions, "Input revisions must not be null");
-
+        if (compactionStopped()) {
+            return false;
+        }
         try {
-            return queue.submit(new SQLQueueCallable<Map<String,Collection<String>>>(){
+            final long lastSequence = getLastSequence();
+            long after = 0;
+            try {
+                while (after < lastSequence) {
+                    if (compactionStopped()) {
+                        return false;
+                    }
+                    final long from = after;
+                    final long to = Math.min(after + COMPACTION_BATCH_SIZE, lastSequence);
+                    runCompactionTask(new SQLQueueCallable<Object>() {
+                        @Override
+                        public Object call(SQLDatabase db) throws Exception {
+                            // The revisions' attachments are deleted by a trigger
+                            db.execSQL("UPDATE revs SET json = NULL WHERE sequence > ? " +
+                                    "AND sequence <= ? AND current = 0 AND json NOT NULL",
+                                    new Object[]{from, to});
+                            return null;
+                        }
+                    }, true);
+                    after = to;
+                    postCompactionProgress(DatabaseCompactionProgress.Stage.REMOVING_BODIES,
+                            after, lastSequence);
+                }
+            } finally {
+                // the bodies of cached revisions which are no longer current may have
+                // gone, even if the compaction stopped part way, and their attachment
+                // files are purged by this or a later compaction
+                DocumentCache cache = documentCache;
+                if (cache != null) {
+                    cache.invalidateAll();
+                }
+            }
+
+            int purged = 0;
+            int batch;
+            do {
+                if (compactionStopped()) {
+                    return false;
+                }
+                batch = runCompactionTask(new SQLQueueCallable<Integer>() {
+                    @Override
+                    public Integer call(SQLDatabase db) throws Exception {
+                        return AttachmentManager.purgeAttachments(db, attachmentsDir,
+                                ATTACHMENT_PURGE_BATCH_SIZE);
+                    }
+                }, true);
+                purged += batch;
+                postCompactionProgress(DatabaseCompactionProgress.Stage.PURGING_ATTACHMENTS,
+                        purged, -1);
+            } while (batch == ATTACHMENT_PURGE_BATCH_SIZE);
+
+            if (runCompactionTask(new SQLQueueCallable<Long>() {
                 @Override
-                public Map<String, Collection<String>> call(SQLDatabase db) throws Exception {
-                    Multimap<String, String> missingRevs = ArrayListMultimap.create();
-                    // Break the potentially big multimap into small ones so for each map,
-                    // a single query can be use to check if the <id, revision> pairs in sqlDb or not
-                    List<Multimap<String, String>> batches =
-                            multiMapPartitions(revisions, SQLITE_QUERY_PLACEHOLDERS_LIMIT);
-                    for(Multimap<String, String> batch : batches) {
-                        revsDiffBatch(db,batch);
-                        missingRevs.putAll(batch);
+                public Long call(SQLDatabase db) throws Exception {
+                    return longForPragma(db, "auto_vacuum");
+                }
+            }, false) == AUTO_VACUUM_INCREMENTAL) {
+                SQLQueueCallable<Long> freePages = new SQLQueueCallable<Long>() {
+                    @Override
+                    public Long call(SQLDatabase db) throws Exception {
+                        return longForPragma(db, "freelist_count");
                     }
-                    return missingRevs.asMap();
+                };
+                long total = runCompactionTask(freePages, false);
+                long remaining = total;
+                while (remaining > 0) {
+                    if (compactionStopped()) {
+                        return false;
+                    }
+                    remaining = runCompactionTask(new SQLQueueCallable<Long>() {
+                        @Override
+                        public Long call(SQLDatabase db) throws Exception {
+                            // incremental_vacuum frees one page per step, so step
+                            // through it rather than using execSQL
+                            Cursor cursor = null;
+                            try {
+                                cursor = db.rawQuery("PRAGMA incremental_vacuum(" +
+                                        VACUUM_BATCH_PAGES + ");", null);
+                                while (cursor.moveToNext()) {
+                                    // no rows
+                                }
+                            } finally {
+                                DatabaseUtils.closeCursorQuietly(cursor);
+                            }
+                            return longForPragma(db, "freelist_count");
+                        }
+                    }, false);
+                    postCompactionProgress(DatabaseCompactionProgress.Stage.VACUUMING,
+                            Math.max(total - remaining, 0), total);
                 }
-            }).get();
+            } else {
+                logger.info("Incremental vacuum is not enabled for " + datastoreName +
+                        ", call compact() to enable it");
+            }
+
+            postCompactionProgress(DatabaseCompactionProgress.Stage.COMPLETE, 0, 0);
+            return true;
         } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to do revsdiff",e);
-        } catch (ExecutionException e) {
-            logger.log(Level.SEVERE,"Failed to do revsdiff",e);
+            // let the caller see it was interrupted
+            Thread.currentThread().interrupt();
+            return false;
         }
-
-        return null;
     }
 
-    List<Multimap<String, String>> multiMapPartitions(
-            Multimap<String, String> revisions, int size) {
+    private boolean compactionStopped() {
+        return !isOpen() || Thread.currentThread().isInterrupted();
+    }
 
-        List<Multimap<String, String>> partitions = new ArrayList<Multimap<String, String>>();
-        Multimap<String, String> current = HashMultimap.create();
-        for(Map.Entry<String, String> e : revisions.entries()) {
-            current.put(e.getKey(), e.getValue());
-            // the query uses below (see revsDiffBatch())
-            // `multimap.size() + multimap.keySet().size()` placeholders
-            // and SQLite has limit on the number of placeholders on a single query.
-            if(current.size() + current.keySet().size() >= size) {
-                partitions.add(current);
-                current = HashMultimap.create();
+    private <T> T runCompactionTask(SQLQueueCallable<T> callable, boolean inTransaction)
+            throws InterruptedException, DatastoreException {
+        try {
+            if (inTransaction) {
+                return queue.submitTransaction(callable,
+                        SQLDatabaseQueue.Priority.BACKGROUND).get();
+            } else {
+                return queue.submit(callable, SQLDatabaseQueue.Priority.BACKGROUND).get();
             }
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to compact database", e);
+            throw new DatastoreException("Failed to compact database", e);
         }
-
-        if(current.size() > 0) {
-            partitions.add(current);
-        }
-
-        return partitions;
     }
 
-    /**
-     * Removes revisions present in the datastore from the input map.
-     *
-     * @param revisions an multimap from document id to set of revisions. The
-     *                  map is modified in place for performance consideration.
-     */
-    void revsDiffBatch(SQLDatabase db,Multimap<String, String> revisions) throws DatastoreException {
-
-        final String sql = String.format(
-                "SELECT docs.docid, revs.revid FROM docs, revs " +
-                "WHERE docs.doc_id = revs.doc_id AND docs.docid IN (%s) AND revs.revid IN (%s) " +
-                "ORDER BY docs.docid",
-                DatabaseUtils.makePlaceholders(revisions.keySet().size()),
-                DatabaseUtils.makePlaceholders(revisions.size()));
+    private void postCompactionProgress(DatabaseCompactionProgress.Stage stage, long done,
+                                        long total) {
+        eventBus.post(new DatabaseCompactionProgress(datastoreName, stage, done, total));
+    }
 
-        String[] args = new String[revisions.keySet().size() + revisions.size()];
-        String[] keys = revisions.keySet().toArray(new String[revisions.keySet().size()]);
-        String[] values = revisions.values().toArray(new String[revisions.size()]);
-        System.arraycopy(keys, 0, args, 0, revisions.keySet().size());
-        System.arraycopy(values, 0, args, revisions.keySet().size(), revisions.size());
+    private static void enableIncrementalVacuum(SQLDatabase db) throws SQLException {
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+    }
 
+    private static long longForPragma(SQLDatabase db, String pragma) throws SQLException {
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery(sql, args);
-            while (cursor.moveToNext()) {
-                String docId = cursor.getString(0);
-                String revId = cursor.getString(1);
-                revisions.remove(docId, revId);
-            }
-        } catch (SQLException e) {
-           throw new DatastoreException(e);
+            cursor = db.rawQuery("PRAGMA " + pragma + ";", null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
         } finally {
             DatabaseUtils.closeCursorQuietly(cursor);
         }
     }
 
-    public String extensionDataFolder(String extensionName) {
+    /**
+     * <p>Deletes up to {@code limit} attachment files which are no longer used
+     * by any revision, in one background task on the database queue.</p>
+     *
+     * <p>Attachments stop being used when compaction removes the bodies of
+     * old revisions, and their files are listed so they can be deleted without
+     * scanning every attachment. {@link #compact()} deletes all of them; this
+     * method lets an application delete them a few at a time instead, calling
+     * it until it returns less than {@code limit}.</p>
+     *
+     * @param limit the maximum number of files to delete
+     * @return the number of files deleted. A file which couldn't be deleted is
+     *         tried again after the others, so this is less than
+     *         {@code limit} if there are no more files or if some couldn't be
+     *         deleted.
+     */
+    public int purgeAttachments(final int limit) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkArgument(!Strings.isNullOrEmpty(extensionName),
-                "extension name cannot be null or empty");
-        return FilenameUtils.concat(this.extensionsDir, extensionName);
+        Preconditions.checkArgument(limit > 0, "Limit must be positive");
+        try {
+            return queue.submitTransaction(new SQLQueueCallable<Integer>() {
+                @Override
+                public Integer call(SQLDatabase db) {
+                    return AttachmentManager.purgeAttachments(db, attachmentsDir, limit);
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to purge attachments", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to purge attachments", e);
+        }
+        return 0;
     }
 
     @Override
-    public Iterator<String> getConflictedDocumentIds() {
-
-        // the "SELECT DISTINCT ..." subquery selects all the parent
-        // sequence, and so the outer "SELECT ..." practically selects
-        // all the leaf nodes. The "GROUP BY" and "HAVING COUNT(*) > 1"
-        // make sure only those document with more than one leafs are
-        // returned.
-        final String sql = "SELECT docs.docid, COUNT(*) FROM docs,revs " +
-                "WHERE revs.doc_id = docs.doc_id " +
-                "AND deleted = 0 AND revs.sequence NOT IN " +
-                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) " +
-                "GROUP BY docs.docid HAVING COUNT(*) > 1";
-
+    public void close() {
+        queue.shutdown();
+        eventBus.post(new DatabaseClosed(datastoreName));
+
+    }
+
+    boolean isOpen() {
+        return !queue.isShutdown();
+    }
+
+    /**
+     * Closes the database connections until they are next needed.
+     * @see SQLDatabaseQueue#releaseConnections()
+     */
+    void releaseConnections() {
+        queue.releaseConnections();
+    }
+
+    /**
+     * @return true unless the connections have been released and not yet reopened
+     */
+    boolean isActive() {
+        return queue.isActive();
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when this datastore was last used
+     */
+    long getLastUsed() {
+        return queue.getLastUsed();
+    }
+
+    void setConnectionListener(SQLDatabaseQueue.ConnectionListener listener) {
+        queue.setConnectionListener(listener);
+    }
+
+    /**
+     * <p>Prevents a {@link DatastoreManager} from closing this datastore's database
+     * connections while it is idle, until {@link #unpinConnections()} is called.</p>
+     *
+     * <p>Used by long running users of the datastore, such as replications, which
+     * would otherwise reopen the connections repeatedly.</p>
+     */
+    public void pinConnections() {
+        pins.incrementAndGet();
+    }
+
+    /**
+     * Reverses a call to {@link #pinConnections()}.
+     */
+    public void unpinConnections() {
+        pins.decrementAndGet();
+    }
+
+    /**
+     * @return true if {@link #pinConnections()} has been called more times than
+     *         {@link #unpinConnections()}
+     */
+    boolean isPinned() {
+        return pins.get() > 0;
+    }
+
+    /**
+     * <p>Returns a new executor for an extension, such as an index manager, to
+     * access its own database with.</p>
+     *
+     * <p>The executor runs tasks one at a time, always on the same thread. When
+     * this datastore uses a pool of threads shared with other datastores, it is
+     * the thread this datastore's own tasks run on, otherwise it is a new thread.
+     * The caller must shut the executor down when it is finished with it.</p>
+     *
+     * @return a serial executor for the extension's database tasks
+     */
+    public ExecutorService newExtensionExecutor() {
+        if (executors == null) {
+            return Executors.newSingleThreadExecutor();
+        }
+        return executors.executorFor(executorKey);
+    }
+
+    /**
+     * <p>Sets how long a write waits for other writes to join it in a single
+     * database transaction.</p>
+     *
+     * <p>Writes committed together share the cost of the commit, which increases
+     * throughput when many threads write concurrently at the expense of latency
+     * for individual writes. Each write succeeds or fails independently.</p>
+     *
+     * @param window how long to wait for other writes, zero to commit each write
+     *               in its own transaction
+     * @param unit the unit of {@code window}
+     * @see SQLDatabaseQueue#setGroupCommit(long, TimeUnit, int)
+     */
+    public void setGroupCommitWindow(long window, TimeUnit unit) {
+        queue.setGroupCommit(window, unit, SQLDatabaseQueue.DEFAULT_GROUP_COMMIT_SIZE);
+    }
+
+    /**
+     * <p>Sets the format the bodies of revisions subsequently written to this
+     * datastore are stored in. The default is {@link DocumentBodyFormat#JSON}.</p>
+     *
+     * <p>Revisions already in the datastore keep the format they were written in,
+     * and can still be read, until {@link #convertDocumentBodies()} is called.</p>
+     *
+     * <p>Versions of this library which don't support the format can't read
+     * bodies stored in it.</p>
+     *
+     * @param format the format to store bodies in
+     */
+    public void setDocumentBodyFormat(DocumentBodyFormat format) {
+        Preconditions.checkNotNull(format, "Document body format must not be null");
+        this.bodyFormat = format;
+    }
+
+    /**
+     * @return the format the bodies of revisions written to this datastore are stored in
+     * @see #setDocumentBodyFormat(DocumentBodyFormat)
+     */
+    public DocumentBodyFormat getDocumentBodyFormat() {
+        return bodyFormat;
+    }
+
+    /**
+     * <p>Sets the size, in bytes, from which the bodies of revisions subsequently
+     * written to this datastore are compressed. Bodies are stored compressed only
+     * if compressing them makes them smaller.</p>
+     *
+     * <p>Large bodies often compress to a fraction of their size, so more of them
+     * fit in SQLite's page cache and the database file is smaller, at the cost of
+     * decompressing them when they're read. Bodies are only decompressed when
+     * they're used, so reading a revision's metadata isn't slowed down. The
+     * default is {@link #NO_BODY_COMPRESSION}.</p>
+     *
+     * <p>Revisions already in the datastore are unchanged until
+     * {@link #convertDocumentBodies()} is called.</p>
+     *
+     * @param threshold the size from which bodies are compressed, in the format
+     *                  they're stored in, or {@link #NO_BODY_COMPRESSION}
+     */
+    public void setDocumentBodyCompressionThreshold(int threshold) {
+        Preconditions.checkArgument(threshold >= 0 || threshold == NO_BODY_COMPRESSION,
+                "Compression threshold must not be negative");
+        this.bodyCompressionThreshold = threshold;
+    }
+
+    /**
+     * @return the size from which the bodies of revisions written to this datastore
+     *      are compressed, or {@link #NO_BODY_COMPRESSION}
+     * @see #setDocumentBodyCompressionThreshold(int)
+     */
+    public int getDocumentBodyCompressionThreshold() {
+        return bodyCompressionThreshold;
+    }
+
+    /**
+     * <p>Sets the number of revisions kept on each branch of a document's
+     * revision tree, like CouchDB's {@code _revs_limit}. When a document is
+     * written to, including by replication and conflict resolution, revisions
+     * which are more than this number of revisions back from every leaf
+     * revision are deleted, so documents which are updated often don't build
+     * up an ever longer history. The oldest revision kept on a branch becomes
+     * the root of its tree. The default is {@link #NO_REVISIONS_LIMIT}.</p>
+     *
+     * <p>Documents which aren't written to keep their revisions until
+     * {@link #pruneRevisionHistories()} is called.</p>
+     *
+     * <p>A revision pulled from a remote database is added to the branch of the
+     * latest revision in its history this datastore still has. If it has none
+     * of them, the revision starts a new tree and the document is conflicted,
+     * so the limit should be larger than the number of times a document is
+     * updated between replications.</p>
+     *
+     * @param limit the number of revisions to keep on each branch, at least one,
+     *              or {@link #NO_REVISIONS_LIMIT}
+     */
+    public void setRevisionsLimit(int limit) {
+        Preconditions.checkArgument(limit > 0 || limit == NO_REVISIONS_LIMIT,
+                "Revisions limit must be positive");
+        this.revisionsLimit = limit;
+    }
+
+    /**
+     * @return the number of revisions kept on each branch of a document, or
+     *      {@link #NO_REVISIONS_LIMIT}
+     * @see #setRevisionsLimit(int)
+     */
+    public int getRevisionsLimit() {
+        return revisionsLimit;
+    }
+
+    /**
+     * <p>Sets the maximum amount of memory, in bytes, used to keep recently read
+     * revisions of documents, so reading them again with
+     * {@link #getDocument(String)} or {@link #getDocument(String, String)}
+     * doesn't need the database. The least recently read documents are dropped
+     * first when the cache is full. Zero, the default, turns the cache off.</p>
+     *
+     * <p>A document's revisions are dropped from the cache whenever it is written
+     * to by this datastore, including by replication, so reads always see the
+     * latest revisions. Changing the size empties the cache.</p>
+     *
+     * @param maximumSize the approximate maximum size of the cache in bytes, or zero
+     * @see #getDocumentCacheStats()
+     */
+    public void setDocumentCacheSize(long maximumSize) {
+        Preconditions.checkArgument(maximumSize >= 0, "Cache size must not be negative");
+        this.documentCache = maximumSize > 0 ? new DocumentCache(queue, maximumSize) : null;
+    }
+
+    /**
+     * @return the maximum size of the revision cache in bytes, zero if it is off
+     * @see #setDocumentCacheSize(long)
+     */
+    public long getDocumentCacheSize() {
+        DocumentCache cache = documentCache;
+        return cache != null ? cache.getMaximumSize() : 0;
+    }
+
+    /**
+     * @return the revision cache, or null if it is off
+     */
+    DocumentCache getDocumentCache() {
+        return documentCache;
+    }
+
+    /**
+     * <p>Returns the number of revisions read from the revision cache, the number
+     * read from the database because they weren't cached, and the number of
+     * documents dropped to keep the cache within its size, since the cache size
+     * was last set. Only the hit, miss and eviction counts are set.</p>
+     *
+     * @return statistics for the revision cache, all zero if it is off
+     * @see #setDocumentCacheSize(long)
+     */
+    public CacheStats getDocumentCacheStats() {
+        DocumentCache cache = documentCache;
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * <p>Converts the bodies of revisions already in the datastore to the format
+     * set by {@link #setDocumentBodyFormat(DocumentBodyFormat)}, compressing
+     * them as set by {@link #setDocumentBodyCompressionThreshold(int)}.</p>
+     *
+     * <p>Bodies which are already compressed are only decompressed if compression
+     * is turned off.</p>
+     *
+     * <p>Bodies are converted in batches, each in its own transaction at
+     * {@link SQLDatabaseQueue.Priority#BACKGROUND} priority, so other reads and
+     * writes are not held up. This method blocks until every body has been
+     * converted, and should be called on a background thread. It stops early,
+     * and can be called again later, if the settings are changed or the datastore
+     * is closed.</p>
+     *
+     * @return the number of revision bodies converted
+     * @throws DatastoreException if the bodies could not be converted
+     */
+    public int convertDocumentBodies() throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        final DocumentBodyFormat format = bodyFormat;
+        final int threshold = bodyCompressionThreshold;
+        int converted = 0;
+        long since = 0;
+        while (format == bodyFormat && threshold == bodyCompressionThreshold && isOpen()) {
+            final long after = since;
+            List<Long> batch;
+            try {
+                batch = queue.submitTransaction(new SQLQueueCallable<List<Long>>() {
+                    @Override
+                    public List<Long> call(SQLDatabase db) throws Exception {
+                        return convertDocumentBodiesInQueue(db, after, format, threshold);
+                    }
+                }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+            } catch (InterruptedException e) {
+                logger.log(Level.SEVERE, "Failed to convert document bodies", e);
+                throw new DatastoreException(e);
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Failed to convert document bodies", e);
+                throw new DatastoreException(e);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            converted += batch.size();
+            since = batch.get(batch.size() - 1);
+        }
+        return converted;
+    }
+
+    /**
+     * <p>Deletes the revisions of every document beyond the limit set by
+     * {@link #setRevisionsLimit(int)}. Only documents which haven't been
+     * written to since the limit was set, or lowered, have any.</p>
+     *
+     * <p>Documents are checked in batches, each in its own transaction at
+     * {@link SQLDatabaseQueue.Priority#BACKGROUND} priority, so other reads and
+     * writes are not held up. This method blocks until every document has been
+     * checked, and should be called on a background thread. It stops early, and
+     * can be called again later, if the limit is changed or the datastore is
+     * closed.</p>
+     *
+     * @return the number of documents whose revisions were pruned
+     * @throws DatastoreException if the revisions could not be deleted
+     */
+    public int pruneRevisionHistories() throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        final int limit = revisionsLimit;
+        if (limit == NO_REVISIONS_LIMIT) {
+            return 0;
+        }
+        int pruned = 0;
+        try {
+            long lastInternalId = queue.submit(new SQLQueueCallable<Long>() {
+                @Override
+                public Long call(SQLDatabase db) throws Exception {
+                    Cursor cursor = null;
+                    try {
+                        cursor = db.rawQuery("SELECT MAX(doc_id) FROM docs", null);
+                        return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+            long after = 0;
+            while (after < lastInternalId && limit == revisionsLimit && isOpen()) {
+                final long from = after;
+                final long to = Math.min(after + REVISION_PRUNING_BATCH_SIZE, lastInternalId);
+                List<String> prunedIds = queue.submitTransaction(
+                        new SQLQueueCallable<List<String>>() {
+                    @Override
+                    public List<String> call(SQLDatabase db) throws Exception {
+                        List<String> docIds = new ArrayList<String>();
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.rawQuery(GET_DOCUMENTS_TO_PRUNE, new String[]{
+                                    Long.toString(from), Long.toString(to),
+                                    Integer.toString(limit)});
+                            while (cursor.moveToNext()) {
+                                docIds.add(cursor.getString(0));
+                            }
+                        } finally {
+                            DatabaseUtils.closeCursorQuietly(cursor);
+                        }
+                        List<String> prunedIds = new ArrayList<String>();
+                        if (docIds.isEmpty()) {
+                            return prunedIds;
+                        }
+                        for (Map.Entry<String, DocumentRevisionTree> tree :
+                                getRevisionTreesInQueue(db, docIds, false).entrySet()) {
+                            if (pruneRevisionTreeInQueue(db, tree.getValue(), limit) > 0) {
+                                prunedIds.add(tree.getKey());
+                            }
+                        }
+                        return prunedIds;
+                    }
+                }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+                invalidateCachedDocuments(prunedIds);
+                pruned += prunedIds.size();
+                after = to;
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to prune revision histories", e);
+            throw new DatastoreException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to prune revision histories", e);
+            throw new DatastoreException(e);
+        }
+        return pruned;
+    }
+
+    /**
+     * Deletes a document's revisions beyond the revisions limit once a revision
+     * has been written to it. A branch can only be longer than the limit if the
+     * deepest revision written is deeper than it, and the document has more
+     * revisions than it, so the tree is only read if both are. A document which
+     * has been pruned before keeps generations above the limit, but only has
+     * more revisions once it needs pruning again.
+     *
+     * @param generation the generation of the deepest revision written
+     */
+    private void pruneRevisionHistoryInQueue(SQLDatabase db, String docId, int generation)
+            throws DatastoreException {
+        int limit = revisionsLimit;
+        if (limit == NO_REVISIONS_LIMIT || generation <= limit) {
+            return;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(COUNT_REVISIONS_OF_DOCUMENT, new String[]{docId});
+            if (!cursor.moveToFirst() || cursor.getLong(0) <= limit) {
+                return;
+            }
+        } catch (SQLException e) {
+            throw new DatastoreException("Failed to count revisions of " + docId, e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        pruneRevisionTreeInQueue(db, getRevisionTreeOfDocumentInQueue(db, docId), limit);
+    }
+
+    /**
+     * Deletes the revisions of a tree which aren't among the {@code limit}
+     * latest revisions of any branch. The parent of the oldest revision kept on
+     * a branch is set to null, making it a root, and the attachments of deleted
+     * revisions are deleted with them. The foreign keys' actions would do both,
+     * doing them here as well is defensive, so pruning never leaves a revision
+     * pointing at a deleted parent.
+     *
+     * @return the number of revisions deleted
+     */
+    private static int pruneRevisionTreeInQueue(SQLDatabase db, DocumentRevisionTree tree,
+                                                int limit) throws DatastoreException {
+        Set<Long> kept = new HashSet<Long>();
+        Set<Long> pruned = new HashSet<Long>();
+        for (DocumentRevision leaf : tree.leafRevisions()) {
+            List<DocumentRevision> path = tree.getPathForNode(leaf.getSequence());
+            for (int i = 0; i < path.size(); i++) {
+                (i < limit ? kept : pruned).add(path.get(i).getSequence());
+            }
+        }
+        pruned.removeAll(kept);
+        List<Long> sequences = new ArrayList<Long>(pruned);
+        for (List<Long> batch : Lists.partition(sequences, SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String placeholders = DatabaseUtils.makePlaceholders(batch.size());
+            Object[] args = batch.toArray();
+            try {
+                db.execSQL(String.format("UPDATE revs SET parent = NULL WHERE parent IN (%s)",
+                        placeholders), args);
+                // the trigger on attachments records the files no longer used
+                db.execSQL(String.format("DELETE FROM attachments WHERE sequence IN (%s)",
+                        placeholders), args);
+                db.execSQL(String.format("DELETE FROM revs WHERE sequence IN (%s)",
+                        placeholders), args);
+            } catch (SQLException e) {
+                throw new DatastoreException("Failed to delete revisions beyond the limit", e);
+            }
+        }
+        return sequences.size();
+    }
+
+    /**
+     * Returns the subset of given the document id/revisions that are not stored in the database.
+     *
+     * The input revisions is a map, whose key is document id, and value is a list of revisions.
+     * An example input could be (in json format):
+     *
+     * { "03ee06461a12f3c288bb865b22000170":
+     *     [
+     *       "1-b2e54331db828310f3c772d6e042ac9c",
+     *       "2-3a24009a9525bde9e4bfa8a99046b00d"
+     *     ],
+     *   "82e04f650661c9bdb88c57e044000a4b":
+     *     [
+     *       "3-bb39f8c740c6ffb8614c7031b46ac162"
+     *     ]
+     * }
+     *
+     * The output is in same format.
+     *
+     * @see <a href="http://wiki.apache.org/couchdb/HttpPostRevsDiff">HttpPostRevsDiff documentation</a>
+     * @param revisions a Multimap of document id → revision id
+     * @return a Map of document id → collection of revision id: the subset of given the document
+     * id/revisions that are not stored in the database
+     */
+    public Map<String, Collection<String>> revsDiff(final Multimap<String, String> revisions) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(revisions, "Input revisions must not be null");
+
         try {
-            return queue.submit(new SQLQueueCallable<Iterator<String>>() {
+            return queue.submitRead(new SQLQueueCallable<Map<String,Collection<String>>>(){
                 @Override
-                public Iterator<String> call(SQLDatabase db) throws Exception {
+                public Map<String, Collection<String>> call(SQLDatabase db) throws Exception {
+                    Multimap<String, String> missingRevs = ArrayListMultimap.create();
+                    // Break the potentially big multimap into small ones so for each map,
+                    // a single query can be use to check if the <id, revision> pairs in sqlDb or not
+                    List<Multimap<String, String>> batches =
+                            multiMapPartitions(revisions, SQLITE_QUERY_PLACEHOLDERS_LIMIT);
+                    for(Multimap<String, String> batch : batches) {
+                        revsDiffBatch(db,batch);
+                        missingRevs.putAll(batch);
+                    }
+                    return missingRevs.asMap();
+                }
+            }, SQLDatabaseQueue.Priority.BACKGROUND).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to do revsdiff",e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE,"Failed to do revsdiff",e);
+        }
+
+        return null;
+    }
+
+    List<Multimap<String, String>> multiMapPartitions(
+            Multimap<String, String> revisions, int size) {
+
+        List<Multimap<String, String>> partitions = new ArrayList<Multimap<String, String>>();
+        Multimap<String, String> current = HashMultimap.create();
+        for(Map.Entry<String, String> e : revisions.entries()) {
+            current.put(e.getKey(), e.getValue());
+            // the query uses below (see revsDiffBatch())
+            // `multimap.size() + multimap.keySet().size()` placeholders
+            // and SQLite has limit on the number of placeholders on a single query.
+            if(current.size() + current.keySet().size() >= size) {
+                partitions.add(current);
+                current = HashMultimap.create();
+            }
+        }
+
+        if(current.size() > 0) {
+            partitions.add(current);
+        }
+
+        return partitions;
+    }
+
+    /**
+     * Removes revisions present in the datastore from the input map.
+     *
+     * @param revisions an multimap from document id to set of revisions. The
+     *                  map is modified in place for performance consideration.
+     */
+    void revsDiffBatch(SQLDatabase db,Multimap<String, String> revisions) throws DatastoreException {
+
+        final String sql = String.format(
+                "SELECT docs.docid, revs.revid FROM docs, revs " +
+                "WHERE docs.doc_id = revs.doc_id AND docs.docid IN (%s) AND revs.revid IN (%s) " +
+                "ORDER BY docs.docid",
+                DatabaseUtils.makePlaceholders(revisions.keySet().size()),
+                DatabaseUtils.makePlaceholders(revisions.size()));
+
+        String[] args = new String[revisions.keySet().size() + revisions.size()];
+        String[] keys = revisions.keySet().toArray(new String[revisions.keySet().size()]);
+        String[] values = revisions.values().toArray(new String[revisions.size()]);
+        System.arraycopy(keys, 0, args, 0, revisions.keySet().size());
+        System.arraycopy(values, 0, args, revisions.keySet().size(), revisions.size());
+
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, args);
+            while (cursor.moveToNext()) {
+                String docId = cursor.getString(0);
+                String revId = cursor.getString(1);
+                revisions.remove(docId, revId);
+            }
+        } catch (SQLException e) {
+           throw new DatastoreException(e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    public String extensionDataFolder(String extensionName) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(extensionName),
+                "extension name cannot be null or empty");
+        return FilenameUtils.concat(this.extensionsDir, extensionName);
+    }
+
+    @Override
+    public Iterator<String> getConflictedDocumentIds() {
+        return getConflictedDocumentIds(ITERATOR_CHUNK_SIZE);
+    }
 
-                    List<String> conflicts = new ArrayList<String>();
+    /**
+     * Iterates over the IDs of the conflicted documents, reading
+     * {@code chunkSize} IDs at a time from the {@code conflicts} table, so
+     * listing them takes time proportional to the number of conflicted
+     * documents rather than the number of documents.
+     *
+     * <p>The iterator doesn't hold the database open between chunks, so
+     * conflicts can be resolved while iterating. A document which becomes
+     * conflicted during iteration is only returned if its chunk hasn't been
+     * read yet.</p>
+     *
+     * @see Datastore#getConflictedDocumentIds()
+     */
+    public Iterator<String> getConflictedDocumentIds(final int chunkSize) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        return new AbstractIterator<String>() {
+            private long lastInternalId = 0;
+            private Iterator<String> chunk = Collections.<String>emptyList().iterator();
+            private boolean lastChunk = false;
+
+            @Override
+            protected String computeNext() {
+                while (!chunk.hasNext()) {
+                    if (lastChunk) {
+                        return endOfData();
+                    }
+                    Map<Long, String> ids = getConflictedDocumentIdsChunk(lastInternalId,
+                            chunkSize);
+                    for (long internalId : ids.keySet()) {
+                        lastInternalId = internalId;
+                    }
+                    lastChunk = ids.size() < chunkSize;
+                    chunk = ids.values().iterator();
+                }
+                return chunk.next();
+            }
+        };
+    }
+
+    /**
+     * Reads up to {@code limit} conflicted document IDs, keyed and ordered by
+     * internal ID, for documents with internal IDs after {@code afterInternalId}.
+     */
+    private Map<Long, String> getConflictedDocumentIdsChunk(final long afterInternalId,
+                                                            final int limit) {
+        final String sql = String.format("SELECT conflicts.doc_id, docs.docid " +
+                "FROM conflicts, docs WHERE conflicts.doc_id = docs.doc_id " +
+                "AND conflicts.doc_id > ? ORDER BY conflicts.doc_id LIMIT %d", limit);
+        try {
+            return queue.submitRead(new SQLQueueCallable<Map<Long, String>>() {
+                @Override
+                public Map<Long, String> call(SQLDatabase db) throws Exception {
+                    Map<Long, String> ids = new LinkedHashMap<Long, String>();
                     Cursor cursor = null;
                     try {
-                        cursor = db.rawQuery(sql, new String[]{});
+                        cursor = db.rawQuery(sql, new String[]{Long.toString(afterInternalId)});
                         while (cursor.moveToNext()) {
-                            String docId = cursor.getString(0);
-                            conflicts.add(docId);
+                            ids.put(cursor.getLong(0), cursor.getString(1));
                         }
-                    }  catch (SQLException e) {
-                        logger.log(Level.SEVERE, "Error getting conflicted document: ", e);
-                        throw new DatastoreException(e);
                     } finally {
                         DatabaseUtils.closeCursorQuietly(cursor);
                     }
-                    return conflicts.iterator();
+                    return ids;
                 }
             }).get();
         } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to get conflicted document Ids",e);
+            logger.log(Level.SEVERE, "Failed to get conflicted document Ids", e);
+            throw new IllegalStateException("Interrupted while getting conflicted document Ids",
+                    e);
         } catch (ExecutionException e) {
             logger.log(Level.SEVERE, "Failed to get conflicted document Ids", e);
+            throw new IllegalStateException("Failed to get conflicted document Ids", e);
         }
-        return null;
-
     }
 
     @Override
     public void resolveConflictsForDocument(final String docId, final ConflictResolver resolver)
             throws ConflictException {
 
-        // before starting the tx, get the 'new winner' and see if we need to prepare its attachments
+        // before starting the tx, get the 'new winner' and see if we need to prepare its attachments
+
+
+        try {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
+                    DocumentRevisionTree docTree = getRevisionTreeOfDocumentInQueue(db, docId);
+                    if(!docTree.hasConflicts()) {
+                        return null;
+                    }
+                    // only the conflicting leaves are given to the resolver, so only
+                    // load their bodies and attachments
+                    List<DocumentRevision> conflicts = new ArrayList<DocumentRevision>();
+                    for (DocumentRevision leaf : docTree.leafRevisions(true)) {
+                        conflicts.add(getDocumentInQueue(db, docId, leaf.getRevision()));
+                    }
+                    DocumentRevision newWinner = null;
+                    try {
+                        newWinner = resolver.resolve(docId, conflicts);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "Exception when calling ConflictResolver", e);
+                    }
+                    if(newWinner == null) {
+                        // resolve() threw an exception or returned null, exit early
+                        return null;
+                    }
+
+                    if (newWinner.getRevision() == null) {
+                        throw new IllegalArgumentException("Winning revision must have a revision id");
+                    }
+
+                    // We need to work out which of the attachments for the revision are ones
+                    // we can copy over because they exist in the attachment store already and
+                    // which are new, that we need to prepare for insertion.
+                    List<PreparedAttachment> preparedNewAttachments = null;
+                    List<SavedAttachment> existingAttachments = null;
+                    if (isModified(newWinner)) {
+                        Collection<Attachment> attachments = newWinner.getAttachments() != null ? newWinner.getAttachments().values() : new ArrayList<Attachment>();
+                        preparedNewAttachments = AttachmentManager.prepareAttachments(
+                                attachmentsDir, attachmentStreamFactory,
+                                AttachmentManager.findNewAttachments(attachments));
+                        existingAttachments = AttachmentManager.findExistingAttachments(attachments);
+                    }
+                    resolveConflictsInQueue(db, docTree, newWinner, preparedNewAttachments,
+                            existingAttachments);
+                    return null;
+                }
+            }).get();
+            invalidateCachedDocuments(Collections.singletonList(docId));
+        } catch (InterruptedException e) {
+           logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to resolve Conflicts",e);
+            if(e.getCause() !=null){
+                if(e.getCause() instanceof  IllegalArgumentException){
+                    throw (IllegalArgumentException)e.getCause();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Makes {@code newWinner} the winning revision of the document, deleting the
+     * other non-deleted leaf revisions, and grafts it onto the tree as a new
+     * revision if it has been modified.
+     */
+    private void resolveConflictsInQueue(SQLDatabase db, DocumentRevisionTree docTree,
+                                         DocumentRevision newWinner,
+                                         List<PreparedAttachment> preparedNewAttachments,
+                                         List<SavedAttachment> existingAttachments)
+            throws AttachmentException, ConflictException, DocumentNotFoundException,
+            DatastoreException {
+        String revIdKeep = newWinner.getRevision();
+        int generation = 0;
+        for (DocumentRevision revision : docTree.leafRevisions()) {
+            if (revision.getRevision().equals(revIdKeep)) {
+                // this is the one we want to keep, set it to current
+                setCurrent(db, revision, true);
+            } else {
+                if (revision.isDeleted()) {
+                    // if it is deleted, just make it non-current
+                    setCurrent(db, revision, false);
+                } else {
+                    // if it's not deleted, deleted and make it non-current
+                    DocumentRevision deleted = deleteDocumentInQueue(db,
+                            revision.getId(), revision.getRevision());
+                    setCurrent(db, deleted, false);
+                    generation = Math.max(generation, deleted.getGeneration());
+                }
+            }
+        }
+
+        // if this is a new or modified revision: graft the new revision on
+        if (isModified(newWinner)) {
+            DocumentRevision updated = updateDocumentFromRevision(db, newWinner,
+                    preparedNewAttachments, existingAttachments);
+            generation = Math.max(generation, updated.getGeneration());
+        }
+        pruneRevisionHistoryInQueue(db, newWinner.getId(), generation);
+    }
+
+    private static boolean isModified(DocumentRevision revision) {
+        return revision.bodyModified ||
+                (revision.attachments != null && revision.attachments.hasChanged());
+    }
+
+    /**
+     * @see #resolveConflictsForDocuments(Iterator, ConflictResolver, ExecutorService)
+     */
+    public int resolveConflictsForDocuments(Iterator<String> docIds, ConflictResolver resolver)
+            throws DatastoreException {
+        return resolveConflictsForDocuments(docIds, resolver, null);
+    }
+
+    /**
+     * <p>Resolves the conflicts of many documents, such as those returned by
+     * {@link #getConflictedDocumentIds()}, with the same result as calling
+     * {@link #resolveConflictsForDocument(String, ConflictResolver)} for each
+     * one.</p>
+     *
+     * <p>The documents are resolved in chunks of
+     * {@value #CONFLICT_RESOLUTION_CHUNK_SIZE}. The conflicting revisions of a
+     * chunk's documents are read together, then passed to the resolver
+     * outside the database queue, then the resolutions are written in one
+     * transaction. A {@link DocumentUpdated} event is posted for each
+     * resolved document once its chunk has been committed.</p>
+     *
+     * <p>If a document's leaf revisions change between being read and the
+     * resolution being written, its resolution is discarded and it stays
+     * conflicted. Documents without conflicts are skipped. As for a single
+     * document, if the resolver throws an exception or returns {@code null}
+     * for a document, that document is left unchanged.</p>
+     *
+     * @param docIds the IDs of the documents to resolve
+     * @param resolver the resolver to call for each conflicted document
+     * @param resolverExecutor if not {@code null}, the executor the resolver
+     *                         is called on, so a chunk's documents can be
+     *                         resolved in parallel. Otherwise the resolver is
+     *                         called on this thread.
+     * @return the number of documents whose conflicts were resolved
+     * @throws DatastoreException if a chunk couldn't be read or written. The
+     *         chunks before it have already been committed.
+     * @throws IllegalArgumentException if the resolver returns a revision
+     *         without a revision ID. The chunks before it have already been
+     *         committed.
+     */
+    public int resolveConflictsForDocuments(Iterator<String> docIds, ConflictResolver resolver,
+                                            ExecutorService resolverExecutor)
+            throws DatastoreException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(docIds, "Document ID iterator cannot be null");
+        Preconditions.checkNotNull(resolver, "ConflictResolver cannot be null");
+
+        int resolved = 0;
+        List<String> chunk = new ArrayList<String>(CONFLICT_RESOLUTION_CHUNK_SIZE);
+        while (docIds.hasNext()) {
+            chunk.add(docIds.next());
+            if (chunk.size() == CONFLICT_RESOLUTION_CHUNK_SIZE || !docIds.hasNext()) {
+                resolved += resolveConflictsForChunk(chunk, resolver, resolverExecutor);
+                chunk.clear();
+            }
+        }
+        return resolved;
+    }
+
+    private int resolveConflictsForChunk(final List<String> docIds,
+                                         final ConflictResolver resolver,
+                                         ExecutorService resolverExecutor)
+            throws DatastoreException {
+        // Read the conflicting leaf revisions of every document in the chunk
+        final Map<String, List<DocumentRevision>> conflicts;
+        try {
+            conflicts = queue.submitRead(
+                    new SQLQueueCallable<Map<String, List<DocumentRevision>>>() {
+                @Override
+                public Map<String, List<DocumentRevision>> call(SQLDatabase db)
+                        throws Exception {
+                    return getConflictingRevisionsInQueue(db, docIds);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to read conflicted documents", e);
+            throw new DatastoreException("Interrupted while reading conflicted documents", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to read conflicted documents", e);
+            throw new DatastoreException("Failed to read conflicted documents", e);
+        }
+
+        // Call the resolver outside the database queue
+        final Map<String, DocumentRevision> winners = resolveConflicts(conflicts, resolver,
+                resolverExecutor);
+        if (winners.isEmpty()) {
+            return 0;
+        }
 
+        // As for bulk writes, new attachments are prepared outside the transaction
+        final Map<String, List<PreparedAttachment>> preparedNewAttachments =
+                new HashMap<String, List<PreparedAttachment>>();
+        final Map<String, List<SavedAttachment>> existingAttachments =
+                new HashMap<String, List<SavedAttachment>>();
+        for (Iterator<Map.Entry<String, DocumentRevision>> it = winners.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<String, DocumentRevision> winner = it.next();
+            DocumentRevision newWinner = winner.getValue();
+            if (newWinner.getRevision() == null) {
+                throw new IllegalArgumentException("Winning revision must have a revision id");
+            }
+            if (!isModified(newWinner)) {
+                continue;
+            }
+            Collection<Attachment> attachments = newWinner.getAttachments() != null
+                    ? newWinner.getAttachments().values() : new ArrayList<Attachment>();
+            try {
+                preparedNewAttachments.put(winner.getKey(), AttachmentManager.prepareAttachments(
+                        attachmentsDir, attachmentStreamFactory,
+                        AttachmentManager.findNewAttachments(attachments)));
+                existingAttachments.put(winner.getKey(),
+                        AttachmentManager.findExistingAttachments(attachments));
+            } catch (AttachmentException e) {
+                logger.log(Level.WARNING, "Failed to prepare attachments to resolve conflicts " +
+                        "for document " + winner.getKey(), e);
+                it.remove();
+            }
+        }
 
+        final List<DocumentModified> events = new ArrayList<DocumentModified>(winners.size());
         try {
             queue.submitTransaction(new SQLQueueCallable<Object>() {
                 @Override
                 public Object call(SQLDatabase db) throws Exception {
-                    DocumentRevisionTree docTree = getAllRevisionsOfDocumentInQueue(db, docId);
-                    if(!docTree.hasConflicts()) {
-                        return null;
-                    }
-                    DocumentRevision newWinner = null;
-                    try {
-                        newWinner = resolver.resolve(docId, docTree.leafRevisions(true));
-                    } catch (Exception e) {
-                        logger.log(Level.SEVERE, "Exception when calling ConflictResolver", e);
-                    }
-                    if(newWinner == null) {
-                        // resolve() threw an exception or returned null, exit early
-                        return null;
-                    }
-
-                        String revIdKeep = newWinner.getRevision();
-                        if (revIdKeep == null) {
-                            throw new IllegalArgumentException("Winning revision must have a revision id");
+                    Map<String, DocumentRevisionTree> trees = getRevisionTreesInQueue(db,
+                            winners.keySet(), false);
+                    for (Map.Entry<String, DocumentRevision> winner : winners.entrySet()) {
+                        String docId = winner.getKey();
+                        DocumentRevisionTree docTree = singleTree(trees, docId);
+                        if (!sameRevisions(docTree.leafRevisions(true), conflicts.get(docId))) {
+                            logger.info(String.format("Leaf revisions of document %s changed " +
+                                    "while resolving its conflicts, not resolved", docId));
+                            continue;
                         }
-
-                        for(DocumentRevision revision : docTree.leafRevisions()) {
-                            if(revision.getRevision().equals(revIdKeep)) {
-                                // this is the one we want to keep, set it to current
-                                setCurrent(db, revision, true);
-                            } else {
-                                if (revision.isDeleted()) {
-                                    // if it is deleted, just make it non-current
-                                    setCurrent(db, revision, false);
-                                } else {
-                                    // if it's not deleted, deleted and make it non-current
-                                    DocumentRevision deleted = deleteDocumentInQueue(db,
-                                            revision.getId(), revision.getRevision());
-                                    setCurrent(db, deleted, false);
-                                }
+                        DocumentRevision previous = docTree.getCurrentRevision();
+                        for (DocumentRevision conflict : conflicts.get(docId)) {
+                            if (conflict.getRevision().equals(previous.getRevision())) {
+                                previous = conflict;
                             }
                         }
-
-                        // if this is a new or modified revision: graft the new revision on
-                        if (newWinner.bodyModified || (newWinner.attachments != null && newWinner.attachments.hasChanged())) {
-
-                            // We need to work out which of the attachments for the revision are ones
-                            // we can copy over because they exist in the attachment store already and
-                            // which are new, that we need to prepare for insertion.
-                            Collection<Attachment> attachments = newWinner.getAttachments() != null ? newWinner.getAttachments().values() : new ArrayList<Attachment>();
-                            final List<PreparedAttachment> preparedNewAttachments =
-                                    AttachmentManager.prepareAttachments(attachmentsDir,
-                                            attachmentStreamFactory,
-                                            AttachmentManager.findNewAttachments(attachments));
-                            final List<SavedAttachment> existingAttachments =
-                                    AttachmentManager.findExistingAttachments(attachments);
-
-                            updateDocumentFromRevision(db, newWinner,
-                                    preparedNewAttachments,
-                                    existingAttachments);
+                        SQLDatabase savepoint = new SavepointSQLDatabase(db, BULK_WRITE_SAVEPOINT);
+                        savepoint.beginTransaction();
+                        try {
+                            resolveConflictsInQueue(savepoint, docTree, winner.getValue(),
+                                    preparedNewAttachments.get(docId),
+                                    existingAttachments.get(docId));
+                            events.add(new DocumentUpdated(previous,
+                                    getDocumentInQueue(savepoint, docId, null)));
+                            savepoint.setTransactionSuccessful();
+                        } catch (DocumentException e) {
+                            logger.log(Level.WARNING, "Failed to resolve conflicts for " +
+                                    "document " + docId, e);
+                        } finally {
+                            savepoint.endTransaction();
                         }
-
-
-                        
+                    }
                     return null;
                 }
             }).get();
         } catch (InterruptedException e) {
-           logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
+            logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
+            throw new DatastoreException("Interrupted while resolving conflicts", e);
         } catch (ExecutionException e) {
-            logger.log(Level.SEVERE, "Failed to resolve Conflicts",e);
-            if(e.getCause() !=null){
-                if(e.getCause() instanceof  IllegalArgumentException){
-                    throw (IllegalArgumentException)e.getCause();
+            logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
+            throw new DatastoreException("Failed to resolve conflicts", e);
+        }
+
+        List<String> resolvedIds = new ArrayList<String>(events.size());
+        for (DocumentModified event : events) {
+            resolvedIds.add(event.newDocument.getId());
+        }
+        invalidateCachedDocuments(resolvedIds);
+
+        for (DocumentModified event : events) {
+            eventBus.post(event);
+        }
+        return events.size();
+    }
+
+    /**
+     * Reads the non-deleted leaf revisions, with their bodies and attachments,
+     * of those documents which have more than one, in the order
+     * {@link #resolveConflictsForDocument(String, ConflictResolver)} passes
+     * them to a resolver.
+     */
+    private Map<String, List<DocumentRevision>> getConflictingRevisionsInQueue(
+            SQLDatabase db, List<String> docIds) throws AttachmentException, DocumentException,
+            DatastoreException {
+        final String GET_LEAFS_BY_DOC_IDS = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                "WHERE docs.docid IN ( %s ) AND revs.doc_id = docs.doc_id " +
+                "AND leaf = 1 AND deleted = 0";
+
+        Map<String, List<DocumentRevision>> conflicts =
+                new LinkedHashMap<String, List<DocumentRevision>>();
+        Map<String, DocumentRevisionTree> trees = getRevisionTreesInQueue(db, docIds, false);
+        List<String> conflictedIds = new ArrayList<String>();
+        for (String docId : new LinkedHashSet<String>(docIds)) {
+            DocumentRevisionTree tree = trees.get(docId);
+            if (tree != null && tree.hasConflicts()) {
+                conflictedIds.add(docId);
+            }
+        }
+
+        Map<String, DocumentRevision> leafs = new HashMap<String, DocumentRevision>();
+        for (List<String> batch : Lists.partition(conflictedIds,
+                SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String sql = String.format(GET_LEAFS_BY_DOC_IDS,
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            for (DocumentRevision leaf : getRevisionsFromRawQuery(db, sql,
+                    batch.toArray(new String[batch.size()]))) {
+                leafs.put(leaf.getId() + "/" + leaf.getRevision(), leaf);
+            }
+        }
+
+        for (String docId : conflictedIds) {
+            List<DocumentRevision> revisions = new ArrayList<DocumentRevision>();
+            for (DocumentRevision leaf : trees.get(docId).leafRevisions(true)) {
+                revisions.add(leafs.get(docId + "/" + leaf.getRevision()));
+            }
+            conflicts.put(docId, revisions);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Calls the resolver for each document, on the executor if there is one.
+     * @return the new winning revisions, by document ID, of the documents the
+     *         resolver returned a revision for
+     */
+    private Map<String, DocumentRevision> resolveConflicts(
+            Map<String, List<DocumentRevision>> conflicts, final ConflictResolver resolver,
+            ExecutorService resolverExecutor) throws DatastoreException {
+        Map<String, Future<DocumentRevision>> futures =
+                new LinkedHashMap<String, Future<DocumentRevision>>();
+        Map<String, DocumentRevision> winners = new LinkedHashMap<String, DocumentRevision>();
+        for (final Map.Entry<String, List<DocumentRevision>> entry : conflicts.entrySet()) {
+            if (resolverExecutor != null) {
+                futures.put(entry.getKey(), resolverExecutor.submit(
+                        new Callable<DocumentRevision>() {
+                            @Override
+                            public DocumentRevision call() throws Exception {
+                                return resolver.resolve(entry.getKey(), entry.getValue());
+                            }
+                        }));
+                continue;
+            }
+            try {
+                DocumentRevision newWinner = resolver.resolve(entry.getKey(), entry.getValue());
+                if (newWinner != null) {
+                    winners.put(entry.getKey(), newWinner);
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception when calling ConflictResolver", e);
+            }
+        }
+        for (Map.Entry<String, Future<DocumentRevision>> future : futures.entrySet()) {
+            try {
+                DocumentRevision newWinner = future.getValue().get();
+                if (newWinner != null) {
+                    winners.put(future.getKey(), newWinner);
                 }
+            } catch (InterruptedException e) {
+                throw new DatastoreException("Interrupted while resolving conflicts", e);
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Exception when calling ConflictResolver", e);
             }
         }
+        return winners;
+    }
 
+    private static boolean sameRevisions(List<DocumentRevision> revisions,
+                                         List<DocumentRevision> others) {
+        Set<String> revIds = new HashSet<String>();
+        for (DocumentRevision revision : revisions) {
+            revIds.add(revision.getRevision());
+        }
+        Set<String> otherRevIds = new HashSet<String>();
+        for (DocumentRevision revision : others) {
+            otherRevIds.add(revision.getRevision());
+        }
+        return revIds.equals(otherRevIds);
     }
 
     private String insertNewWinnerRevision(SQLDatabase db,DocumentBody newWinner,
@@ -1842,7 +3522,7 @@ public class DatastoreImpl implements Datastore {
         callable.parentSequence = oldWinner.getSequence();
         callable.deleted = false;
         callable.current = true;
-        callable.data = newWinner.asBytes();
+        setRevisionBody(callable, newWinner);
         callable.available = true;
         callable.call(db);
 
@@ -1856,36 +3536,27 @@ public class DatastoreImpl implements Datastore {
         db.update("revs", updateContent, "sequence=?", whereArgs);
     }
 
-    private static DocumentRevision getFullRevisionFromCurrentCursor(Cursor cursor,
-                                                                          List<? extends Attachment> attachments) {
-        String docId = cursor.getString(cursor.getColumnIndex("docid"));
-        long internalId = cursor.getLong(cursor.getColumnIndex("doc_id"));
-        String revId = cursor.getString(cursor.getColumnIndex("revid"));
-        long sequence = cursor.getLong(cursor.getColumnIndex("sequence"));
-        byte[] json = cursor.getBlob(cursor.getColumnIndex("json"));
-        boolean current = cursor.getInt(cursor.getColumnIndex("current")) > 0;
-        boolean deleted = cursor.getInt(cursor.getColumnIndex("deleted")) > 0;
-
-        long parent = -1L;
-        if(cursor.columnType(cursor.getColumnIndex("parent")) == Cursor.FIELD_TYPE_INTEGER) {
-            parent = cursor.getLong(cursor.getColumnIndex("parent"));
-        } else if(cursor.columnType(cursor.getColumnIndex("parent")) == Cursor.FIELD_TYPE_NULL) {
-        } else {
-            throw new RuntimeException("Unexpected type: " + cursor.columnType(cursor.getColumnIndex("parent")));
+    /**
+     * Builds revisions from the remaining rows of a cursor over {@code FULL_DOCUMENT_COLS},
+     * reading the attachments for all the rows together.
+     */
+    private List<DocumentRevision> getFullRevisionsFromCursor(SQLDatabase db, Cursor cursor)
+            throws AttachmentException {
+        RevisionRowMapper mapper = new RevisionRowMapper(cursor);
+        List<Long> sequences = new ArrayList<Long>();
+        List<DocumentRevisionBuilder> builders = new ArrayList<DocumentRevisionBuilder>();
+        while (cursor.moveToNext()) {
+            sequences.add(mapper.sequence());
+            builders.add(mapper.mapRow());
         }
 
-        DocumentRevisionBuilder builder = new DocumentRevisionBuilder()
-                .setDocId(docId)
-                .setRevId(revId)
-                .setBody(DocumentBodyImpl.bodyWith(json))
-                .setDeleted(deleted)
-                .setSequence(sequence)
-                .setInternalId(internalId)
-                .setCurrent(current)
-                .setParent(parent)
-                .setAttachments(attachments);
-
-        return builder.build();
+        Map<Long, List<SavedAttachment>> attachments = AttachmentManager.attachmentsForRevisions(
+                db, this.attachmentsDir, this.attachmentStreamFactory, sequences);
+        List<DocumentRevision> revisions = new ArrayList<DocumentRevision>(builders.size());
+        for (int i = 0; i < builders.size(); i++) {
+            revisions.add(builders.get(i).setAttachments(attachments.get(sequences.get(i))).build());
+        }
+        return revisions;
     }
 
     /**
@@ -1923,14 +3594,14 @@ public class DatastoreImpl implements Datastore {
      */
     public Attachment getAttachment(final String id, final String rev, final String attachmentName) {
         try {
-            return queue.submit(new SQLQueueCallable<Attachment>() {
+            return queue.submitRead(new SQLQueueCallable<Attachment>() {
                 @Override
                 public Attachment call(SQLDatabase db) throws Exception {
                     long sequence = getSequenceInQueue(db, id, rev);
                     return AttachmentManager.getAttachment(db, attachmentsDir,
                             attachmentStreamFactory, sequence, attachmentName);
                 }
-            }).get();
+            }, SQLDatabaseQueue.Priority.INTERACTIVE).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get attachment",e);
         } catch (ExecutionException e) {
@@ -1952,7 +3623,7 @@ public class DatastoreImpl implements Datastore {
      */
     public List<? extends Attachment> attachmentsForRevision(final DocumentRevision rev) throws AttachmentException {
         try {
-            return queue.submit(new SQLQueueCallable<List<? extends Attachment>>(){
+            return queue.submitRead(new SQLQueueCallable<List<? extends Attachment>>(){
 
                 @Override
                 public List<? extends Attachment> call(SQLDatabase db) throws Exception {
@@ -1971,6 +3642,44 @@ public class DatastoreImpl implements Datastore {
     }
 
 
+    /**
+     * <p>Returns versions of this datastore's main methods which return futures
+     * rather than waiting for the database.</p>
+     *
+     * <p>Operations started through it are queued and run in the same way as
+     * those started by this datastore's own methods, but the calling thread
+     * isn't blocked while they wait to run, so a few threads can have many
+     * operations in progress.</p>
+     *
+     * <p>The events for writes started through it are posted on a thread
+     * belonging to the returned view, one at a time in the order the writes
+     * completed, never on a database thread. Use {@link #async(Executor)} to
+     * choose the thread.</p>
+     *
+     * @return the non-blocking view of this datastore
+     */
+    public AsyncDatastore async() {
+        return async;
+    }
+
+    /**
+     * <p>Returns versions of this datastore's main methods which return futures
+     * rather than waiting for the database, see {@link #async()}.</p>
+     *
+     * <p>The work done after each write completes, such as posting its event, is
+     * run on {@code executor}, so callbacks added to the futures for writes with
+     * a same-thread executor also run there. An executor which runs tasks one at
+     * a time keeps the events in the order the writes completed. If the executor
+     * rejects a task, the future for that write never completes.</p>
+     *
+     * @param executor runs the work done after each write
+     * @return a non-blocking view of this datastore
+     */
+    public AsyncDatastore async(Executor executor) {
+        Preconditions.checkNotNull(executor, "Executor must not be null");
+        return new AsyncDatastoreImpl(this, executor);
+    }
+
     @Override
     public EventBus getEventBus() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
@@ -1980,6 +3689,26 @@ public class DatastoreImpl implements Datastore {
     @Override
     public DocumentRevision createDocumentFromRevision(final DocumentRevision rev)
             throws DocumentException {
+        ListenableFuture<DocumentRevision> future = submitCreateDocument(rev);
+        try {
+            return documentCreated(future.get());
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to create document",e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE,"Failed to create document",e);
+            throw new DocumentException(e);
+        }
+        return null;
+
+    }
+
+    /**
+     * Writes the revision for {@link #createDocumentFromRevision(DocumentRevision)}.
+     * Once the future completes, {@link #documentCreated(DocumentRevision)} must
+     * be called with its result.
+     */
+    ListenableFuture<DocumentRevision> submitCreateDocument(final DocumentRevision rev)
+            throws AttachmentException {
         Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
         Preconditions.checkState(isOpen(), "Datastore is closed");
         Preconditions.checkArgument(rev.getRevision() == null, "Revision ID must be null for new DocumentRevisions");
@@ -2003,42 +3732,57 @@ public class DatastoreImpl implements Datastore {
         final List<SavedAttachment> existingAttachments =
                 AttachmentManager.findExistingAttachments(attachments);
 
-        DocumentRevision created = null;
-        try {
-            created = queue.submitTransaction(new SQLQueueCallable<DocumentRevision>(){
-                @Override
-                public DocumentRevision call(SQLDatabase db) throws Exception {
+        return queue.submitTransaction(new SQLQueueCallable<DocumentRevision>(){
+            @Override
+            public DocumentRevision call(SQLDatabase db) throws Exception {
 
-                        // Save document with new JSON body, add new attachments and copy over existing attachments
-                    DocumentRevision saved = createDocumentBody(db, docId, rev.getBody());
-                        AttachmentManager.addAttachmentsToRevision(db, attachmentsDir, saved, preparedNewAttachments);
-                        AttachmentManager.copyAttachmentsToRevision(db, existingAttachments, saved);
+                // Save document with new JSON body, add new attachments and copy over existing attachments
+                DocumentRevision saved = createDocumentBody(db, docId, rev.getBody());
+                AttachmentManager.addAttachmentsToRevision(db, attachmentsDir, saved, preparedNewAttachments);
+                AttachmentManager.copyAttachmentsToRevision(db, existingAttachments, saved);
+                // a document can be created again on top of its deleted revision
+                pruneRevisionHistoryInQueue(db, docId, saved.getGeneration());
 
-                        // now re-fetch the revision with updated attachments
-                    DocumentRevision updatedWithAttachments = getDocumentInQueue(db,
-                                saved.getId(), saved.getRevision());
-                        return updatedWithAttachments;
-                }
-            }).get();
-            return created;
-        } catch (InterruptedException e) {
-            logger.log(Level.SEVERE,"Failed to create document",e);
-        } catch (ExecutionException e) {
-            logger.log(Level.SEVERE,"Failed to create document",e);
-            throw new DocumentException(e);
-        }finally {
-            if(created != null){
-                eventBus.post(new DocumentCreated(created));
+                // now re-fetch the revision with updated attachments
+                return getDocumentInQueue(db, saved.getId(), saved.getRevision());
             }
-        }
-        return null;
+        });
+    }
 
+    /**
+     * Called once a new document has been committed to drop it from the revision
+     * cache and post its event.
+     */
+    DocumentRevision documentCreated(DocumentRevision created) {
+        invalidateCachedDocuments(Collections.singletonList(created.getId()));
+        eventBus.post(new DocumentCreated(created));
+        return created;
     }
 
     @Override
     public DocumentRevision updateDocumentFromRevision(final DocumentRevision rev)
             throws DocumentException {
+        ListenableFuture<DocumentUpdated> future = submitUpdateDocument(rev);
+        try {
+            return documentUpdated(future.get());
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to update document", e);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to updated document", e);
+            throw new DocumentException(e);
+        }
+
+    }
 
+    /**
+     * Writes the revision for {@link #updateDocumentFromRevision(DocumentRevision)},
+     * returning the event for the update, which has the revisions before and
+     * after it. Once the future completes, {@link #documentUpdated(DocumentUpdated)}
+     * must be called with its result.
+     */
+    ListenableFuture<DocumentUpdated> submitUpdateDocument(final DocumentRevision rev)
+            throws AttachmentException {
         Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
         Preconditions.checkState(isOpen(),"Datastore is closed");
         Preconditions.checkArgument(rev.isFullRevision(), "Projected revisions cannot be used to create documents");
@@ -2054,28 +3798,28 @@ public class DatastoreImpl implements Datastore {
         final List<SavedAttachment> existingAttachments =
                 AttachmentManager.findExistingAttachments(attachments);
 
-        try {
-            DocumentRevision revision = queue.submitTransaction(new SQLQueueCallable<DocumentRevision>(){
-                @Override
-                public DocumentRevision call(SQLDatabase db) throws Exception {
-                    return updateDocumentFromRevision(db,
-                            rev, preparedNewAttachments, existingAttachments);
-                }
-            }).get();
-
-            if (revision != null) {
-                eventBus.post(new DocumentUpdated(getDocument(rev.getId(), rev.getRevision()),revision));
+        return queue.submitTransaction(new SQLQueueCallable<DocumentUpdated>(){
+            @Override
+            public DocumentUpdated call(SQLDatabase db) throws Exception {
+                DocumentRevision updated = updateDocumentFromRevision(db,
+                        rev, preparedNewAttachments, existingAttachments);
+                // the previous revision as it is after the update, no longer current
+                DocumentUpdated event = new DocumentUpdated(getDocumentInQueue(db, rev.getId(),
+                        rev.getRevision()), updated);
+                pruneRevisionHistoryInQueue(db, rev.getId(), updated.getGeneration());
+                return event;
             }
+        });
+    }
 
-            return revision;
-        } catch (InterruptedException e) {
-            logger.log(Level.SEVERE, "Failed to update document", e);
-            throw new RuntimeException(e);
-        } catch (ExecutionException e) {
-            logger.log(Level.SEVERE, "Failed to updated document", e);
-            throw new DocumentException(e);
-        }
-
+    /**
+     * Called once an update has been committed to drop the document from the
+     * revision cache and post the event.
+     */
+    DocumentRevision documentUpdated(DocumentUpdated event) {
+        invalidateCachedDocuments(Collections.singletonList(event.newDocument.getId()));
+        eventBus.post(event);
+        return event.newDocument;
     }
 
     private DocumentRevision updateDocumentFromRevision(SQLDatabase db, DocumentRevision rev,
@@ -2096,23 +3840,8 @@ public class DatastoreImpl implements Datastore {
 
     @Override
     public DocumentRevision deleteDocumentFromRevision(final DocumentRevision rev) throws ConflictException {
-        Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
-        Preconditions.checkState(isOpen(),"Datastore is closed");
-
         try {
-            DocumentRevision deletedRevision = queue.submitTransaction(new SQLQueueCallable<DocumentRevision>() {
-                @Override
-                public DocumentRevision call(SQLDatabase db) throws Exception {
-                    return deleteDocumentInQueue(db, rev.getId(), rev.getRevision());
-                }
-            }).get();
-
-
-            if (deletedRevision != null) {
-                eventBus.post(new DocumentDeleted(rev,deletedRevision));
-            }
-
-            return deletedRevision;
+            return documentDeleted(rev, submitDeleteDocument(rev).get());
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to delete document", e);
         } catch (ExecutionException e) {
@@ -2127,6 +3856,38 @@ public class DatastoreImpl implements Datastore {
         return null;
     }
 
+    /**
+     * Writes the deleted revision for {@link #deleteDocumentFromRevision(DocumentRevision)}.
+     * Once the future completes, {@link #documentDeleted(DocumentRevision, DocumentRevision)}
+     * must be called with its result.
+     */
+    ListenableFuture<DocumentRevision> submitDeleteDocument(final DocumentRevision rev) {
+        Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
+        Preconditions.checkState(isOpen(),"Datastore is closed");
+
+        return queue.submitTransaction(new SQLQueueCallable<DocumentRevision>() {
+            @Override
+            public DocumentRevision call(SQLDatabase db) throws Exception {
+                DocumentRevision deleted = deleteDocumentInQueue(db, rev.getId(),
+                        rev.getRevision());
+                pruneRevisionHistoryInQueue(db, rev.getId(), deleted.getGeneration());
+                return deleted;
+            }
+        });
+    }
+
+    /**
+     * Called once a deletion has been committed to drop the document from the
+     * revision cache and post the event.
+     */
+    DocumentRevision documentDeleted(DocumentRevision rev, DocumentRevision deleted) {
+        invalidateCachedDocuments(Collections.singletonList(rev.getId()));
+        if (deleted != null) {
+            eventBus.post(new DocumentDeleted(rev, deleted));
+        }
+        return deleted;
+    }
+
     // delete all leaf nodes
     @Override
     public List<DocumentRevision> deleteDocument(final String id)
@@ -2135,7 +3896,7 @@ public class DatastoreImpl implements Datastore {
         // to return
 
         try {
-            return queue.submitTransaction(new SQLQueueCallable<List<DocumentRevision>>(){
+            List<DocumentRevision> deletedRevisions = queue.submitTransaction(new SQLQueueCallable<List<DocumentRevision>>(){
 
                 @Override
                 public List<DocumentRevision> call(SQLDatabase db) throws Exception {
@@ -2147,14 +3908,17 @@ public class DatastoreImpl implements Datastore {
                         final String sql = "SELECT revs.revid FROM docs,revs " +
                                 "WHERE revs.doc_id = docs.doc_id " +
                                 "AND docs.docid = ? " +
-                                "AND deleted = 0 AND revs.sequence NOT IN " +
-                                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) ";
+                                "AND revs.leaf = 1 AND deleted = 0 ";
 
                         cursor = db.rawQuery(sql, new String[]{id});
+                        int generation = 0;
                         while (cursor.moveToNext()) {
                             String revId = cursor.getString(0);
-                            deleted.add(deleteDocumentInQueue(db, id, revId));
+                            DocumentRevision revision = deleteDocumentInQueue(db, id, revId);
+                            generation = Math.max(generation, revision.getGeneration());
+                            deleted.add(revision);
                         }
+                        pruneRevisionHistoryInQueue(db, id, generation);
                         return deleted;
                     } catch (SQLException sqe) {
                         throw new DatastoreException("SQLException in deleteDocument, not deleting revisions", sqe);
@@ -2163,6 +3927,8 @@ public class DatastoreImpl implements Datastore {
                     }
                 }
             }).get();
+            invalidateCachedDocuments(Collections.singletonList(id));
+            return deletedRevisions;
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to delete document",e);
         } catch (ExecutionException e) {
@@ -2172,7 +3938,238 @@ public class DatastoreImpl implements Datastore {
         return null;
     }
 
+    @Override
+    public List<BulkWriteResult> createDocumentsFromRevisions(final List<DocumentRevision> revs)
+            throws DocumentException {
+        Preconditions.checkNotNull(revs, "DocumentRevision list cannot be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+
+        // validate everything before writing anything
+        final List<String> docIds = new ArrayList<String>(revs.size());
+        for (DocumentRevision rev : revs) {
+            Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
+            Preconditions.checkArgument(rev.getRevision() == null, "Revision ID must be null for new DocumentRevisions");
+            Preconditions.checkArgument(rev.isFullRevision(), "Projected revisions cannot be used to create documents");
+            Preconditions.checkNotNull(rev.getBody(), "Input document body cannot be null");
+            this.validateDBBody(rev.getBody());
+            String docId = rev.getId() != null ? rev.getId() : CouchUtils.generateDocumentId();
+            CouchUtils.validateDocumentId(docId);
+            docIds.add(docId);
+        }
+
+        return writeInBulk(revs, true, new BulkWriter() {
+            @Override
+            DocumentModified write(SQLDatabase db, int index,
+                                   List<PreparedAttachment> preparedNewAttachments,
+                                   List<SavedAttachment> existingAttachments) throws Exception {
+                DocumentRevision saved = createDocumentBody(db, docIds.get(index),
+                        revs.get(index).getBody());
+                AttachmentManager.addAttachmentsToRevision(db, attachmentsDir, saved, preparedNewAttachments);
+                AttachmentManager.copyAttachmentsToRevision(db, existingAttachments, saved);
+                return new DocumentCreated(getDocumentInQueue(db, saved.getId(),
+                        saved.getRevision()));
+            }
+        });
+    }
+
+    @Override
+    public List<BulkWriteResult> updateDocumentsFromRevisions(final List<DocumentRevision> revs)
+            throws DocumentException {
+        Preconditions.checkNotNull(revs, "DocumentRevision list cannot be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+
+        for (DocumentRevision rev : revs) {
+            Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
+            Preconditions.checkArgument(rev.isFullRevision(), "Projected revisions cannot be used to create documents");
+            Preconditions.checkNotNull(rev.getBody(), "Input document body cannot be null");
+            this.validateDBBody(rev.getBody());
+            CouchUtils.validateDocumentId(rev.getId());
+            CouchUtils.validateRevisionId(rev.getRevision());
+        }
+
+        return writeInBulk(revs, true, new BulkWriter() {
+            @Override
+            DocumentModified write(SQLDatabase db, int index,
+                                   List<PreparedAttachment> preparedNewAttachments,
+                                   List<SavedAttachment> existingAttachments) throws Exception {
+                DocumentRevision rev = revs.get(index);
+                DocumentRevision previous = getDocumentInQueue(db, rev.getId(), rev.getRevision());
+                DocumentRevision updated = updateDocumentFromRevision(db, rev,
+                        preparedNewAttachments, existingAttachments);
+                return new DocumentUpdated(previous, updated);
+            }
+        });
+    }
+
+    @Override
+    public List<BulkWriteResult> deleteDocumentsFromRevisions(final List<DocumentRevision> revs)
+            throws DocumentException {
+        Preconditions.checkNotNull(revs, "DocumentRevision list cannot be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+
+        for (DocumentRevision rev : revs) {
+            Preconditions.checkNotNull(rev, "DocumentRevision cannot be null");
+            Preconditions.checkArgument(!Strings.isNullOrEmpty(rev.getId()),
+                    "Input document id cannot be empty");
+            CouchUtils.validateRevisionId(rev.getRevision());
+        }
+
+        return writeInBulk(revs, false, new BulkWriter() {
+            @Override
+            DocumentModified write(SQLDatabase db, int index,
+                                   List<PreparedAttachment> preparedNewAttachments,
+                                   List<SavedAttachment> existingAttachments) throws Exception {
+                DocumentRevision rev = revs.get(index);
+                return new DocumentDeleted(rev, deleteDocumentInQueue(db, rev.getId(),
+                        rev.getRevision()));
+            }
+        });
+    }
+
+    /**
+     * Writes one revision for a bulk method.
+     */
+    private abstract static class BulkWriter {
+        /**
+         * Called on the database queue to write the revision at {@code index}.
+         * @return the event to post once the transaction is committed
+         * @throws DocumentException if this revision can't be written, the others
+         *                           are still written
+         */
+        abstract DocumentModified write(SQLDatabase db, int index,
+                                        List<PreparedAttachment> preparedNewAttachments,
+                                        List<SavedAttachment> existingAttachments)
+                throws Exception;
+    }
+
+    /**
+     * Writes all the revisions in one transaction, each inside its own savepoint so
+     * a revision which fails is rolled back without affecting the others. Events
+     * are posted after the transaction has been committed.
+     */
+    private List<BulkWriteResult> writeInBulk(final List<DocumentRevision> revs,
+                                              boolean withAttachments,
+                                              final BulkWriter writer)
+            throws DocumentException {
+        final BulkWriteResult[] results = new BulkWriteResult[revs.size()];
+
+        // As for single documents, new attachments are prepared outside the transaction
+        final List<List<PreparedAttachment>> preparedNewAttachments =
+                new ArrayList<List<PreparedAttachment>>(revs.size());
+        final List<List<SavedAttachment>> existingAttachments =
+                new ArrayList<List<SavedAttachment>>(revs.size());
+        for (int i = 0; i < revs.size(); i++) {
+            DocumentRevision rev = revs.get(i);
+            Collection<Attachment> attachments = withAttachments && rev.getAttachments() != null
+                    ? rev.getAttachments().values() : new ArrayList<Attachment>();
+            try {
+                preparedNewAttachments.add(AttachmentManager.prepareAttachments(attachmentsDir,
+                        attachmentStreamFactory,
+                        AttachmentManager.findNewAttachments(attachments)));
+                existingAttachments.add(AttachmentManager.findExistingAttachments(attachments));
+            } catch (AttachmentException e) {
+                results[i] = new BulkWriteResult(rev, null, e);
+                preparedNewAttachments.add(null);
+                existingAttachments.add(null);
+            }
+        }
+
+        final List<DocumentModified> events = new ArrayList<DocumentModified>(revs.size());
+        try {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
+                    for (int i = 0; i < revs.size(); i++) {
+                        if (results[i] != null) {
+                            continue;
+                        }
+                        SQLDatabase savepoint = new SavepointSQLDatabase(db, BULK_WRITE_SAVEPOINT);
+                        savepoint.beginTransaction();
+                        try {
+                            DocumentModified event = writer.write(savepoint, i,
+                                    preparedNewAttachments.get(i), existingAttachments.get(i));
+                            pruneRevisionHistoryInQueue(savepoint, event.newDocument.getId(),
+                                    event.newDocument.getGeneration());
+                            savepoint.setTransactionSuccessful();
+                            results[i] = new BulkWriteResult(revs.get(i), event.newDocument, null);
+                            events.add(event);
+                        } catch (DocumentException e) {
+                            results[i] = new BulkWriteResult(revs.get(i), null, e);
+                        } finally {
+                            savepoint.endTransaction();
+                        }
+                    }
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to write documents", e);
+            throw new DocumentException("Interrupted while writing documents", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to write documents", e);
+            throw new DocumentException("Failed to write documents", e);
+        }
+
+        List<String> docIds = new ArrayList<String>(events.size());
+        for (DocumentModified event : events) {
+            docIds.add(event.newDocument.getId());
+        }
+        invalidateCachedDocuments(docIds);
+
+        for (DocumentModified event : events) {
+            eventBus.post(event);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Drops documents which have been written to from the revision cache. Called
+     * after the write has been committed and before its events are posted, so
+     * listeners read the new revisions.
+     */
+    private void invalidateCachedDocuments(Collection<String> docIds) {
+        DocumentCache cache = documentCache;
+        if (cache != null) {
+            cache.invalidate(docIds);
+        }
+    }
+
     <T> Future<T> runOnDbQueue(SQLQueueCallable<T> callable){
         return queue.submit(callable);
     }
+
+    /**
+     * A value read from the database along with the queue's write count
+     * before it was read, see {@link SQLDatabaseQueue#getWriteCount()}.
+     */
+    private static class CachedValue {
+        final long writeCount;
+        final long value;
+
+        CachedValue(long writeCount, long value) {
+            this.writeCount = writeCount;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A revision body encoded to be stored in the {@code revs} table.
+     */
+    private static class StoredBody {
+        final byte[] data;
+        final DocumentBodyFormat format;
+        final boolean deflated;
+
+        StoredBody(DocumentBody body, DocumentBodyFormat format, int compressionThreshold) {
+            byte[] encoded = DocumentBodyImpl.storageBytes(body, format);
+            byte[] compressed = null;
+            if (compressionThreshold != NO_BODY_COMPRESSION
+                    && encoded.length >= compressionThreshold) {
+                compressed = DocumentBodyImpl.deflate(encoded);
+            }
+            this.deflated = compressed != null && compressed.length < encoded.length;
+            this.data = this.deflated ? compressed : encoded;
+            this.format = format;
+        }
+    }
 }
@@ -25,6 +25,8 @@ import com.cloudant.sync.notifications.DatabaseClosed;
 import com.cloudant.sync.notifications.DatabaseCreated;
 import com.cloudant.sync.notifications.DatabaseDeleted;
 import com.cloudant.sync.notifications.DatabaseOpened;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
+import com.cloudant.sync.sqlite.SerialExecutorPool;
 import com.google.common.base.Preconditions;
 
 import org.apache.commons.io.FileUtils;
@@ -39,6 +41,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -77,6 +81,29 @@ public class DatastoreManager {
 
     private final EventBus eventBus = new EventBus();
 
+    private volatile int readerConnectionsPerDatastore = 0;
+
+    private volatile long groupCommitWindowMillis = 0;
+
+    private volatile DocumentBodyFormat documentBodyFormat = DocumentBodyFormat.JSON;
+
+    private volatile int documentBodyCompressionThreshold = DatastoreImpl.NO_BODY_COMPRESSION;
+
+    private volatile long documentCacheSize = 0;
+
+    private volatile int revisionsLimit = DatastoreImpl.NO_REVISIONS_LIMIT;
+
+    /* Threads shared by the datastores, null if each has its own. Guarded by openedDatastores */
+    private SerialExecutorPool sharedExecutors = null;
+
+    /* The open datastores, for choosing which to release without holding openedDatastores */
+    private final ConcurrentMap<String, DatastoreImpl> activeCandidates =
+            new ConcurrentHashMap<String, DatastoreImpl>();
+    private final Object releaseLock = new Object();
+    private volatile int maximumActiveDatastores = 0;
+    private final AtomicLong releasedCount = new AtomicLong();
+    private final AtomicLong reopenedCount = new AtomicLong();
+
     /**
      * <p>Constructs a {@code DatastoreManager} to manage a directory.</p>
      * <p>Datastores are created within the {@code directoryPath} directory.
@@ -207,6 +234,291 @@ public class DatastoreManager {
         return path;
     }
 
+    /**
+     * <p>Sets the number of read-only connections each datastore subsequently
+     * opened by this manager uses.</p>
+     *
+     * <p>When greater than zero, the datastore's database is switched to
+     * write-ahead logging and reads such as {@link Datastore#getDocument(String)}
+     * or {@link Datastore#changes(long, int)} are executed on a pool of this many
+     * read-only connections, so they run concurrently with each other and are not
+     * queued behind writes. The default is zero, where all reads and writes are
+     * executed one at a time on a single connection.</p>
+     *
+     * <p>Datastores which are already open are not affected.</p>
+     *
+     * @param readerConnections number of read-only connections per datastore
+     */
+    public void setReaderConnectionsPerDatastore(int readerConnections) {
+        Preconditions.checkArgument(readerConnections >= 0,
+                "Number of reader connections must not be negative");
+        this.readerConnectionsPerDatastore = readerConnections;
+    }
+
+    /**
+     * <p>Returns the number of read-only connections each datastore opened by
+     * this manager uses.</p>
+     * @return number of read-only connections per datastore
+     * @see #setReaderConnectionsPerDatastore(int)
+     */
+    public int getReaderConnectionsPerDatastore() {
+        return readerConnectionsPerDatastore;
+    }
+
+    /**
+     * <p>Sets how long writes to datastores subsequently opened by this manager
+     * wait for other writes to join them in a single database transaction.</p>
+     *
+     * <p>By default each write, such as
+     * {@link Datastore#createDocumentFromRevision(DocumentRevision)}, is committed in its
+     * own transaction. When many threads write small documents concurrently, committing
+     * writes made within a few milliseconds of each other together greatly increases
+     * throughput. Each write still succeeds or fails independently.</p>
+     *
+     * <p>Datastores which are already open are not affected.</p>
+     *
+     * @param window how long to wait for other writes, zero to commit each write in its
+     *               own transaction
+     * @param unit the unit of {@code window}
+     */
+    public void setGroupCommitWindow(long window, TimeUnit unit) {
+        Preconditions.checkArgument(window >= 0, "Group commit window must not be negative");
+        this.groupCommitWindowMillis = unit.toMillis(window);
+    }
+
+    /**
+     * <p>Sets the format datastores subsequently opened by this manager store the
+     * bodies of new revisions in.</p>
+     *
+     * <p>Bodies already stored in a datastore are not converted when it is opened,
+     * see {@link DatastoreImpl#convertDocumentBodies()}.</p>
+     *
+     * <p>Datastores which are already open are not affected.</p>
+     *
+     * @param format the format to store document bodies in
+     * @see DatastoreImpl#setDocumentBodyFormat(DocumentBodyFormat)
+     */
+    public void setDocumentBodyFormat(DocumentBodyFormat format) {
+        Preconditions.checkNotNull(format, "Document body format must not be null");
+        this.documentBodyFormat = format;
+    }
+
+    /**
+     * @return the format datastores opened by this manager store document bodies in
+     * @see #setDocumentBodyFormat(DocumentBodyFormat)
+     */
+    public DocumentBodyFormat getDocumentBodyFormat() {
+        return documentBodyFormat;
+    }
+
+    /**
+     * <p>Sets the size, in bytes, from which datastores subsequently opened by this
+     * manager compress the bodies of new revisions.</p>
+     *
+     * <p>Datastores which are already open are not affected.</p>
+     *
+     * @param threshold the size from which bodies are compressed, or
+     *                  {@link DatastoreImpl#NO_BODY_COMPRESSION}, the default
+     * @see DatastoreImpl#setDocumentBodyCompressionThreshold(int)
+     */
+    public void setDocumentBodyCompressionThreshold(int threshold) {
+        Preconditions.checkArgument(threshold >= 0
+                || threshold == DatastoreImpl.NO_BODY_COMPRESSION,
+                "Compression threshold must not be negative");
+        this.documentBodyCompressionThreshold = threshold;
+    }
+
+    /**
+     * @return the size from which datastores opened by this manager compress
+     *      document bodies, or {@link DatastoreImpl#NO_BODY_COMPRESSION}
+     * @see #setDocumentBodyCompressionThreshold(int)
+     */
+    public int getDocumentBodyCompressionThreshold() {
+        return documentBodyCompressionThreshold;
+    }
+
+    /**
+     * <p>Sets the maximum size, in bytes, of the cache of recently read revisions
+     * each datastore subsequently opened by this manager has. Zero, the default,
+     * turns the cache off.</p>
+     *
+     * <p>Datastores which are already open are not affected.</p>
+     *
+     * @param maximumSize the approximate maximum size of each datastore's cache
+     * @see DatastoreImpl#setDocumentCacheSize(long)
+     */
+    public void setDocumentCacheSize(long maximumSize) {
+        Preconditions.checkArgument(maximumSize >= 0, "Cache size must not be negative");
+        this.documentCacheSize = maximumSize;
+    }
+
+    /**
+     * @return the maximum size of the revision cache of datastores opened by this manager
+     * @see #setDocumentCacheSize(long)
+     */
+    public long getDocumentCacheSize() {
+        return documentCacheSize;
+    }
+
+    /**
+     * <p>Sets the number of revisions kept on each branch of a document's
+     * revision tree by datastores subsequently opened by this manager.</p>
+     *
+     * <p>Datastores which are already open are not affected.</p>
+     *
+     * @param limit the number of revisions to keep on each branch, or
+     *              {@link DatastoreImpl#NO_REVISIONS_LIMIT}, the default
+     * @see DatastoreImpl#setRevisionsLimit(int)
+     */
+    public void setRevisionsLimit(int limit) {
+        Preconditions.checkArgument(limit > 0 || limit == DatastoreImpl.NO_REVISIONS_LIMIT,
+                "Revisions limit must be positive");
+        this.revisionsLimit = limit;
+    }
+
+    /**
+     * @return the number of revisions kept on each branch of a document by
+     *      datastores opened by this manager, or {@link DatastoreImpl#NO_REVISIONS_LIMIT}
+     * @see #setRevisionsLimit(int)
+     */
+    public int getRevisionsLimit() {
+        return revisionsLimit;
+    }
+
+    /**
+     * <p>Sets the number of threads shared by the datastores opened by this manager.</p>
+     *
+     * <p>By default each datastore, and each
+     * {@link com.cloudant.sync.query.IndexManager IndexManager} for it, has a thread of
+     * its own which executes its database tasks. When many datastores are open at once
+     * these threads can become a limit. When {@code threads} is greater than zero, the
+     * datastores subsequently opened instead execute their tasks on a pool of this many
+     * threads: each datastore, with its index managers, is assigned to one of the threads
+     * and its tasks still run one at a time.</p>
+     *
+     * <p>Reader connections, see {@link #setReaderConnectionsPerDatastore(int)}, are not
+     * shared and still have threads of their own.</p>
+     *
+     * @param threads number of threads to share, zero to give each datastore its own
+     * @throws IllegalStateException if any datastores are open
+     */
+    public void setSharedThreadPoolSize(int threads) {
+        Preconditions.checkArgument(threads >= 0, "Number of threads must not be negative");
+        synchronized (openedDatastores) {
+            Preconditions.checkState(openedDatastores.isEmpty(),
+                    "The thread pool size can't be changed while datastores are open");
+            if (sharedExecutors != null) {
+                sharedExecutors.shutdown();
+            }
+            sharedExecutors = threads > 0 ? new SerialExecutorPool(threads) : null;
+        }
+    }
+
+    /**
+     * <p>Returns the number of threads shared by the datastores opened by this manager.</p>
+     * @return number of shared threads, zero if each datastore has its own
+     * @see #setSharedThreadPoolSize(int)
+     */
+    public int getSharedThreadPoolSize() {
+        synchronized (openedDatastores) {
+            return sharedExecutors == null ? 0 : sharedExecutors.getThreadCount();
+        }
+    }
+
+    /**
+     * <p>Sets the maximum number of open datastores which keep their database
+     * connections open.</p>
+     *
+     * <p>When more datastores than this are in use, the connections of the least
+     * recently used are closed. The {@link Datastore} objects remain open and valid:
+     * their connections are reopened when they are next used, at which point the
+     * least recently used of the others are closed in turn. This bounds the number
+     * of file handles used without the application tracking which datastores are
+     * idle.</p>
+     *
+     * <p>Datastores with a replication in progress are never closed this way. The
+     * databases used by index managers aren't affected.</p>
+     *
+     * @param maximum maximum number of datastores with open connections, zero for
+     *                no limit
+     * @see #getReleasedConnectionsCount()
+     * @see #getReopenedConnectionsCount()
+     */
+    public void setMaximumActiveDatastores(int maximum) {
+        Preconditions.checkArgument(maximum >= 0,
+                "Maximum number of active datastores must not be negative");
+        this.maximumActiveDatastores = maximum;
+        releaseIdleDatastores(null);
+    }
+
+    /**
+     * <p>Returns the maximum number of open datastores which keep their database
+     * connections open.</p>
+     * @return maximum number of datastores with open connections, zero for no limit
+     * @see #setMaximumActiveDatastores(int)
+     */
+    public int getMaximumActiveDatastores() {
+        return maximumActiveDatastores;
+    }
+
+    /**
+     * @return the number of times a datastore's connections have been closed
+     *         because it was the least recently used
+     * @see #setMaximumActiveDatastores(int)
+     */
+    public long getReleasedConnectionsCount() {
+        return releasedCount.get();
+    }
+
+    /**
+     * @return the number of times a datastore's connections have been reopened
+     *         after being closed because it was the least recently used
+     * @see #setMaximumActiveDatastores(int)
+     */
+    public long getReopenedConnectionsCount() {
+        return reopenedCount.get();
+    }
+
+    /**
+     * Closes the connections of the least recently used datastores until no more
+     * than the maximum are active.
+     * @param keep a datastore which has just been used and must be kept, or null
+     */
+    private void releaseIdleDatastores(DatastoreImpl keep) {
+        int maximum = maximumActiveDatastores;
+        if (maximum == 0) {
+            return;
+        }
+        synchronized (releaseLock) {
+            int active = 0;
+            List<DatastoreImpl> candidates = new ArrayList<DatastoreImpl>();
+            List<Long> lastUsed = new ArrayList<Long>();
+            for (DatastoreImpl ds : activeCandidates.values()) {
+                if (ds.isActive()) {
+                    active++;
+                    if (ds != keep && !ds.isPinned()) {
+                        candidates.add(ds);
+                        // take a snapshot, the datastores are in use concurrently
+                        lastUsed.add(ds.getLastUsed());
+                    }
+                }
+            }
+            for (; active > maximum && !candidates.isEmpty(); active--) {
+                int oldest = 0;
+                for (int i = 1; i < candidates.size(); i++) {
+                    if (lastUsed.get(i) - lastUsed.get(oldest) < 0) {
+                        oldest = i;
+                    }
+                }
+                DatastoreImpl ds = candidates.remove(oldest);
+                lastUsed.remove(oldest);
+                logger.fine("Closing connections of idle datastore " + ds.getDatastoreName());
+                ds.releaseConnections();
+                releasedCount.incrementAndGet();
+            }
+        }
+    }
+
     /**
      * <p>Opens a datastore.</p>
      *
@@ -259,9 +571,19 @@ public class DatastoreManager {
         synchronized (openedDatastores) {
             Datastore ds = openedDatastores.get(dbName);
             if (ds == null) {
-                ds = createDatastore(dbName, provider);
-                ds.getEventBus().register(this);
-                openedDatastores.put(dbName, ds);
+                final DatastoreImpl created = createDatastore(dbName, provider);
+                created.getEventBus().register(this);
+                created.setConnectionListener(new SQLDatabaseQueue.ConnectionListener() {
+                    @Override
+                    public void connectionsOpened(SQLDatabaseQueue queue) {
+                        reopenedCount.incrementAndGet();
+                        releaseIdleDatastores(created);
+                    }
+                });
+                openedDatastores.put(dbName, created);
+                activeCandidates.put(dbName, created);
+                releaseIdleDatastores(created);
+                ds = created;
             }
             return ds;
         }
@@ -295,6 +617,7 @@ public class DatastoreManager {
 
         synchronized (openedDatastores) {
             Datastore ds = openedDatastores.remove(dbName);
+            activeCandidates.remove(dbName);
             if (ds != null) {
                 ds.close();
             }
@@ -322,7 +645,7 @@ public class DatastoreManager {
      * @return initialise datastore object
      * @throws DatastoreNotCreatedException if the database cannot be opened
      */
-    private Datastore createDatastore(String dbName, KeyProvider provider) throws DatastoreNotCreatedException {
+    private DatastoreImpl createDatastore(String dbName, KeyProvider provider) throws DatastoreNotCreatedException {
         try {
             String dbDirectory = this.getDatastoreDirectory(dbName);
             boolean dbDirectoryExist = new File(dbDirectory).exists();
@@ -333,7 +656,13 @@ public class DatastoreManager {
             // if it does not exist
 
             //Pass database directory, database name, and SQLCipher key provider
-            DatastoreImpl ds = new DatastoreImpl(dbDirectory, dbName, provider);
+            DatastoreImpl ds = new DatastoreImpl(dbDirectory, dbName, provider,
+                    readerConnectionsPerDatastore, sharedExecutors);
+            ds.setGroupCommitWindow(groupCommitWindowMillis, TimeUnit.MILLISECONDS);
+            ds.setDocumentBodyFormat(documentBodyFormat);
+            ds.setDocumentBodyCompressionThreshold(documentBodyCompressionThreshold);
+            ds.setDocumentCacheSize(documentCacheSize);
+            ds.setRevisionsLimit(revisionsLimit);
 
             if(!dbDirectoryExist) {
                 this.eventBus.post(new DatabaseCreated(dbName));
@@ -368,6 +697,7 @@ public class DatastoreManager {
     public void onDatabaseClosed(DatabaseClosed databaseClosed) {
         synchronized (openedDatastores) {
             this.openedDatastores.remove(databaseClosed.dbName);
+            this.activeCandidates.remove(databaseClosed.dbName);
         }
         this.eventBus.post(databaseClosed);
     }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>
+ * The format a datastore stores the bodies of document revisions in:
+ * </p>
+ *
+ * <ul>
+ *     <li>JSON: Bodies are stored as JSON text. This is the default.</li>
+ *     <li>SMILE: Bodies are stored in <a href="http://wiki.fasterxml.com/SmileFormat">Smile</a>,
+ *         a binary encoding of JSON which is smaller and faster to parse.</li>
+ * </ul>
+ *
+ * <p>The format only affects how bodies are stored: {@link DocumentBody#asBytes()}
+ * always returns JSON, and documents are always replicated as JSON.</p>
+ *
+ * @see DatastoreImpl#setDocumentBodyFormat(DocumentBodyFormat)
+ *
+ * @api_public
+ */
+public enum DocumentBodyFormat {
+    JSON(0),
+    SMILE(1);
+
+    // stored in the json_format column of the revs table
+    final int code;
+
+    DocumentBodyFormat(int code) {
+        this.code = code;
+    }
+
+    static DocumentBodyFormat fromCode(int code) {
+        for (DocumentBodyFormat format : values()) {
+            if (format.code == code) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown document body format: " + code);
+    }
+}
@@ -20,30 +20,49 @@ package com.cloudant.sync.datastore;
 import com.cloudant.sync.util.JSONUtils;
 import com.google.common.base.Preconditions;
 
-import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * @api_private
  */
 final class DocumentBodyImpl implements DocumentBody {
 
-    private byte[] bytes;
-    private Map<String, Object> map;
+    // Any of these may be null until it is first needed, they're volatile so a
+    // body can be shared between threads once one has been created. At least
+    // one is set.
+    private volatile byte[] bytes;
+    private volatile byte[] smile;
+    private volatile Map<String, Object> map;
+
+    // Bodies stored compressed are only inflated when first used
+    private volatile byte[] deflated;
+    private DocumentBodyFormat deflatedFormat;
 
     protected DocumentBodyImpl(byte[] bytes) {
+        this(bytes, true);
+    }
+
+    private DocumentBodyImpl(byte[] bytes, boolean validate) {
         // compacted revisions have their bodies set to null, so return an empty body
         if (bytes == null) {
             bytes = JSONUtils.emptyJSONObjectAsBytes();
         }
-        if(JSONUtils.isValidJSON(bytes)) {
+        if(!validate || JSONUtils.isValidJSON(bytes)) {
             this.bytes = bytes;
         } else {
             throw new IllegalArgumentException("Input bytes is not valid json data.");
         }
     }
 
+    // for bodies stored as Smile or compressed, see bodyFromStorage
+    private DocumentBodyImpl() {
+    }
+
     protected DocumentBodyImpl(Map map) {
         Preconditions.checkArgument(map != null);
         if(JSONUtils.isValidJSON(map)) {
@@ -57,14 +76,161 @@ final class DocumentBodyImpl implements DocumentBody {
         return new DocumentBodyImpl(bytes);
     }
 
+    /**
+     * Returns a body for JSON read from the datastore. The JSON was validated
+     * before it was stored, so it isn't validated again; it is only parsed if
+     * the body is used as a map.
+     */
+    static DocumentBody bodyFromStorage(byte[] bytes) {
+        return new DocumentBodyImpl(bytes, false);
+    }
+
+    /**
+     * Returns a body for bytes read from the datastore in the given format,
+     * see {@link #bodyFromStorage(byte[])}.
+     */
+    static DocumentBody bodyFromStorage(byte[] bytes, DocumentBodyFormat format) {
+        if (format == DocumentBodyFormat.SMILE && bytes != null) {
+            DocumentBodyImpl body = new DocumentBodyImpl();
+            body.smile = bytes;
+            return body;
+        }
+        return bodyFromStorage(bytes);
+    }
+
+    /**
+     * Returns a body for bytes read from the datastore in the given format,
+     * and compressed by {@link #deflate(byte[])} if {@code isDeflated}, see
+     * {@link #bodyFromStorage(byte[])}. The bytes are only inflated if the body
+     * is used.
+     */
+    static DocumentBody bodyFromStorage(byte[] bytes, DocumentBodyFormat format,
+                                        boolean isDeflated) {
+        if (isDeflated && bytes != null) {
+            DocumentBodyImpl body = new DocumentBodyImpl();
+            body.deflatedFormat = format;
+            body.deflated = bytes;
+            return body;
+        }
+        return bodyFromStorage(bytes, format);
+    }
+
+    /**
+     * <p>Returns a body's bytes in the format they're to be stored in.</p>
+     *
+     * <p>Bodies read from the datastore in the same format are stored without
+     * converting them, and JSON bodies are converted to Smile without parsing
+     * them into a map. Callers must not modify the returned array.</p>
+     */
+    static byte[] storageBytes(DocumentBody body, DocumentBodyFormat format) {
+        if (body instanceof DocumentBodyImpl) {
+            DocumentBodyImpl impl = (DocumentBodyImpl) body;
+            return format == DocumentBodyFormat.SMILE ? impl.getSmileBytes() : impl.getJsonBytes();
+        }
+        return format == DocumentBodyFormat.SMILE ? JSONUtils.serializeAsSmile(body.asMap())
+                : body.asBytes();
+    }
+
+    /**
+     * <p>Returns a copy of a body which shares its encoded bytes but not its
+     * parsed map, so changes made to one's map can't be seen through the other.</p>
+     *
+     * <p>Used to give each caller reading a cached revision its own body.</p>
+     */
+    static DocumentBody unparsedCopy(DocumentBody body) {
+        if (!(body instanceof DocumentBodyImpl)) {
+            return bodyFromStorage(body.asBytes());
+        }
+        DocumentBodyImpl impl = (DocumentBodyImpl) body;
+        DocumentBodyImpl copy = new DocumentBodyImpl();
+        copy.deflated = impl.deflated;
+        copy.deflatedFormat = impl.deflatedFormat;
+        copy.smile = impl.smile;
+        copy.bytes = impl.bytes;
+        if (copy.bytes == null && copy.smile == null && copy.deflated == null) {
+            copy.bytes = impl.getJsonBytes();
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the approximate number of bytes of memory taken by a body's encoded
+     * forms. A parsed map isn't counted.
+     */
+    static int encodedSize(DocumentBody body) {
+        if (!(body instanceof DocumentBodyImpl)) {
+            return body.asBytes().length;
+        }
+        DocumentBodyImpl impl = (DocumentBodyImpl) body;
+        int size = 0;
+        for (byte[] encoded : new byte[][]{impl.bytes, impl.smile, impl.deflated}) {
+            if (encoded != null) {
+                size += encoded.length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Compresses the stored bytes of a body.
+     */
+    static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed document body is truncated");
+                }
+                output.write(buffer, 0, inflated);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed document body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // inflates a compressed body into the format it was stored in, if it
+    // hasn't been already
+    private void inflateIfNeeded() {
+        if (bytes == null && smile == null && map == null) {
+            byte[] inflated = inflate(deflated);
+            if (deflatedFormat == DocumentBodyFormat.SMILE) {
+                smile = inflated;
+            } else {
+                bytes = inflated;
+            }
+        }
+    }
+
     public static DocumentBody bodyWith(Map map) {
         return new DocumentBodyImpl(map);
     }
 
     @Override
     public byte[] asBytes() {
-        byte[] jsonCopy = getJsonBytes();
-        return Arrays.copyOf(jsonCopy, jsonCopy.length);
+        return getJsonBytes().clone();
     }
 
     @SuppressWarnings("unchecked")
@@ -75,30 +241,59 @@ final class DocumentBodyImpl implements DocumentBody {
 
     @Override
     public String toString() {
-        if(bytes != null) {
-            return JSONUtils.bytesToString(bytes);
-        } else if(map != null) {
-            return JSONUtils.serializeAsString(map);
-        } else {
-            throw new IllegalStateException();
-        }
+        return JSONUtils.bytesToString(getJsonBytes());
     }
 
+    // callers must not modify the returned array
     private byte[] getJsonBytes() {
-        if(bytes == null) {
-            assert map != null;
-            bytes = JSONUtils.serializeAsBytes(map);
+        inflateIfNeeded();
+        byte[] json = bytes;
+        if(json == null) {
+            Map<String, Object> parsed = map;
+            if (parsed != null) {
+                json = JSONUtils.serializeAsBytes(parsed);
+            } else {
+                assert smile != null;
+                json = JSONUtils.smileToJson(smile);
+            }
+            bytes = json;
+        }
+        return json;
+    }
+
+    // callers must not modify the returned array
+    private byte[] getSmileBytes() {
+        inflateIfNeeded();
+        byte[] encoded = smile;
+        if(encoded == null) {
+            byte[] json = bytes;
+            if (json != null) {
+                encoded = JSONUtils.jsonToSmile(json);
+            } else {
+                assert map != null;
+                encoded = JSONUtils.serializeAsSmile(map);
+            }
+            smile = encoded;
         }
-        return bytes.clone();
+        return encoded;
     }
 
     private Map getMapObject() {
-        if(map == null) {
-            assert bytes != null;
-            map = JSONUtils.deserialize(bytes);
+        inflateIfNeeded();
+        Map<String, Object> parsed = map;
+        if(parsed == null) {
+            // parsed once, on first use, then cached
+            byte[] json = bytes;
+            if (json != null) {
+                parsed = JSONUtils.deserialize(json);
+            } else {
+                assert smile != null;
+                parsed = JSONUtils.deserializeSmile(smile);
+            }
+            map = parsed;
         }
 
         // Return a shallow copy
-        return new HashMap(map);
+        return new HashMap(parsed);
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps recently read revisions of documents in memory, so reading them
+ * again doesn't need the database.</p>
+ *
+ * <p>Revisions are held per document, along with which of them is the winning
+ * revision, so all the revisions of a document can be dropped at once when it
+ * is written to. The least recently used documents are dropped when the
+ * revisions held take more than the maximum number of bytes.</p>
+ *
+ * <p>A revision read from the database is only added if nothing has been
+ * written to the database since before it was read, see
+ * {@link SQLDatabaseQueue#getWriteCount()}. Together with writers dropping the
+ * documents they've written after their transaction has committed, this stops
+ * revisions which have been changed being cached.</p>
+ *
+ * <p>Callers are given copies of the cached revisions, so they can change them
+ * without affecting the cache.</p>
+ */
+class DocumentCache {
+
+    /** Approximate memory taken by a revision apart from its body, in bytes */
+    private static final int REVISION_OVERHEAD = 256;
+
+    private final SQLDatabaseQueue queue;
+    private final long maximumSize;
+    private final Cache<String, CachedDocument> documents;
+
+    // Guava counts a lookup of a document as a hit even if the revision isn't cached
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // puts are checked against the write count and made under this lock, so they
+    // can't overtake a writer which invalidates after its write has been counted
+    private final Object lock = new Object();
+
+    DocumentCache(SQLDatabaseQueue queue, long maximumSize) {
+        this.queue = queue;
+        this.maximumSize = maximumSize;
+        this.documents = CacheBuilder.newBuilder()
+                .maximumWeight(maximumSize)
+                .weigher(new Weigher<String, CachedDocument>() {
+                    @Override
+                    public int weigh(String docId, CachedDocument document) {
+                        return document.size;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns a copy of a cached revision of a document, or null if it isn't cached.
+     *
+     * @param docId the document's ID
+     * @param revId the revision's ID, or null for the winning revision
+     */
+    DocumentRevision get(String docId, String revId) {
+        DocumentRevision cached = null;
+        CachedDocument document = documents.getIfPresent(docId);
+        if (document != null) {
+            cached = document.revisions.get(revId != null ? revId : document.winningRevId);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(cached);
+    }
+
+    /**
+     * Returns the value to pass to {@link #put(DocumentRevision, long)} for a
+     * revision about to be read from the database.
+     */
+    long beforeRead() {
+        return queue.getWriteCount();
+    }
+
+    /**
+     * Caches a copy of a revision read from the database, unless the database
+     * has been written to since {@code writeCount} was returned by {@link #beforeRead()}.
+     */
+    void put(DocumentRevision revision, long writeCount) {
+        DocumentRevision copy = copy(revision);
+        synchronized (lock) {
+            if (queue.getWriteCount() != writeCount) {
+                return;
+            }
+            CachedDocument document = documents.getIfPresent(revision.getId());
+            documents.put(revision.getId(), document == null ? new CachedDocument(copy)
+                    : document.with(copy));
+        }
+    }
+
+    /**
+     * Drops the cached revisions of documents which have been written to.
+     */
+    void invalidate(Collection<String> docIds) {
+        synchronized (lock) {
+            documents.invalidateAll(docIds);
+        }
+    }
+
+    void invalidate(String docId) {
+        invalidate(Collections.singletonList(docId));
+    }
+
+    void invalidateAll() {
+        synchronized (lock) {
+            documents.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the number of revisions read from and missing from the cache, and
+     * the number of documents dropped to keep it within its maximum size.
+     */
+    CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), 0, 0, 0,
+                documents.stats().evictionCount());
+    }
+
+    private static DocumentRevision copy(DocumentRevision revision) {
+        Map<String, Attachment> attachments = revision.getAttachments();
+        return new DocumentRevisionBuilder()
+                .setDocId(revision.getId())
+                .setRevId(revision.getRevision())
+                .setBody(DocumentBodyImpl.unparsedCopy(revision.getBody()))
+                .setDeleted(revision.isDeleted())
+                .setSequence(revision.getSequence())
+                .setInternalId(revision.getInternalNumericId())
+                .setCurrent(revision.isCurrent())
+                .setParent(revision.getParent())
+                .setAttachments(attachments == null ? null
+                        : new ArrayList<Attachment>(attachments.values()))
+                .build();
+    }
+
+    /**
+     * The cached revisions of a document. Replaced, rather than changed, when
+     * another revision is added.
+     */
+    private static class CachedDocument {
+        final String winningRevId;
+        final Map<String, DocumentRevision> revisions;
+        final int size;
+
+        CachedDocument(DocumentRevision revision) {
+            this(null, Collections.<String, DocumentRevision>emptyMap(), 0, revision);
+        }
+
+        private CachedDocument(String winningRevId, Map<String, DocumentRevision> revisions,
+                               int size, DocumentRevision revision) {
+            this.winningRevId = revision.isCurrent() ? revision.getRevision() : winningRevId;
+            this.revisions = new HashMap<String, DocumentRevision>(revisions);
+            this.revisions.put(revision.getRevision(), revision);
+            this.size = size + REVISION_OVERHEAD
+                    + DocumentBodyImpl.encodedSize(revision.getBody());
+        }
+
+        CachedDocument with(DocumentRevision revision) {
+            if (revisions.containsKey(revision.getRevision())) {
+                return this;
+            }
+            return new CachedDocument(winningRevId, revisions, size, revision);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * <p>Iterates over document revisions read from a datastore a chunk at a
+ * time, so only a small number of revisions are held in memory however many
+ * documents the datastore contains.</p>
+ *
+ * <p>Each chunk is read when the previous one has been consumed, so changes
+ * made to the datastore while iterating may or may not be seen. Call
+ * {@link #close()} when finished with an iterator before reaching its end.</p>
+ *
+ * <p>Iterators are not thread safe and don't support {@link #remove()}.</p>
+ *
+ * @api_public
+ */
+public interface DocumentIterator extends Iterator<DocumentRevision>, Closeable {
+
+    /**
+     * Stops the iteration, {@link #hasNext()} returns false afterwards.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.RowMapper;
+
+/**
+ * <p>Converts rows of the {@code revs} table joined with {@code docs} into
+ * {@link DocumentRevisionBuilder}s.</p>
+ *
+ * <p>The cursor must have the {@code docid}, {@code doc_id}, {@code revid},
+ * {@code sequence}, {@code current}, {@code deleted} and {@code parent}
+ * columns. If it also has the {@code json}, {@code json_format} and
+ * {@code json_deflated} columns, the builders have the revision's body set.
+ * Attachments are never set, as they are stored in a separate table.</p>
+ */
+class RevisionRowMapper extends RowMapper<DocumentRevisionBuilder> {
+
+    private final int docIdColumn;
+    private final int internalIdColumn;
+    private final int revIdColumn;
+    private final int sequenceColumn;
+    private final int currentColumn;
+    private final int deletedColumn;
+    private final int parentColumn;
+    private final int jsonColumn;
+    private final int jsonFormatColumn;
+    private final int jsonDeflatedColumn;
+
+    RevisionRowMapper(Cursor cursor) {
+        super(cursor);
+        this.docIdColumn = column("docid");
+        this.internalIdColumn = column("doc_id");
+        this.revIdColumn = column("revid");
+        this.sequenceColumn = column("sequence");
+        this.currentColumn = column("current");
+        this.deletedColumn = column("deleted");
+        this.parentColumn = column("parent");
+        this.jsonColumn = optionalColumn("json");
+        this.jsonFormatColumn = optionalColumn("json_format");
+        this.jsonDeflatedColumn = optionalColumn("json_deflated");
+    }
+
+    /**
+     * Returns the sequence of the revision in the current row.
+     */
+    long sequence() {
+        return cursor.getLong(sequenceColumn);
+    }
+
+    @Override
+    public DocumentRevisionBuilder mapRow() {
+        long parent = -1L;
+        int parentType = cursor.columnType(parentColumn);
+        if (parentType == Cursor.FIELD_TYPE_INTEGER) {
+            parent = cursor.getLong(parentColumn);
+        } else if (parentType != Cursor.FIELD_TYPE_NULL) {
+            throw new RuntimeException("Unexpected type: " + parentType);
+        }
+
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder()
+                .setDocId(cursor.getString(docIdColumn))
+                .setRevId(cursor.getString(revIdColumn))
+                .setDeleted(cursor.getInt(deletedColumn) > 0)
+                .setSequence(sequence())
+                .setInternalId(cursor.getLong(internalIdColumn))
+                .setCurrent(cursor.getInt(currentColumn) > 0)
+                .setParent(parent);
+        if (jsonColumn >= 0) {
+            DocumentBodyFormat format = jsonFormatColumn >= 0
+                    ? DocumentBodyFormat.fromCode(cursor.getInt(jsonFormatColumn))
+                    : DocumentBodyFormat.JSON;
+            boolean deflated = jsonDeflatedColumn >= 0 && cursor.getInt(jsonDeflatedColumn) > 0;
+            builder.setBody(DocumentBodyImpl.bodyFromStorage(cursor.getBlob(jsonColumn), format,
+                    deflated));
+        }
+        return builder;
+    }
+}
@@ -36,6 +36,10 @@ public class InsertRevisionCallable {
     // is revision current? ("winning")
     public boolean current;
     public byte[] data;
+    // format of data, see DocumentBodyFormat
+    public int dataFormat;
+    // is data compressed?
+    public boolean dataDeflated;
     public boolean available;
 
     @Override
@@ -63,6 +67,8 @@ public class InsertRevisionCallable {
         args.put("deleted", this.deleted);
         args.put("available", this.available);
         args.put("json", this.data);
+        args.put("json_format", this.dataFormat);
+        args.put("json_deflated", this.dataDeflated);
         logger.fine("New revision inserted: " + this.docNumericId + ", " + this.revId);
         newSequence = db.insert("revs", args);
         if (newSequence < 0) {
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.notifications;
+
+/**
+ * <p>Event for the progress of an incremental compaction.</p>
+ *
+ * <p>This event is posted by
+ * {@link com.cloudant.sync.datastore.DatastoreImpl#compactIncrementally()}
+ * after each batch of work, and once with {@link Stage#COMPLETE} when the
+ * compaction has finished.</p>
+ *
+ * @api_public
+ */
+public class DatabaseCompactionProgress extends DatabaseModified {
+
+    /**
+     * The stages of an incremental compaction, in the order they run.
+     */
+    public enum Stage {
+        /** Removing the bodies of revisions which are no longer current. */
+        REMOVING_BODIES,
+        /** Deleting the files of attachments no revision uses. */
+        PURGING_ATTACHMENTS,
+        /** Returning free pages of the database file to the file system. */
+        VACUUMING,
+        /** The compaction has finished. */
+        COMPLETE
+    }
+
+    /**
+     * Event for the progress of an incremental compaction.
+     *
+     * @param dbName
+     *            The name of the datastore being compacted
+     * @param stage
+     *            The stage the compaction is in
+     * @param done
+     *            The amount of work done in this stage so far: sequence numbers
+     *            checked, attachment files deleted or database pages freed
+     * @param total
+     *            The total amount of work in this stage, or -1 if it isn't known
+     */
+    public DatabaseCompactionProgress(String dbName, Stage stage, long done, long total) {
+        super(dbName);
+        this.stage = stage;
+        this.done = done;
+        this.total = total;
+    }
+
+    public final Stage stage;
+    public final long done;
+    public final long total;
+}
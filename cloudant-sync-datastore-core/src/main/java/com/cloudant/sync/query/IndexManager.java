@@ -54,7 +54,6 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -97,7 +96,7 @@ public class IndexManager {
     public IndexManager(Datastore datastore) {
         this.datastore = datastore;
         validFieldName = Pattern.compile(INDEX_FIELD_NAME_PATTERN);
-        queue = Executors.newSingleThreadExecutor();
+        queue = ((DatastoreImpl) datastore).newExtensionExecutor();
 
         final String filename = ((DatastoreImpl)datastore).extensionDataFolder(EXTENSION_NAME) + File.separator
                                                                               + "indexes.sqlite";
@@ -111,6 +110,7 @@ public class IndexManager {
                     SQLDatabase db = SQLDatabaseFactory.openSqlDatabase(filename, keyProvider);
 
                     if (db != null) {
+                        SQLDatabaseFactory.configureConnection(db);
                         SQLDatabaseFactory.updateSchema(db,
                                 new SchemaOnlyMigration(QueryConstants.getSchemaVersion1()), 1);
                         SQLDatabaseFactory.updateSchema(db,
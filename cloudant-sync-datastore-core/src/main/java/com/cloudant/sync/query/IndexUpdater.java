@@ -18,6 +18,7 @@ import com.cloudant.sync.datastore.Datastore;
 import com.cloudant.sync.datastore.DocumentRevision;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.util.DatabaseUtils;
 
 import java.sql.SQLException;
@@ -100,13 +101,20 @@ class IndexUpdater {
     private boolean updateAllIndexes(Map<String, Object> indexes) {
         boolean success = true;
 
-        for (Map.Entry<String, Object> entry: indexes.entrySet()) {
-            Map<String, Object> index = (Map<String, Object>) entry.getValue();
-            List<String> fields = (ArrayList<String>) index.get("fields");
-            success = updateIndex(entry.getKey(), fields);
-            if (!success) {
-                break;
+        // Indexing can read many changes, don't hold up other users of the datastore
+        SQLDatabaseQueue.Priority previous =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        try {
+            for (Map.Entry<String, Object> entry: indexes.entrySet()) {
+                Map<String, Object> index = (Map<String, Object>) entry.getValue();
+                List<String> fields = (ArrayList<String>) index.get("fields");
+                success = updateIndex(entry.getKey(), fields);
+                if (!success) {
+                    break;
+                }
             }
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previous);
         }
 
         return success;
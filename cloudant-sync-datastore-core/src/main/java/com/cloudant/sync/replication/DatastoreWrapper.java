@@ -121,15 +121,18 @@ class DatastoreWrapper {
         }
     }
 
-    Map<String, DocumentRevisionTree> getDocumentTrees(List<DocumentRevision> documents) {
-        Map<String, DocumentRevisionTree> allDocumentTrees =
-                new HashMap<String, DocumentRevisionTree>();
+    /**
+     * Returns the revision trees of the documents. The trees only contain the
+     * structure of each document's history, revisions in them have no body or
+     * attachments.
+     */
+    Map<String, DocumentRevisionTree> getDocumentTrees(List<DocumentRevision> documents)
+            throws DatastoreException {
+        List<String> ids = new ArrayList<String>(documents.size());
         for(DocumentRevision doc: documents) {
-            DocumentRevisionTree tree =
-                    this.dbCore.getAllRevisionsOfDocument(doc.getId());
-            allDocumentTrees.put(doc.getId(), tree);
+            ids.add(doc.getId());
         }
-        return allDocumentTrees;
+        return this.dbCore.getRevisionTreesOfDocuments(ids);
     }
 
     protected PreparedAttachment prepareAttachment(Attachment att, long length, long encodedLength) throws AttachmentException {
@@ -28,6 +28,7 @@ import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.PreparedAttachment;
 import com.cloudant.sync.datastore.UnsavedStreamAttachment;
 import com.cloudant.sync.event.EventBus;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.util.JSONUtils;
 import com.cloudant.sync.util.Misc;
 import com.google.common.collect.Lists;
@@ -173,6 +174,12 @@ class PullStrategy implements ReplicationStrategy {
 
         ErrorInfo errorInfo = null;
 
+        // Replication runs at background priority so it doesn't hold up other
+        // users of the datastore
+        SQLDatabaseQueue.Priority previousPriority =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        // Keep the datastore's connections open while replicating
+        targetDb.getDbCore().pinConnections();
         try {
             this.useBulkGet = sourceDb.isBulkSupported();
             replicate();
@@ -185,6 +192,9 @@ class PullStrategy implements ReplicationStrategy {
             logger.log(Level.SEVERE, String.format("Batch %s ended with error:", this.state
                     .batchCounter), e);
             errorInfo = new ErrorInfo(e);
+        } finally {
+            targetDb.getDbCore().unpinConnections();
+            SQLDatabaseQueue.setThreadPriority(previousPriority);
         }
 
         runComplete(errorInfo);
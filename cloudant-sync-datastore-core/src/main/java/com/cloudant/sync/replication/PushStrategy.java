@@ -29,6 +29,7 @@ import com.cloudant.sync.datastore.DocumentRevisionTree;
 import com.cloudant.sync.datastore.MultipartAttachmentWriter;
 import com.cloudant.sync.datastore.RevisionHistoryHelper;
 import com.cloudant.sync.event.EventBus;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.util.JSONUtils;
 import com.cloudant.sync.util.Misc;
 import com.google.common.base.Strings;
@@ -162,6 +163,12 @@ class PushStrategy implements ReplicationStrategy {
 
         ErrorInfo errorInfo = null;
 
+        // Replication runs at background priority so it doesn't hold up other
+        // users of the datastore
+        SQLDatabaseQueue.Priority previousPriority =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        // Keep the datastore's connections open while replicating
+        sourceDb.getDbCore().pinConnections();
         try {
 
             replicate();
@@ -169,6 +176,9 @@ class PushStrategy implements ReplicationStrategy {
         } catch (Throwable e) {
             logger.log(Level.SEVERE,String.format("Batch %s ended with error:", this.state.batchCounter),e);
             errorInfo = new ErrorInfo(e);
+        } finally {
+            sourceDb.getDbCore().unpinConnections();
+            SQLDatabaseQueue.setThreadPriority(previousPriority);
         }
 
         runComplete(errorInfo);
@@ -366,16 +376,31 @@ class PushStrategy implements ReplicationStrategy {
      *         multipart/related writer
      *
      * @throws AttachmentException
+     * @throws DatastoreException if a revision to push could not be loaded
      *
      * @see com.cloudant.mazha.CouchClient.MissingRevisions
      * @see PushStrategy.ItemsToPush
      */
     private ItemsToPush missingRevisionsToJsonDocs(
             Map<String, DocumentRevisionTree> allTrees,
-            Map<String, CouchClient.MissingRevisions> revisions) throws AttachmentException {
+            Map<String, CouchClient.MissingRevisions> revisions)
+            throws AttachmentException, DatastoreException {
 
         ItemsToPush itemsToPush = new ItemsToPush();
 
+        // the trees only have the structure of the documents' histories, load the
+        // bodies and attachments for the leaves of the paths being pushed, the only
+        // revisions whose content is sent, together
+        List<Long> sequences = new ArrayList<Long>();
+        for(Map.Entry<String, CouchClient.MissingRevisions> e : revisions.entrySet()) {
+            DocumentRevisionTree tree = allTrees.get(e.getKey());
+            for(String rev : e.getValue().missing) {
+                sequences.add(tree.lookup(e.getKey(), rev).getSequence());
+            }
+        }
+        Map<Long, DocumentRevision> contents =
+                this.sourceDb.getDbCore().getRevisionsWithSequences(sequences);
+
         for(Map.Entry<String, CouchClient.MissingRevisions> e : revisions.entrySet()) {
             String docId = e.getKey();
             Set<String> missingRevisions = e.getValue().missing;
@@ -384,9 +409,16 @@ class PushStrategy implements ReplicationStrategy {
                 long sequence = tree.lookup(docId, rev).getSequence();
                 List<DocumentRevision> path = tree.getPathForNode(sequence);
 
-                // get the attachments for the leaf of this path
-                DocumentRevision dr = path.get(0);
-                List<? extends Attachment> atts = this.sourceDb.getDbCore().attachmentsForRevision(dr);
+                DocumentRevision dr = contents.get(sequence);
+                if (dr == null) {
+                    throw new DatastoreException("Could not load revision " + rev + " of " +
+                            "document " + docId);
+                }
+                path.set(0, dr);
+                List<Attachment> atts = new ArrayList<Attachment>();
+                if (dr.getAttachments() != null) {
+                    atts.addAll(dr.getAttachments().values());
+                }
 
                 // get common ancestor generation - needed to correctly stub out attachments
                 // closest back (first) instance of one of the possible ancestors rev id in the history tree
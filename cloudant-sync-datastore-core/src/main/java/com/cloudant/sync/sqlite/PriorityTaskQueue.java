@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>Tasks waiting to run, in one FIFO lane per {@link SQLDatabaseQueue.Priority}.</p>
+ *
+ * <p>Tasks are handed to an executor using {@link #execute(Executor, SQLDatabaseQueue.Priority,
+ * Runnable)}, which queues the task in its lane and submits a placeholder to the executor.
+ * When the executor runs a placeholder it runs the highest priority task waiting at that
+ * moment, so the executor's own ordering is irrelevant. To prevent starvation, a task which
+ * has waited longer than the starvation threshold runs before any higher priority task.</p>
+ */
+class PriorityTaskQueue {
+
+    private final long starvationThresholdNanos;
+    private final List<LinkedList<Entry>> lanes;
+
+    private final Runnable runNext = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task = poll();
+            if (task != null) {
+                task.run();
+            }
+        }
+    };
+
+    PriorityTaskQueue(long starvationThresholdNanos) {
+        this.starvationThresholdNanos = starvationThresholdNanos;
+        int priorities = SQLDatabaseQueue.Priority.values().length;
+        this.lanes = new ArrayList<LinkedList<Entry>>(priorities);
+        for (int i = 0; i < priorities; i++) {
+            lanes.add(new LinkedList<Entry>());
+        }
+    }
+
+    /**
+     * Queues {@code task} and arranges for the executor to run a task.
+     * @throws RejectedExecutionException if the executor rejects the task
+     */
+    void execute(Executor executor, SQLDatabaseQueue.Priority priority, Runnable task) {
+        Entry entry = new Entry(task, System.nanoTime());
+        synchronized (this) {
+            lanes.get(priority.ordinal()).add(entry);
+        }
+        try {
+            executor.execute(runNext);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                lanes.get(priority.ordinal()).remove(entry);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes and returns the task which should run next, or null if there
+     * are no tasks waiting.
+     */
+    synchronized Runnable poll() {
+        long now = System.nanoTime();
+        LinkedList<Entry> starved = null;
+        for (LinkedList<Entry> lane : lanes) {
+            Entry head = lane.peek();
+            if (head != null && now - head.queuedAt >= starvationThresholdNanos
+                    && (starved == null || head.queuedAt < starved.peek().queuedAt)) {
+                starved = lane;
+            }
+        }
+        if (starved != null) {
+            return starved.poll().task;
+        }
+        for (LinkedList<Entry> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return lane.poll().task;
+            }
+        }
+        return null;
+    }
+
+    private static class Entry {
+        final Runnable task;
+        final long queuedAt;
+
+        Entry(Runnable task, long queuedAt) {
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Converts the rows of a {@link Cursor} into objects.</p>
+ *
+ * <p>Looking up a column by name is slow compared to reading its value, so
+ * subclasses should look up the positions of the columns they read once, in
+ * their constructor, and read each row by position in {@link #mapRow()}.</p>
+ *
+ * <p>A mapper is created for one cursor and, like the cursor, must only be
+ * used by one thread.</p>
+ *
+ * @param <T> the type of object each row is converted into
+ *
+ * @api_private
+ */
+public abstract class RowMapper<T> {
+
+    protected final Cursor cursor;
+
+    /**
+     * @param cursor the cursor whose rows are converted
+     */
+    protected RowMapper(Cursor cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * Returns the position of a column in the cursor.
+     * @throws IllegalArgumentException if the cursor doesn't have the column
+     */
+    protected int column(String name) {
+        return cursor.getColumnIndexOrThrow(name);
+    }
+
+    /**
+     * Returns the position of a column in the cursor, or -1 if the cursor
+     * doesn't have the column.
+     */
+    protected int optionalColumn(String name) {
+        return cursor.getColumnIndex(name);
+    }
+
+    /**
+     * Converts the row the cursor is positioned at.
+     */
+    public abstract T mapRow();
+
+    /**
+     * Moves the cursor through its remaining rows, converting each of them.
+     * @return the converted rows, in the cursor's order
+     */
+    public List<T> mapRemainingRows() {
+        List<T> rows = new ArrayList<T>();
+        while (cursor.moveToNext()) {
+            rows.add(mapRow());
+        }
+        return rows;
+    }
+}
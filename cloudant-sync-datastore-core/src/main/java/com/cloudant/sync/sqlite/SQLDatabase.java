@@ -110,6 +110,45 @@ public abstract class SQLDatabase {
      */
     public abstract void compactDatabase();
 
+    /**
+     * <p>Switches the database to write-ahead logging, allowing read-only
+     * connections to the same file to read concurrently with a writer.</p>
+     *
+     * <p>For SQLite database, this is to call:</p>
+     *
+     * <pre>    PRAGMA journal_mode = WAL;</pre>
+     *
+     * <p>The journal mode is persistent, so this only needs calling on the
+     * connection which writes to the database.</p>
+     *
+     * @return true if the database is now in write-ahead logging mode
+     * @throws java.sql.SQLException if the journal mode could not be queried or set
+     *
+     * @see <a href="http://www.sqlite.org/wal.html">SQLite Write-Ahead Logging</a>
+     */
+    public boolean enableWriteAheadLogging() throws SQLException {
+        Cursor cursor = null;
+        try {
+            // journal_mode returns the resulting mode as a row, so it can't go through execSQL
+            cursor = this.rawQuery("PRAGMA journal_mode = WAL;", null);
+            return cursor.moveToFirst() && "wal".equalsIgnoreCase(cursor.getString(0));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache of compiled statements used by this database, so its
+     * hit and miss counts can be inspected.
+     * @return the statement cache, or null if this implementation doesn't
+     *         cache statements itself.
+     */
+    public StatementCache<?> getStatementCache() {
+        return null;
+    }
+
     /**
      * <p>Gets the database version, and SQLDatabase's version is defined as:</p>
      *
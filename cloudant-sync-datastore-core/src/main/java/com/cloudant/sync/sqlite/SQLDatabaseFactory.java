@@ -133,6 +133,56 @@ public class SQLDatabaseFactory {
         }
     }
 
+    /**
+     * Opens an existing database without write access. Read-only connections
+     * are used alongside the connection returned by
+     * {@link #createSQLDatabase(String, KeyProvider)} to serve queries
+     * concurrently with writes.
+     * @param dbFilename full file path of the db file
+     * @param provider Key provider object storing the SQLCipher key
+     *                 Supply a NullKeyProvider to use a non-encrypted database.
+     * @return read-only {@code SQLDatabase} for the given filename, or null
+     *         if it could not be opened
+     */
+    public static SQLDatabase openReadOnlySqlDatabase(String dbFilename, KeyProvider provider) {
+
+        boolean runningOnAndroid =  Misc.isRunningOnAndroid();
+        boolean useSqlCipher = (provider.getEncryptionKey() != null);
+
+        try {
+
+            if (runningOnAndroid) {
+                if (useSqlCipher) {
+                    SQLDatabase result = (SQLDatabase) Class.forName("com.cloudant.sync.sqlite.android.AndroidSQLCipherSQLite")
+                            .getMethod("openReadOnlyAndroidSQLite", String.class, KeyProvider.class)
+                            .invoke(null, new Object[]{dbFilename, provider});
+
+                    if (validateOpenedDatabase(result)) {
+                        return result;
+                    } else {
+                        return null;
+                    }
+                } else {
+                    return (SQLDatabase) Class.forName("com.cloudant.sync.sqlite.android.AndroidSQLite")
+                            .getMethod("openReadOnlyAndroidSQLite", String.class)
+                            .invoke(null, dbFilename);
+                }
+            } else {
+                if (useSqlCipher) {
+                    throw new UnsupportedOperationException("No SQLCipher-based database implementation for Java SE");
+                } else {
+                    return (SQLDatabase) Class.forName("com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapper")
+                            .getMethod("openReadOnlySQLiteWrapper", String.class)
+                            .invoke(null, dbFilename);
+                }
+            }
+
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to load database module", e);
+            return null;
+        }
+    }
+
     /**
      * This method runs a simple SQL query to validate the opened database
      * is readable. In particular, this is useful for testing the key we
@@ -158,6 +208,22 @@ public class SQLDatabaseFactory {
         }
     }
 
+    /**
+     * <p>Applies the settings SQLite doesn't persist in the database file, so
+     * must be applied each time a connection is opened, before it is used.
+     * Currently this turns on foreign key constraints, which the schema relies
+     * on to cascade deletes.</p>
+     *
+     * <p>Must be called on the thread which uses the connection.</p>
+     *
+     * @param database newly opened database connection
+     *
+     * @throws SQLException if the settings could not be applied
+     */
+    public static void configureConnection(SQLDatabase database) throws SQLException {
+        database.execSQL("PRAGMA foreign_keys = ON;");
+    }
+
     /**
      * <p>Update schema for {@code SQLDatabase}</p>
      *
@@ -183,9 +249,6 @@ public class SQLDatabaseFactory {
             throws SQLException {
         Preconditions.checkArgument(version > 0, "Schema version number must be positive");
 
-        // Stuff we need to do every time the database opens because it is not
-        // persistent in sqlite
-        database.execSQL("PRAGMA foreign_keys = ON;");
         int dbVersion = database.getVersion();
         if(dbVersion < version) {
 
@@ -18,28 +18,188 @@ import com.cloudant.sync.datastore.encryption.KeyProvider;
 import com.cloudant.sync.datastore.encryption.NullKeyProvider;
 import com.cloudant.sync.datastore.migrations.Migration;
 
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * SQLDatabaseQuue provides the ability to ensure that the
  * only a single thread accesses the SQLDatabase. Tasks submitted to this
- * queue are guaranteed to be executed in the order they are received
+ * queue with the same priority are guaranteed to be executed in the order
+ * they are received
+ *
+ * <p>Optionally the queue can also maintain a pool of read-only connections.
+ * In that case the database is switched to write-ahead logging and tasks
+ * submitted using {@link #submitRead(SQLQueueCallable)} are executed on the
+ * pool, concurrently with each other and with the writer thread. Each reader
+ * sees the data committed at the time its statements are run.</p>
+ *
+ * <p>The queue can also group commits: transactional tasks submitted within a
+ * short window of each other are executed in a single SQLite transaction,
+ * each inside its own savepoint, so many small writes share one commit.
+ * See {@link #setGroupCommit(long, TimeUnit, int)}.</p>
+ *
+ * <p>Each task has a {@link Priority}. Waiting tasks are executed highest
+ * priority first, and in the order they were received within a priority, so
+ * background work such as replication doesn't delay tasks the user is waiting
+ * for. A task which has waited longer than {@link #STARVATION_THRESHOLD_MS}
+ * runs before any higher priority task, so background work always progresses.</p>
+ *
+ * <p>To save file handles, the database connections can be closed while the
+ * queue is idle using {@link #releaseConnections()}. They are reopened when
+ * the next task is executed.</p>
  *
  * @api_private
  */
 public class SQLDatabaseQueue {
 
-    private final SQLDatabase db;
-    private final ExecutorService queue = Executors.newSingleThreadExecutor();
+    private final String filename;
+    private final KeyProvider provider;
+    private final ExecutorService queue;
+
+    /**
+     * The read-write connection, only used on the writer thread. It is replaced
+     * when reopened after {@link #releaseConnections()}.
+     */
+    private SQLDatabase db;
+    private boolean connected = false;
+
+    /**
+     * The thread which executes tasks on {@link #db}, set once the database
+     * has been opened.
+     */
+    private volatile Thread writerThread;
+
+    /**
+     * Notified when connections are reopened after {@link #releaseConnections()}.
+     */
+    public interface ConnectionListener {
+        /**
+         * Called once when the queue reopens its connections to execute a task.
+         * Called on the writer thread when a write reopens the read-write
+         * connection, or on the thread calling {@code submitRead} when a read
+         * reopens the reader connections, so must not wait for other tasks.
+         * @param queue the queue which opened its connections
+         */
+        void connectionsOpened(SQLDatabaseQueue queue);
+    }
+
+    private volatile ConnectionListener connectionListener;
+
+    /**
+     * False from when {@link #releaseConnections()} is called until the
+     * connections are next opened.
+     */
+    private final AtomicBoolean active = new AtomicBoolean(true);
+    private volatile long lastUsed = System.nanoTime();
+
+    /**
+     * Incremented each time a task which may have written to the database
+     * completes, only modified on the writer thread.
+     */
+    private volatile long writeCount = 0;
+
+    /**
+     * The depth of nested tasks running on the writer thread, and whether one of
+     * them may have written. Only used on the writer thread.
+     */
+    private int writerDepth = 0;
+    private boolean writePending = false;
+
+    /**
+     * The priority of a task submitted to the queue.
+     */
+    public enum Priority {
+        /**
+         * Work a user is waiting for, such as reading a single document.
+         */
+        INTERACTIVE,
+        /**
+         * The default priority.
+         */
+        NORMAL,
+        /**
+         * Bulk work nobody is waiting for, such as replication, indexing and
+         * compaction.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * How long, in milliseconds, a task can wait for higher priority tasks
+     * before it is run ahead of them, {@value}.
+     */
+    public static final long STARVATION_THRESHOLD_MS = 500;
+
+    /**
+     * The lowest priority the current thread's tasks can be submitted with.
+     */
+    private static final ThreadLocal<Priority> threadPriority = new ThreadLocal<Priority>() {
+        @Override
+        protected Priority initialValue() {
+            return Priority.INTERACTIVE;
+        }
+    };
+
+    private final PriorityTaskQueue writerTasks =
+            new PriorityTaskQueue(TimeUnit.MILLISECONDS.toNanos(STARVATION_THRESHOLD_MS));
+    private final PriorityTaskQueue readerTasks =
+            new PriorityTaskQueue(TimeUnit.MILLISECONDS.toNanos(STARVATION_THRESHOLD_MS));
+
+    /**
+     * Pool of threads each holding a read-only connection, or null if reads are
+     * executed by the writer thread or the pool has been released. Guarded by
+     * {@link #readersLock}, as is {@link #readersClosed}.
+     */
+    private ExecutorService readers;
+    private CountDownLatch readersClosed;
+    private final Object readersLock = new Object();
+    private final int readerConnections;
+    private final ThreadLocal<SQLDatabase> readerDb = new ThreadLocal<SQLDatabase>();
+
+    /**
+     * Default maximum number of transactional tasks committed together, {@value}.
+     */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 100;
+
+    private static final String GROUP_COMMIT_SAVEPOINT = "group_commit_task";
+
+    private volatile long groupCommitWindowNanos = 0;
+    private volatile int groupCommitMaxSize = DEFAULT_GROUP_COMMIT_SIZE;
+
+    /**
+     * Transactional tasks waiting to be committed together, or null if there is
+     * no group currently accepting tasks. Guarded by {@link #groupLock}, as are
+     * the tasks of a group until it is closed.
+     */
+    private GroupCommit pendingGroup = null;
+    private final Object groupLock = new Object();
+
+    /**
+     * Closes group commit windows, created on first use. Guarded by the class.
+     */
+    private static ScheduledExecutorService groupCommitTimer;
+
     private final Logger logger = Logger.getLogger(SQLDatabase.class.getCanonicalName());
     private volatile boolean acceptTasks = true;
 
@@ -60,13 +220,152 @@ public class SQLDatabaseQueue {
      * @throws IOException If a problem occurs creating the database
      */
     public SQLDatabaseQueue(String filename, KeyProvider provider) throws IOException {
+        this(filename, provider, 0);
+    }
+
+    /**
+     * Creates an SQLQueue for the database specified, with a pool of
+     * read-only connections serving {@link #submitRead(SQLQueueCallable)}.
+     * @param filename The file where the database is located
+     * @param provider The key provider object that contains the user-defined SQLCipher key.
+     *                 Supply a NullKeyProvider to use a non-encrypted database.
+     * @param readerConnections The number of read-only connections to open. If zero, no
+     *                          pool is created and all tasks are executed by the writer.
+     * @throws IOException If a problem occurs creating the database
+     */
+    public SQLDatabaseQueue(String filename, KeyProvider provider, int readerConnections)
+            throws IOException {
+        this(filename, provider, readerConnections, Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * <p>Creates an SQLQueue for the database specified, executing tasks which use the
+     * read-write connection on the given executor.</p>
+     *
+     * <p>The executor must run tasks one at a time, always on the same thread, for
+     * example an executor from {@link SerialExecutorPool#executorFor(String)}. It is
+     * shut down when this queue is shut down.</p>
+     *
+     * @param filename The file where the database is located
+     * @param provider The key provider object that contains the user-defined SQLCipher key.
+     *                 Supply a NullKeyProvider to use a non-encrypted database.
+     * @param readerConnections The number of read-only connections to open. If zero, no
+     *                          pool is created and all tasks are executed by the writer.
+     * @param writer The executor for tasks using the read-write connection
+     * @throws IOException If a problem occurs creating the database
+     */
+    public SQLDatabaseQueue(String filename, KeyProvider provider, int readerConnections,
+                            ExecutorService writer) throws IOException {
+        Preconditions.checkArgument(readerConnections >= 0,
+                "Number of reader connections must not be negative");
+        Preconditions.checkNotNull(writer, "Writer executor must not be null");
+        this.filename = filename;
+        this.provider = provider;
+        this.queue = writer;
+        this.readerConnections = readerConnections;
         this.db = SQLDatabaseFactory.createSQLDatabase(filename, provider);
         queue.submit(new Runnable() {
             @Override
             public void run() {
-                db.open();
+                writerThread = Thread.currentThread();
+                try {
+                    openConnection();
+                } catch (IllegalStateException e) {
+                    logger.log(Level.SEVERE, "Failed to open database " + filename, e);
+                }
             }
         });
+
+        if (readerConnections > 0) {
+            enableWriteAheadLogging();
+            synchronized (readersLock) {
+                readerPool();
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of reader threads, starting a new one if it has been released.
+     * Must be called holding {@link #readersLock}.
+     */
+    private ExecutorService readerPool() {
+        if (readers == null) {
+            readersClosed = new CountDownLatch(readerConnections);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(readerConnections,
+                    readerConnections, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ReaderThreadFactory(readersClosed));
+            pool.prestartAllCoreThreads();
+            readers = pool;
+        }
+        return readers;
+    }
+
+    /**
+     * Called on the writer thread before each task, opens the read-write
+     * connection if it has been released.
+     */
+    private void ensureOpen() {
+        if (!connected) {
+            try {
+                db = SQLDatabaseFactory.createSQLDatabase(filename, provider);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to reopen database " + filename, e);
+            }
+            if (db == null) {
+                throw new IllegalStateException("Failed to reopen database " + filename);
+            }
+            openConnection();
+            connectionsOpened();
+        }
+    }
+
+    /**
+     * Called on the writer thread, opens {@link #db} and applies the settings
+     * each new connection needs.
+     */
+    private void openConnection() {
+        db.open();
+        try {
+            SQLDatabaseFactory.configureConnection(db);
+        } catch (SQLException e) {
+            db.close();
+            throw new IllegalStateException("Failed to configure connection to " + filename, e);
+        }
+        connected = true;
+    }
+
+    private void connectionsOpened() {
+        // only the first of concurrent reopens notifies the listener
+        if (active.compareAndSet(false, true)) {
+            ConnectionListener listener = connectionListener;
+            if (listener != null) {
+                listener.connectionsOpened(this);
+            }
+        }
+    }
+
+    /**
+     * Switches the database to write-ahead logging on the writer thread,
+     * waiting for the switch so readers never open against a database
+     * still using a rollback journal.
+     */
+    private void enableWriteAheadLogging() throws IOException {
+        try {
+            boolean enabled = queue.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return db.enableWriteAheadLogging();
+                }
+            }).get();
+            if (!enabled) {
+                logger.warning(String.format("Could not enable write-ahead logging for %s, " +
+                        "reads may wait for writes to complete", filename));
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while enabling write-ahead logging", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to enable write-ahead logging", e.getCause());
+        }
     }
 
     /**
@@ -75,13 +374,18 @@ public class SQLDatabaseQueue {
      * @param version The version of the schema
      */
     public void updateSchema(final Migration migration, final int version){
-        queue.execute(new Runnable() {
+        // Highest priority so no task submitted afterwards can run before the migration
+        writerTasks.execute(queue, Priority.INTERACTIVE, new Runnable() {
             @Override
             public void run() {
                 try {
+                    ensureOpen();
                     SQLDatabaseFactory.updateSchema(db, migration, version);
+                    writeCount++;
                 } catch (SQLException e){
                     logger.log(Level.SEVERE, "Failed to update database schema",e);
+                } catch (IllegalStateException e) {
+                    logger.log(Level.SEVERE, "Failed to update database schema",e);
                 }
             }
         }); // Fire and forget
@@ -109,32 +413,405 @@ public class SQLDatabaseQueue {
         }
     }
 
+    /**
+     * <p>Limits the priority of tasks subsequently submitted by the calling
+     * thread: a task submitted with a higher priority is executed at this
+     * priority instead.</p>
+     *
+     * <p>This lets long running work, such as a replication, run at
+     * {@link Priority#BACKGROUND} without each call it makes to the datastore
+     * having to specify a priority. Callers should restore the previous value
+     * when they finish.</p>
+     *
+     * @param priority the lowest priority for tasks submitted by this thread,
+     *                 {@link Priority#INTERACTIVE} removes the limit.
+     * @return the previous limit for this thread
+     */
+    public static Priority setThreadPriority(Priority priority) {
+        Preconditions.checkNotNull(priority, "Priority must not be null");
+        Priority previous = threadPriority.get();
+        threadPriority.set(priority);
+        return previous;
+    }
+
+    /**
+     * @return the lowest priority tasks submitted by the calling thread are
+     *         executed with, see {@link #setThreadPriority(Priority)}.
+     */
+    public static Priority getThreadPriority() {
+        return threadPriority.get();
+    }
+
+    /**
+     * Returns the priority a task submitted by the calling thread with the
+     * given priority is executed with.
+     */
+    private static Priority effectivePriority(Priority requested) {
+        Preconditions.checkNotNull(requested, "Priority must not be null");
+        Priority limit = threadPriority.get();
+        return requested.compareTo(limit) >= 0 ? requested : limit;
+    }
+
+    /**
+     * Submits a database task for execution at {@link Priority#NORMAL}
+     * @param callable The task to be performed
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException Thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     */
+    public <T> ListenableFuture<T> submit(SQLQueueCallable<T> callable){
+        return submit(callable, Priority.NORMAL);
+    }
+
     /**
      * Submits a database task for execution
      * @param callable The task to be performed
+     * @param priority The priority of the task
      * @param <T> The type of object that is returned from the task
      * @throws RejectedExecutionException Thrown when the queue has been shutdown
      * @return Future representing the task to be executed.
      */
-    public <T> Future<T> submit(SQLQueueCallable<T> callable){
-        callable.setDb(db);
+    public <T> ListenableFuture<T> submit(SQLQueueCallable<T> callable, Priority priority){
         callable.setRunInTransaction(false);
-        return this.submitTaskToQueue(callable);
+        return this.submitTaskToQueue(callable, effectivePriority(priority), true);
+    }
+
+    /**
+     * Submits a database task for execution in a transaction at {@link Priority#NORMAL}
+     * @param callable The task to be performed
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     */
+    public <T> ListenableFuture<T> submitTransaction(SQLQueueCallable<T> callable){
+        return submitTransaction(callable, Priority.NORMAL);
     }
 
     /**
      * Submits a database task for execution in a transaction
      * @param callable The task to be performed
+     * @param priority The priority of the task
      * @param <T> The type of object that is returned from the task
      * @throws RejectedExecutionException thrown when the queue has been shutdown
      * @return Future representing the task to be executed.
      */
-    public <T> Future<T> submitTransaction(SQLQueueCallable<T> callable){
-        callable.setDb(db);
+    public <T> ListenableFuture<T> submitTransaction(SQLQueueCallable<T> callable, Priority priority){
+        // A task submitted from the writer thread runs immediately, it can't wait for a group
+        if (groupCommitWindowNanos > 0 && Thread.currentThread() != writerThread) {
+            return this.submitToGroupCommit(callable, effectivePriority(priority));
+        }
         callable.setRunInTransaction(true);
-        return this.submitTaskToQueue(callable);
+        return this.submitTaskToQueue(callable, effectivePriority(priority), true);
+    }
+
+    /**
+     * <p>Configures group commit for tasks passed to
+     * {@link #submitTransaction(SQLQueueCallable)}.</p>
+     *
+     * <p>When enabled, a transactional task waits up to {@code window} for further
+     * transactional tasks, then all of them, up to {@code maxGroupSize}, are executed
+     * one after another in a single transaction and committed together. Each task
+     * runs inside its own savepoint: a task which throws is rolled back on its own and
+     * its {@code Future} fails, the other tasks in the group are unaffected. The
+     * {@code Future} for each task completes only once the group has been committed.</p>
+     *
+     * <p>The writer thread isn't held up while a group waits for its window to
+     * close, it carries on executing other tasks.</p>
+     *
+     * <p>Tasks in a group run in the order they were submitted, with the priority of
+     * the first task of the group. The group joins the queue once its window has
+     * closed or it is full, so tasks submitted without a transaction during the
+     * window may run before it.</p>
+     *
+     * @param window how long to wait for further tasks to join a group, zero to
+     *               disable group commit
+     * @param unit the unit of {@code window}
+     * @param maxGroupSize the maximum number of tasks committed together
+     */
+    public void setGroupCommit(long window, TimeUnit unit, int maxGroupSize) {
+        Preconditions.checkArgument(window >= 0, "Group commit window must not be negative");
+        Preconditions.checkArgument(maxGroupSize > 0, "Group commit size must be positive");
+        this.groupCommitMaxSize = maxGroupSize;
+        this.groupCommitWindowNanos = unit.toNanos(window);
     }
 
+    /**
+     * Adds a transactional task to the group currently accepting tasks,
+     * starting a new group if needed.
+     */
+    private <T> ListenableFuture<T> submitToGroupCommit(SQLQueueCallable<T> callable, Priority priority) {
+        GroupCommitTask<T> task = new GroupCommitTask<T>(callable);
+        lastUsed = System.nanoTime();
+        GroupCommit full = null;
+        synchronized (groupLock) {
+            if (!acceptTasks) {
+                throw new RejectedExecutionException("Database is closed");
+            }
+            if (pendingGroup == null) {
+                final GroupCommit group = new GroupCommit(priority, groupCommitMaxSize);
+                groupCommitTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closeGroup(group)) {
+                            scheduleCommit(group);
+                        }
+                    }
+                }, groupCommitWindowNanos, TimeUnit.NANOSECONDS);
+                pendingGroup = group;
+            }
+            pendingGroup.tasks.add(task);
+            if (pendingGroup.tasks.size() >= pendingGroup.maxSize) {
+                // full, later tasks start a new group
+                full = pendingGroup;
+                pendingGroup = null;
+            }
+        }
+        if (full != null) {
+            scheduleCommit(full);
+        }
+        return task.future;
+    }
+
+    /**
+     * Stops the group accepting tasks if it still is.
+     * @return true if the group was accepting tasks, and so needs to be committed
+     */
+    private boolean closeGroup(GroupCommit group) {
+        synchronized (groupLock) {
+            if (pendingGroup != group) {
+                return false;
+            }
+            pendingGroup = null;
+            return true;
+        }
+    }
+
+    /**
+     * Queues a closed group to be committed on the writer thread, failing its
+     * tasks if the queue has been shut down.
+     */
+    private void scheduleCommit(final GroupCommit group) {
+        try {
+            writerTasks.execute(queue, group.priority, new Runnable() {
+                @Override
+                public void run() {
+                    commitGroup(group);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (GroupCommitTask<?> task : group.tasks) {
+                task.future.setException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the timer closing group commit windows, shared by all queues so
+     * waiting for a window never holds up a writer thread.
+     */
+    private static ScheduledExecutorService groupCommitTimer() {
+        synchronized (SQLDatabaseQueue.class) {
+            if (groupCommitTimer == null) {
+                groupCommitTimer = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "sqldatabasequeue-group-commit-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return groupCommitTimer;
+        }
+    }
+
+    /**
+     * Executed on the writer thread once the group has been closed: runs all
+     * its tasks in one transaction.
+     */
+    private void commitGroup(GroupCommit group) {
+        List<GroupCommitTask<?>> tasks = group.tasks;
+        try {
+            ensureOpen();
+            db.beginTransaction();
+            // Tasks nested in the group's tasks are committed with the group
+            writerDepth++;
+            try {
+                for (GroupCommitTask<?> task : tasks) {
+                    task.run(db);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                writerDepth--;
+                // rolls back unless every task ran, so no task's changes are kept
+                db.endTransaction();
+                writePending = false;
+                writeCount++;
+            }
+        } catch (Throwable e) {
+            // errors too, or the group's callers would wait forever
+            logger.log(Level.SEVERE, "Failed to commit group of transactions", e);
+            for (GroupCommitTask<?> task : tasks) {
+                task.future.setException(e);
+            }
+            return;
+        }
+        for (GroupCommitTask<?> task : tasks) {
+            task.complete();
+        }
+    }
+
+    /**
+     * <p>Submits a database task which only reads from the database for
+     * execution.</p>
+     *
+     * <p>If this queue has reader connections the task is run on one of them,
+     * concurrently with other reads and with tasks on the writer thread,
+     * so reads submitted this way are not ordered with respect to writes
+     * submitted earlier which have not yet completed. Otherwise this is the
+     * same as {@link #submit(SQLQueueCallable)}.</p>
+     *
+     * <p>The task must not write to the database or begin a transaction.</p>
+     *
+     * @param callable The task to be performed
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException Thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     */
+    public <T> ListenableFuture<T> submitRead(SQLQueueCallable<T> callable) {
+        return submitRead(callable, Priority.NORMAL);
+    }
+
+    /**
+     * Submits a database task which only reads from the database for
+     * execution, see {@link #submitRead(SQLQueueCallable)}.
+     *
+     * @param callable The task to be performed
+     * @param priority The priority of the task
+     * @param <T> The type of object that is returned from the task
+     * @throws RejectedExecutionException Thrown when the queue has been shutdown
+     * @return Future representing the task to be executed.
+     */
+    public <T> ListenableFuture<T> submitRead(final SQLQueueCallable<T> callable, Priority priority) {
+        if (readerConnections == 0) {
+            callable.setRunInTransaction(false);
+            return submitTaskToQueue(callable, effectivePriority(priority), false);
+        }
+        if (!acceptTasks) {
+            throw new RejectedExecutionException("Database is closed");
+        }
+        lastUsed = System.nanoTime();
+        callable.setRunInTransaction(false);
+        ListenableFutureTask<T> task = ListenableFutureTask.create(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                callable.setDb(readerDatabase());
+                return callable.call();
+            }
+        });
+        synchronized (readersLock) {
+            // the pool is only shut down holding the lock, so can't reject the task
+            readerTasks.execute(readerPool(), effectivePriority(priority), task);
+        }
+        connectionsOpened();
+        return task;
+    }
+
+    /**
+     * Returns the read-only connection for the calling reader thread,
+     * opening it on first use.
+     */
+    private SQLDatabase readerDatabase() throws SQLException {
+        SQLDatabase reader = readerDb.get();
+        if (reader == null) {
+            reader = SQLDatabaseFactory.openReadOnlySqlDatabase(filename, provider);
+            if (reader == null) {
+                throw new SQLException("Failed to open read-only connection to " + filename);
+            }
+            readerDb.set(reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Returns the number of read-only connections this queue was created with.
+     * @return the number of reader connections, zero if reads are executed
+     *         by the writer thread.
+     */
+    public int getReaderConnections() {
+        return readerConnections;
+    }
+
+    /**
+     * Sets the listener notified when connections are reopened after
+     * {@link #releaseConnections()}.
+     * @param listener the listener, or null to remove it
+     */
+    public void setConnectionListener(ConnectionListener listener) {
+        this.connectionListener = listener;
+    }
+
+    /**
+     * <p>Closes the database connections once the tasks already submitted
+     * have been executed. They are reopened when the next task is executed,
+     * so this can be called at any time while the queue isn't shut down.</p>
+     *
+     * <p>The writer thread is kept, only the connections are closed.</p>
+     */
+    public void releaseConnections() {
+        if (!acceptTasks) {
+            return;
+        }
+        active.set(false);
+        ExecutorService pool;
+        synchronized (readersLock) {
+            pool = readers;
+            readers = null;
+            if (pool != null) {
+                // reader threads close their own connections as they exit
+                pool.shutdown();
+            }
+        }
+        writerTasks.execute(queue, Priority.BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                if (connected && !active.get()) {
+                    db.close();
+                    connected = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true unless {@link #releaseConnections()} has been called and no
+     *         task has required the connections to be reopened since.
+     */
+    public boolean isActive() {
+        return active.get();
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when a task was last submitted
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * <p>Returns a number which is incremented after each task submitted using
+     * {@link #submit(SQLQueueCallable)} or {@link #submitTransaction(SQLQueueCallable)}
+     * has completed and its changes have been committed.</p>
+     *
+     * <p>A value read from the database can be cached along with the count read
+     * before the value, and reused for as long as the count is unchanged.</p>
+     *
+     * @return the number of write tasks completed
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
     /**
      * Shuts down this database queue and closes
      * the underlying database connection. Any tasks
@@ -144,11 +821,40 @@ public class SQLDatabaseQueue {
      */
     public void shutdown() {
         acceptTasks = false;
+        ExecutorService pool;
+        CountDownLatch poolClosed;
+        synchronized (readersLock) {
+            pool = readers;
+            poolClosed = readersClosed;
+            readers = null;
+        }
+        if (pool != null) {
+            // Let reads already submitted complete, reader threads close their
+            // own connections as they exit.
+            pool.shutdown();
+            try {
+                pool.awaitTermination(5, TimeUnit.MINUTES);
+                poolClosed.await(5, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                logger.log(Level.SEVERE, "Interrupted while waiting for readers to terminate", e);
+            }
+        }
+        // A group still waiting for its window is committed before the connection closes
+        GroupCommit group;
+        synchronized (groupLock) {
+            group = pendingGroup;
+        }
+        if (group != null && closeGroup(group)) {
+            scheduleCommit(group);
+        }
         //pass straight to queue, tasks passed via submitTaskToQueue will now be blocked.
         queue.submit(new Runnable() {
             @Override
             public void run() {
-                db.close();
+                if (connected) {
+                    db.close();
+                    connected = false;
+                }
             }
         });
         queue.shutdown();
@@ -172,15 +878,129 @@ public class SQLDatabaseQueue {
      * Adds a task to the queue, checking if the queue is still open
      * to accepting tasks
      * @param callable The task to submit to the queue
+     * @param priority The priority to execute the task with
+     * @param write Whether the task may write to the database
      * @param <T> The type of object that the callable returns
      * @return Future representing the task to be executed.
      * @throws RejectedExecutionException If the queue has been shutdown.
      */
-    private <T> Future<T> submitTaskToQueue(SQLQueueCallable<T> callable){
+    private <T> ListenableFuture<T> submitTaskToQueue(final SQLQueueCallable<T> callable,
+                                            Priority priority, final boolean write){
         if(acceptTasks){
-            return queue.submit(callable);
+            lastUsed = System.nanoTime();
+            ListenableFutureTask<T> task = ListenableFutureTask.create(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    writerDepth++;
+                    writePending |= write;
+                    try {
+                        ensureOpen();
+                        callable.setDb(db);
+                        return callable.call();
+                    } finally {
+                        // A nested task's changes are only committed with the outermost task
+                        if (--writerDepth == 0 && writePending) {
+                            writePending = false;
+                            writeCount++;
+                        }
+                    }
+                }
+            });
+            if (Thread.currentThread() == writerThread) {
+                // Submitted by a task already running on the writer thread, perhaps one for
+                // another database sharing the thread. Queueing it would deadlock.
+                task.run();
+            } else {
+                writerTasks.execute(queue, priority, task);
+            }
+            return task;
         } else {
             throw new RejectedExecutionException("Database is closed");
         }
     }
+
+    /**
+     * Transactional tasks committed together.
+     */
+    private static class GroupCommit {
+        final List<GroupCommitTask<?>> tasks = new ArrayList<GroupCommitTask<?>>();
+        final Priority priority;
+        final int maxSize;
+
+        GroupCommit(Priority priority, int maxSize) {
+            this.priority = priority;
+            this.maxSize = maxSize;
+        }
+    }
+
+    /**
+     * A transactional task in a group commit. Its result is held until the
+     * group has been committed.
+     */
+    private static class GroupCommitTask<T> {
+        final SQLQueueCallable<T> callable;
+        final SettableFuture<T> future = SettableFuture.create();
+        private T result;
+        private Throwable error;
+
+        GroupCommitTask(SQLQueueCallable<T> callable) {
+            this.callable = callable;
+        }
+
+        void run(SQLDatabase db) {
+            if (future.isCancelled()) {
+                return;
+            }
+            callable.setDb(new SavepointSQLDatabase(db, GROUP_COMMIT_SAVEPOINT));
+            callable.setRunInTransaction(true);
+            try {
+                result = callable.call();
+            } catch (Throwable e) {
+                // the savepoint has been rolled back, only this task fails
+                error = e;
+            }
+        }
+
+        void complete() {
+            if (error != null) {
+                future.setException(error);
+            } else {
+                future.set(result);
+            }
+        }
+    }
+
+    /**
+     * Creates reader threads which close their read-only connection when
+     * the pool is shut down, as connections can only be closed by the thread
+     * which opened them.
+     */
+    private class ReaderThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory delegate = Executors.defaultThreadFactory();
+        private final CountDownLatch readersClosed;
+
+        ReaderThreadFactory(CountDownLatch readersClosed) {
+            this.readersClosed = readersClosed;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return delegate.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        SQLDatabase reader = readerDb.get();
+                        if (reader != null) {
+                            reader.close();
+                            readerDb.remove();
+                        }
+                        readersClosed.countDown();
+                    }
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.android.ContentValues;
+import com.google.common.base.Preconditions;
+
+import java.sql.SQLException;
+import java.util.Stack;
+
+/**
+ * <p>Wraps a database which is already in a transaction so that the
+ * transactions begun through this object are savepoints inside it.</p>
+ *
+ * <p>Nested transactions behave as they do for the wrapped database: if any
+ * transaction in a nested set isn't marked successful, the whole set is
+ * rolled back. Rolling back only undoes the work since the outermost
+ * savepoint, leaving the enclosing transaction able to commit.</p>
+ *
+ * <p>All other methods are passed straight through.</p>
+ *
+ * @api_private
+ */
+public class SavepointSQLDatabase extends SQLDatabase {
+
+    private final SQLDatabase db;
+    private final String savepoint;
+
+    private boolean transactionNestedSetSuccess = false;
+    private final Stack<Boolean> transactionStack = new Stack<Boolean>();
+
+    /**
+     * @param db the database, which must be in a transaction when this
+     *           object's transactions begin
+     * @param savepoint the name of the savepoint
+     */
+    public SavepointSQLDatabase(SQLDatabase db, String savepoint) {
+        this.db = db;
+        this.savepoint = savepoint;
+        this.filename = db.filename;
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (transactionStack.isEmpty()) {
+            try {
+                db.execSQL("SAVEPOINT " + savepoint);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Fatal error running 'SAVEPOINT'", e);
+            }
+            transactionNestedSetSuccess = true;
+        }
+        transactionStack.push(false);
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        transactionStack.pop();
+        transactionStack.push(true);
+    }
+
+    @Override
+    public void endTransaction() {
+        Preconditions.checkState(transactionStack.size() >= 1,
+                "TransactionStatus stack must not be empty");
+        if (!transactionStack.pop()) {
+            transactionNestedSetSuccess = false;
+        }
+        if (transactionStack.isEmpty()) {
+            try {
+                if (!transactionNestedSetSuccess) {
+                    // The leading ';' stops Android treating this as a ROLLBACK
+                    // of the enclosing transaction.
+                    db.execSQL(";ROLLBACK TO " + savepoint);
+                }
+                db.execSQL("RELEASE " + savepoint);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Fatal error ending savepoint " + savepoint, e);
+            }
+        }
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+        db.execSQL(sql, bindArgs);
+    }
+
+    @Override
+    public void execSQL(String sql) throws SQLException {
+        db.execSQL(sql);
+    }
+
+    @Override
+    public void compactDatabase() {
+        db.compactDatabase();
+    }
+
+    @Override
+    public StatementCache<?> getStatementCache() {
+        return db.getStatementCache();
+    }
+
+    @Override
+    public int getVersion() {
+        return db.getVersion();
+    }
+
+    @Override
+    public void open() {
+        db.open();
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return db.isOpen();
+    }
+
+    @Override
+    public int update(String table, ContentValues values, String whereClause,
+                      String[] whereArgs) {
+        return db.update(table, values, whereClause, whereArgs);
+    }
+
+    @Override
+    public Cursor rawQuery(String sql, String[] selectionArgs) throws SQLException {
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    @Override
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        return db.delete(table, whereClause, whereArgs);
+    }
+
+    @Override
+    public long insert(String table, ContentValues values) {
+        return db.insert(table, values);
+    }
+
+    @Override
+    public long insertWithOnConflict(String table, ContentValues initialValues,
+                                     int conflictAlgorithm) {
+        return db.insertWithOnConflict(table, initialValues, conflictAlgorithm);
+    }
+}
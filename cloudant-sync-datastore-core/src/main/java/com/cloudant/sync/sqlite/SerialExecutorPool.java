@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A fixed set of worker threads shared by many databases, each of which
+ * needs its tasks executed one at a time.</p>
+ *
+ * <p>{@link #executorFor(String)} returns a serial executor for a key, such as a
+ * database file name. All executors for the same key run their tasks on the
+ * same worker thread, which matters because a database connection must only be
+ * used by the thread which opened it. Executors for different keys may share a
+ * worker thread, so a long running task delays the other keys on its worker.</p>
+ *
+ * <p>Each executor can be shut down independently of the others. The worker
+ * threads are daemon threads and run until {@link #shutdown()} is called.</p>
+ *
+ * @api_private
+ */
+public class SerialExecutorPool {
+
+    private static final Logger logger = Logger.getLogger(SerialExecutorPool.class.getCanonicalName());
+
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+    private final List<ExecutorService> workers;
+
+    /**
+     * Creates a pool with a fixed number of worker threads.
+     * @param threads the number of worker threads
+     */
+    public SerialExecutorPool(int threads) {
+        Preconditions.checkArgument(threads > 0, "Number of threads must be positive");
+        final String prefix = "datastore-pool-" + poolNumber.getAndIncrement() + "-worker-";
+        List<ExecutorService> workers = new ArrayList<ExecutorService>(threads);
+        for (int i = 0; i < threads; i++) {
+            final String name = prefix + i;
+            workers.add(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        }
+        this.workers = Collections.unmodifiableList(workers);
+    }
+
+    /**
+     * Returns a new serial executor running its tasks on the worker thread
+     * for {@code key}.
+     * @param key identifies the resource the tasks use, tasks for equal keys
+     *            always run on the same thread
+     * @return an executor which runs tasks one at a time, in the order submitted
+     */
+    public ExecutorService executorFor(String key) {
+        Preconditions.checkNotNull(key, "Key must not be null");
+        int index = (key.hashCode() & Integer.MAX_VALUE) % workers.size();
+        return new PinnedExecutor(workers.get(index));
+    }
+
+    /**
+     * @return the number of worker threads in this pool
+     */
+    public int getThreadCount() {
+        return workers.size();
+    }
+
+    /**
+     * Stops the worker threads once the tasks already submitted have been executed.
+     * Executors returned by {@link #executorFor(String)} reject tasks afterwards.
+     */
+    public void shutdown() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * Serial executor for one key. Tracks its own tasks so it can be shut down
+     * and awaited without affecting the worker thread it shares.
+     */
+    private static class PinnedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService worker;
+        private final Object lock = new Object();
+        private int pending = 0;
+        private boolean shutdown = false;
+
+        PinnedExecutor(ExecutorService worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            synchronized (lock) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+                pending++;
+            }
+            try {
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } catch (RuntimeException e) {
+                            // Don't let the worker thread die, it would be replaced by a
+                            // thread which can't use the connections opened on this one.
+                            logger.log(Level.SEVERE, "Uncaught exception from task", e);
+                        } finally {
+                            taskDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                taskDone();
+                throw e;
+            }
+        }
+
+        private void taskDone() {
+            synchronized (lock) {
+                pending--;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (lock) {
+                shutdown = true;
+            }
+        }
+
+        /**
+         * Shuts down this executor. Tasks already submitted to the shared worker
+         * can't be removed from it, so they are still executed and an empty list
+         * is returned.
+         */
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (lock) {
+                return shutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (lock) {
+                return shutdown && pending == 0;
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (lock) {
+                long remaining;
+                while (!(shutdown && pending == 0)) {
+                    remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.google.common.base.Preconditions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Bounded least-recently-used cache of compiled statements, keyed by their
+ * SQL, for a single database connection.</p>
+ *
+ * <p>Statements are checked out of the cache while in use and checked back in
+ * once they have been reset, so a statement is never handed out twice. When
+ * the cache is full the least recently used statement is disposed.</p>
+ *
+ * <p>Like the connection it belongs to, the cache must only be used by one
+ * thread at a time. The hit and miss counters may be read from any thread.</p>
+ *
+ * @param <S> the type of compiled statement
+ *
+ * @api_private
+ */
+public abstract class StatementCache<S> {
+
+    /**
+     * Default number of statements cached per connection, {@value}.
+     */
+    public static final int DEFAULT_CAPACITY = 50;
+
+    private final int capacity;
+    private final Map<String, S> statements;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of statements held by the cache, zero
+     *                 disables caching.
+     */
+    public StatementCache(int capacity) {
+        Preconditions.checkArgument(capacity >= 0, "Cache capacity must not be negative");
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap<String, S>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, S> eldest) {
+                if (size() > StatementCache.this.capacity) {
+                    dispose(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Disposes of a statement which has been evicted from the cache, or
+     * couldn't be returned to it.
+     * @param statement the statement to dispose of
+     */
+    protected abstract void dispose(S statement);
+
+    /**
+     * Takes the compiled statement for {@code sql} out of the cache.
+     * @param sql the SQL of the statement
+     * @return the compiled statement, or null if it isn't cached and should
+     *         be compiled by the caller.
+     */
+    public S checkout(String sql) {
+        S statement = statements.remove(sql);
+        if (statement != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * Returns a statement to the cache. The statement must have been reset
+     * and must not be used by the caller afterwards.
+     * @param sql the SQL of the statement
+     * @param statement the compiled statement
+     */
+    public void checkin(String sql, S statement) {
+        if (capacity == 0) {
+            dispose(statement);
+            return;
+        }
+        S previous = statements.put(sql, statement);
+        if (previous != null && previous != statement) {
+            // the same SQL was compiled again while this statement was checked out
+            dispose(previous);
+        }
+    }
+
+    /**
+     * Disposes of all cached statements.
+     */
+    public void clear() {
+        for (S statement : statements.values()) {
+            dispose(statement);
+        }
+        statements.clear();
+    }
+
+    /**
+     * @return the maximum number of statements held by the cache
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of statements currently in the cache
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return the number of times a statement was found in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of times a statement had to be compiled
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
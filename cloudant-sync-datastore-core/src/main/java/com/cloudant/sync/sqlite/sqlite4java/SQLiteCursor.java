@@ -121,11 +121,7 @@ public class SQLiteCursor implements Cursor {
 
     @Override
     public int getColumnIndex(String columnName) {
-        if(names.contains(columnName)) {
-            return names.indexOf(columnName);
-        } else {
-            return -1;
-        }
+        return names.indexOf(columnName);
     }
 
     @Override
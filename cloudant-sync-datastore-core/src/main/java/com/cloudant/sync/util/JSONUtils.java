@@ -17,13 +17,20 @@ package com.cloudant.sync.util;
 import com.cloudant.common.CouchConstants;
 import com.cloudant.common.PropertyFilterMixIn;
 import com.cloudant.mazha.Document;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.ser.FilterProvider;
 import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
 import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Map;
@@ -59,8 +66,13 @@ public class JSONUtils {
 
     private static final ObjectMapper sMapper = new ObjectMapper();
 
+    // Reads and writes Smile, a binary encoding of JSON, for document bodies
+    // stored in that format
+    private static final ObjectMapper sSmileMapper = new ObjectMapper(new SmileFactory());
+
     static {
         sMapper.registerModule(new JacksonModule());
+        sSmileMapper.registerModule(new JacksonModule());
     }
 
     private static FilterProvider getFilterProvider(boolean usingFilter) {
@@ -86,8 +98,7 @@ public class JSONUtils {
 
     public static boolean isValidJSON(final String json) {
         try {
-            getsMapper().readValue(json, Map.class);
-            return true;
+            return isJSONObject(getsMapper().getFactory().createParser(json));
         } catch (Exception e) {
             return false;
         }
@@ -95,13 +106,28 @@ public class JSONUtils {
 
     public static boolean isValidJSON(final byte[] json) {
         try {
-            getsMapper().readValue(json, Map.class);
-            return true;
+            return isJSONObject(getsMapper().getFactory().createParser(json));
         } catch (Exception e) {
             return false;
         }
     }
 
+    /**
+     * Checks that the parser's input is a JSON object by reading through its
+     * tokens, without building the object.
+     */
+    private static boolean isJSONObject(JsonParser parser) throws IOException {
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return false;
+            }
+            parser.skipChildren();
+            return parser.getCurrentToken() == JsonToken.END_OBJECT;
+        } finally {
+            parser.close();
+        }
+    }
+
     public static byte[] serializeAsBytes(Map object) {
         return serializeAsBytes(object, true);
     }
@@ -152,6 +178,68 @@ public class JSONUtils {
         }
     }
 
+    /**
+     * Serializes a map as Smile, the binary equivalent of
+     * {@link #serializeAsBytes(Map)}.
+     */
+    public static byte[] serializeAsSmile(Map object) {
+        try {
+            return sSmileMapper.writer(getFilterProvider(true)).writeValueAsBytes(object);
+        } catch (Exception e) {
+            throw new IllegalStateException("Error converting object to Smile: " + object);
+        }
+    }
+
+    public static Map<String, Object> deserializeSmile(byte[] smile) {
+        try {
+            return sSmileMapper.readValue(smile, Map.class);
+        } catch (Exception e) {
+            throw new IllegalStateException("Error converting Smile to map object", e);
+        }
+    }
+
+    /**
+     * Converts JSON to Smile token by token, without building the object.
+     */
+    public static byte[] jsonToSmile(byte[] json) {
+        try {
+            return convert(getsMapper().getFactory(), sSmileMapper.getFactory(), json);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error converting JSON to Smile: " +
+                    bytesToString(json), e);
+        }
+    }
+
+    /**
+     * Converts Smile to JSON token by token, without building the object.
+     */
+    public static byte[] smileToJson(byte[] smile) {
+        try {
+            return convert(sSmileMapper.getFactory(), getsMapper().getFactory(), smile);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error converting Smile to JSON", e);
+        }
+    }
+
+    private static byte[] convert(JsonFactory from, JsonFactory to, byte[] input)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length);
+        JsonParser parser = from.createParser(input);
+        try {
+            JsonGenerator generator = to.createGenerator(output);
+            try {
+                if (parser.nextToken() != null) {
+                    generator.copyCurrentStructure(parser);
+                }
+            } finally {
+                generator.close();
+            }
+        } finally {
+            parser.close();
+        }
+        return output.toByteArray();
+    }
+
     public static String toPrettyJson(Object rev) {
         try {
             return getsMapper().writerWithDefaultPrettyPrinter().writeValueAsString(rev);
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the time to read each page of all documents using an offset
+ * with the time using the ID of the last document of the previous page.
+ */
+@Category(PerformanceTest.class)
+public class AllDocumentsPagingPerformanceTest extends BasicDatastoreTestBase {
+
+    private static final int DOCUMENTS = 20000;
+    private static final int PAGE_SIZE = 500;
+    private static final int BATCH_SIZE = 1000;
+
+    @Test
+    public void pageCostWithOffsetAndWithContinuation() throws Exception {
+        for (int batch = 0; batch < DOCUMENTS / BATCH_SIZE; batch++) {
+            List<ForceInsertItem> items = new ArrayList<ForceInsertItem>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+                builder.setDocId(String.format("doc-%08d", batch * BATCH_SIZE + i));
+                builder.setRevId("1-rev");
+                builder.setDeleted(false);
+                builder.setBody(bodyOne);
+                items.add(new ForceInsertItem(builder.build(),
+                        Collections.singletonList("1-rev"), null, null, false));
+            }
+            datastore.forceInsert(items);
+        }
+
+        int pages = DOCUMENTS / PAGE_SIZE;
+        long[] offsetMillis = new long[pages];
+        for (int p = 0; p < pages; p++) {
+            long start = System.nanoTime();
+            List<DocumentRevision> page = datastore.getAllDocuments(p * PAGE_SIZE, PAGE_SIZE,
+                    false);
+            offsetMillis[p] = (System.nanoTime() - start) / 1000000;
+            Assert.assertEquals(PAGE_SIZE, page.size());
+        }
+
+        long[] continuationMillis = new long[pages];
+        String after = null;
+        for (int p = 0; p < pages; p++) {
+            long start = System.nanoTime();
+            List<DocumentRevision> page = datastore.getAllDocumentsAfter(after, PAGE_SIZE, false);
+            continuationMillis[p] = (System.nanoTime() - start) / 1000000;
+            Assert.assertEquals(PAGE_SIZE, page.size());
+            after = page.get(page.size() - 1).getId();
+        }
+
+        System.out.println(String.format("Reading %d documents in pages of %d: offset first " +
+                "page %d ms, last page %d ms, total %d ms; continuation first page %d ms, " +
+                "last page %d ms, total %d ms", DOCUMENTS, PAGE_SIZE,
+                offsetMillis[0], offsetMillis[pages - 1], sum(offsetMillis),
+                continuationMillis[0], continuationMillis[pages - 1], sum(continuationMillis)));
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+}
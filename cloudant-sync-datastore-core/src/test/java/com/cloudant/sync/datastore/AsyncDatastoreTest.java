@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.notifications.DocumentModified;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncDatastoreTest extends BasicDatastoreTestBase {
+
+    private AsyncDatastore async;
+    private final List<DocumentModified> events = new CopyOnWriteArrayList<DocumentModified>();
+    private final List<Thread> eventThreads = new CopyOnWriteArrayList<Thread>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        async = datastore.async();
+        datastore.getEventBus().register(this);
+    }
+
+    @Subscribe
+    public void onDocumentModified(DocumentModified event) {
+        events.add(event);
+        eventThreads.add(Thread.currentThread());
+    }
+
+    @Test
+    public void createUpdateDelete_sameResultsAndEventsAsBlockingMethods() throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        DocumentRevision created = async.createDocumentFromRevision(rev).get();
+        Assert.assertEquals(bodyOne.asMap(), async.getDocument(created.getId()).get()
+                .getBody().asMap());
+
+        created.setBody(bodyTwo);
+        DocumentRevision updated = async.updateDocumentFromRevision(created).get();
+        Assert.assertEquals(2, updated.getGeneration());
+        Assert.assertEquals(updated.getRevision(), datastore.getDocument(created.getId())
+                .getRevision());
+
+        DocumentRevision deleted = async.deleteDocumentFromRevision(updated).get();
+        Assert.assertTrue(deleted.isDeleted());
+        Assert.assertTrue(async.getDocument(created.getId()).get().isDeleted());
+
+        Assert.assertEquals(3, events.size());
+        Assert.assertNull(events.get(0).prevDocument);
+        Assert.assertEquals(created.getRevision(), events.get(1).prevDocument.getRevision());
+        Assert.assertEquals(updated, events.get(2).prevDocument);
+        Assert.assertEquals(deleted, events.get(2).newDocument);
+    }
+
+    @Test
+    public void suppliedExecutor_eventsPostedOnItsThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Thread executorThread = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get();
+
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodyOne);
+            DocumentRevision created = datastore.async(executor)
+                    .createDocumentFromRevision(rev).get();
+            created.setBody(bodyTwo);
+            datastore.async(executor).updateDocumentFromRevision(created).get();
+
+            Assert.assertEquals(2, eventThreads.size());
+            Assert.assertSame(executorThread, eventThreads.get(0));
+            Assert.assertSame(executorThread, eventThreads.get(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void getDocument_missing_failsWithNotFound() throws Exception {
+        assertFailsWith(DocumentNotFoundException.class, async.getDocument("missing"));
+    }
+
+    @Test
+    public void invalidArguments_failFuturesRatherThanThrow() throws Exception {
+        assertFailsWith(IllegalArgumentException.class, async.getDocument(""));
+        assertFailsWith(NullPointerException.class, async.deleteDocumentFromRevision(null));
+        Assert.assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void updateDocument_notLeaf_failsWithConflict() throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        DocumentRevision created = datastore.createDocumentFromRevision(rev);
+        created.setBody(bodyTwo);
+        datastore.updateDocumentFromRevision(created);
+        events.clear();
+
+        assertFailsWith(ConflictException.class, async.updateDocumentFromRevision(created));
+        assertFailsWith(ConflictException.class, async.deleteDocumentFromRevision(created));
+        Assert.assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void manyOperationsInProgress_allComplete() throws Exception {
+        List<ListenableFuture<DocumentRevision>> futures =
+                new ArrayList<ListenableFuture<DocumentRevision>>();
+        for (int i = 0; i < 100; i++) {
+            DocumentRevision rev = new DocumentRevision("doc" + i);
+            rev.setBody(bodyOne);
+            futures.add(async.createDocumentFromRevision(rev));
+        }
+        Assert.assertEquals(100, Futures.allAsList(futures).get(10, TimeUnit.SECONDS).size());
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("doc" + i);
+        }
+        Assert.assertEquals(100, async.getDocumentsWithIds(ids).get().size());
+        Assert.assertEquals(10, async.getAllDocuments(0, 10, false).get().size());
+        Assert.assertEquals(100, async.changes(0, 1000).get().getResults().size());
+    }
+
+    @Test
+    public void manyCreatesWithGroupCommit_allCommittedWithEvents() throws Exception {
+        datastore.setGroupCommitWindow(2, TimeUnit.MILLISECONDS);
+        List<ListenableFuture<DocumentRevision>> futures =
+                new ArrayList<ListenableFuture<DocumentRevision>>();
+        for (int i = 0; i < 100; i++) {
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodyOne);
+            futures.add(async.createDocumentFromRevision(rev));
+        }
+        for (DocumentRevision created : Futures.allAsList(futures).get(10, TimeUnit.SECONDS)) {
+            Assert.assertEquals(created.getRevision(),
+                    datastore.getDocument(created.getId()).getRevision());
+        }
+        Assert.assertEquals(100, datastore.getDocumentCount());
+        Assert.assertEquals(100, events.size());
+    }
+
+    @Test
+    public void callback_calledWithResult() throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<DocumentRevision> result = new AtomicReference<DocumentRevision>();
+        Futures.addCallback(async.createDocumentFromRevision(rev),
+                new FutureCallback<DocumentRevision>() {
+                    @Override
+                    public void onSuccess(DocumentRevision revision) {
+                        result.set(revision);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        done.countDown();
+                    }
+                });
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertNotNull(result.get());
+        Assert.assertEquals(1, events.size());
+    }
+
+    private static void assertFailsWith(Class<? extends Exception> expected,
+                                        ListenableFuture<?> future) throws Exception {
+        try {
+            future.get();
+            Assert.fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertEquals(expected, e.getCause().getClass());
+        }
+    }
+}
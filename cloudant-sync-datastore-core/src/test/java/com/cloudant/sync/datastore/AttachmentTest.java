@@ -28,6 +28,7 @@ import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -178,6 +179,83 @@ public class AttachmentTest extends BasicDatastoreTestBase {
         Assert.assertEquals("Did not find 1 file in blob store", 2, count);
     }
 
+    @Test
+    public void purgeAttachments_inSlices_onlyUnusedFilesDeleted() throws Exception {
+        File attachments = new File(datastore.datastoreDir + "/extensions/com.cloudant.attachments");
+        for (int i = 0; i < 5; i++) {
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodyOne);
+            rev.getAttachments().put("att", new UnsavedStreamAttachment(
+                    new ByteArrayInputStream(("attachment " + i).getBytes()), "att",
+                    "text/plain"));
+            rev = datastore.createDocumentFromRevision(rev);
+            rev.getAttachments().clear();
+            datastore.updateDocumentFromRevision(rev);
+        }
+        Assert.assertEquals(5, attachments.listFiles().length);
+        Assert.assertEquals(0, datastore.purgeAttachments(2));
+
+        // remove the bodies of old revisions, as compaction does, which stops
+        // their attachments being used
+        removeBodiesOfOldRevisions();
+
+        Assert.assertEquals(2, datastore.purgeAttachments(2));
+        Assert.assertEquals(3, attachments.listFiles().length);
+        Assert.assertEquals(2, datastore.purgeAttachments(2));
+        Assert.assertEquals(1, datastore.purgeAttachments(2));
+        Assert.assertEquals(0, attachments.listFiles().length);
+        Assert.assertEquals(0, datastore.purgeAttachments(2));
+    }
+
+    @Test
+    public void purgeAttachments_usedAgainBeforePurge_notDeleted() throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        rev.getAttachments().put("att", new UnsavedStreamAttachment(
+                new ByteArrayInputStream("attachment".getBytes()), "att", "text/plain"));
+        rev = datastore.createDocumentFromRevision(rev);
+        rev.getAttachments().clear();
+        datastore.updateDocumentFromRevision(rev);
+        removeBodiesOfOldRevisions();
+
+        DocumentRevision other = new DocumentRevision();
+        other.setBody(bodyTwo);
+        other.getAttachments().put("same", new UnsavedStreamAttachment(
+                new ByteArrayInputStream("attachment".getBytes()), "same", "text/plain"));
+        other = datastore.createDocumentFromRevision(other);
+
+        Assert.assertEquals(0, datastore.purgeAttachments(10));
+        Attachment saved = datastore.getAttachment(other.getId(), other.getRevision(), "same");
+        Assert.assertEquals("attachment", IOUtils.toString(saved.getInputStream()));
+    }
+
+    @Test
+    public void purgeAttachments_revisionPrunedByRevisionsLimit_fileDeleted() throws Exception {
+        File attachments = new File(datastore.datastoreDir + "/extensions/com.cloudant.attachments");
+        datastore.setRevisionsLimit(1);
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        rev.getAttachments().put("att", new UnsavedStreamAttachment(
+                new ByteArrayInputStream("attachment".getBytes()), "att", "text/plain"));
+        rev = datastore.createDocumentFromRevision(rev);
+        rev.getAttachments().clear();
+        datastore.updateDocumentFromRevision(rev);
+
+        Assert.assertEquals(1, attachments.listFiles().length);
+        Assert.assertEquals(1, datastore.purgeAttachments(10));
+        Assert.assertEquals(0, attachments.listFiles().length);
+    }
+
+    private void removeBodiesOfOldRevisions() throws Exception {
+        datastore.runOnDbQueue(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("UPDATE revs SET json = NULL WHERE current = 0");
+                return null;
+            }
+        }).get();
+    }
+
 
     @Test
     public void createDeleteAttachmentsFailTest() throws Exception {
@@ -232,6 +310,44 @@ public class AttachmentTest extends BasicDatastoreTestBase {
         }
     }
 
+    @Test
+    public void attachmentsForManyDocumentsTest() throws Exception {
+        Attachment att1 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_1.txt"), "text/plain");
+        Attachment att2 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_2.txt"), "text/plain");
+
+        DocumentRevision doc1 = new DocumentRevision("doc1");
+        doc1.setBody(bodyOne);
+        doc1.getAttachments().put(att1.name, att1);
+        doc1.getAttachments().put(att2.name, att2);
+        datastore.createDocumentFromRevision(doc1);
+        DocumentRevision doc2 = new DocumentRevision("doc2");
+        doc2.setBody(bodyTwo);
+        datastore.createDocumentFromRevision(doc2);
+        DocumentRevision doc3 = new DocumentRevision("doc3");
+        doc3.setBody(bodyOne);
+        doc3.getAttachments().put(att1.name, att1);
+        datastore.createDocumentFromRevision(doc3);
+
+        // documents read in bulk get the same attachments as when read one at a time
+        List<DocumentRevision> docs = datastore.getAllDocuments(0, 10, false);
+        Assert.assertEquals(3, docs.size());
+        for (DocumentRevision doc : docs) {
+            DocumentRevision single = datastore.getDocument(doc.getId());
+            Assert.assertEquals(single.getAttachments().keySet(), doc.getAttachments().keySet());
+            for (Attachment att : doc.getAttachments().values()) {
+                SavedAttachment saved = (SavedAttachment) att;
+                SavedAttachment expected = (SavedAttachment) single.getAttachments().get(att.name);
+                Assert.assertEquals(doc.getSequence(), saved.seq);
+                Assert.assertArrayEquals(expected.key, saved.key);
+                Assert.assertArrayEquals(IOUtils.toByteArray(expected.getInputStream()),
+                        IOUtils.toByteArray(saved.getInputStream()));
+            }
+        }
+        Assert.assertEquals(2, docs.get(0).getAttachments().size());
+        Assert.assertTrue(docs.get(1).getAttachments().isEmpty());
+        Assert.assertEquals(1, docs.get(2).getAttachments().size());
+    }
+
     @Test
     public void duplicateAttachmentTest() throws Exception {
 
@@ -64,6 +64,72 @@ public class BasicDBBodyTest {
         assertMapIsCorrect(actualMap);
     }
 
+    @Test
+    public void bodyFromStorage_byteArray_parsedWhenUsedAsMap() throws Exception {
+        DocumentBody body = DocumentBodyImpl.bodyFromStorage(jsonData);
+        Assert.assertTrue(Arrays.equals(jsonData, body.asBytes()));
+        assertMapIsCorrect(body.asMap());
+
+        // each call returns a copy of the cached map
+        body.asMap().clear();
+        assertMapIsCorrect(body.asMap());
+    }
+
+    @Test
+    public void bodyFromStorage_null_emptyBody() {
+        DocumentBody body = DocumentBodyImpl.bodyFromStorage(null);
+        Assert.assertTrue(Arrays.equals("{}".getBytes(), body.asBytes()));
+        Assert.assertTrue(body.asMap().isEmpty());
+    }
+
+    @Test
+    public void bodyFromStorage_smile_asBytesReturnsJson() throws Exception {
+        byte[] smile = DocumentBodyImpl.storageBytes(DocumentBodyImpl.bodyWith(jsonData),
+                DocumentBodyFormat.SMILE);
+        Assert.assertTrue(smile.length < jsonData.length);
+
+        DocumentBody body = DocumentBodyImpl.bodyFromStorage(smile, DocumentBodyFormat.SMILE);
+        assertMapIsCorrect(body.asMap());
+        assertMapIsCorrect(JSONUtils.deserialize(body.asBytes()));
+        Assert.assertTrue(Arrays.equals(smile,
+                DocumentBodyImpl.storageBytes(body, DocumentBodyFormat.SMILE)));
+    }
+
+    @Test
+    public void storageBytes_mapAsSmile_sameMapReadBack() {
+        DocumentBody body = DocumentBodyImpl.bodyFromStorage(
+                DocumentBodyImpl.storageBytes(DocumentBodyImpl.bodyWith(
+                        JSONUtils.deserialize(jsonData)), DocumentBodyFormat.SMILE),
+                DocumentBodyFormat.SMILE);
+        assertMapIsCorrect(body.asMap());
+    }
+
+    @Test
+    public void bodyFromStorage_deflated_inflatedWhenUsed() throws Exception {
+        byte[] deflated = DocumentBodyImpl.deflate(jsonData);
+        Assert.assertTrue(deflated.length < jsonData.length);
+
+        DocumentBody body = DocumentBodyImpl.bodyFromStorage(deflated, DocumentBodyFormat.JSON,
+                true);
+        Assert.assertTrue(Arrays.equals(jsonData, body.asBytes()));
+        assertMapIsCorrect(body.asMap());
+
+        byte[] smile = JSONUtils.jsonToSmile(jsonData);
+        body = DocumentBodyImpl.bodyFromStorage(DocumentBodyImpl.deflate(smile),
+                DocumentBodyFormat.SMILE, true);
+        assertMapIsCorrect(body.asMap());
+        Assert.assertTrue(Arrays.equals(smile,
+                DocumentBodyImpl.storageBytes(body, DocumentBodyFormat.SMILE)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void bodyFromStorage_corruptDeflated_exceptionWhenUsed() {
+        byte[] deflated = DocumentBodyImpl.deflate(jsonData);
+        DocumentBody body = DocumentBodyImpl.bodyFromStorage(
+                Arrays.copyOf(deflated, deflated.length / 2), DocumentBodyFormat.JSON, true);
+        body.asMap();
+    }
+
     @Test
     public void constructor_map_correctObjectShouldBeCreated() {
         DocumentBody body = new DocumentBodyImpl(JSONUtils.deserialize(jsonData));
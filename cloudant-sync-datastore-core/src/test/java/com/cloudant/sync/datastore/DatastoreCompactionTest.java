@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.notifications.DatabaseCompactionProgress;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DatastoreCompactionTest extends BasicDatastoreTestBase {
+
+    private final List<DatabaseCompactionProgress> events =
+            new ArrayList<DatabaseCompactionProgress>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        datastore.getEventBus().register(this);
+    }
+
+    private boolean interruptOnProgress = false;
+
+    @Subscribe
+    public void onCompactionProgress(DatabaseCompactionProgress event) {
+        events.add(event);
+        if (interruptOnProgress) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void newDatastore_incrementalVacuumEnabled() throws Exception {
+        Assert.assertEquals(2, pragma("auto_vacuum"));
+    }
+
+    @Test
+    public void compactIncrementally_bodiesAttachmentsAndFreePagesRemoved() throws Exception {
+        File attachments = new File(datastore.datastoreDir +
+                "/extensions/com.cloudant.attachments");
+        Map<String, Object> large = new HashMap<String, Object>();
+        large.put("data", new String(new char[10000]).replace('\0', 'x'));
+        for (int i = 0; i < 100; i++) {
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(DocumentBodyFactory.create(large));
+            rev.getAttachments().put("att", new UnsavedStreamAttachment(
+                    new ByteArrayInputStream(("attachment " + i).getBytes()), "att",
+                    "text/plain"));
+            rev = datastore.createDocumentFromRevision(rev);
+            rev.setBody(bodyOne);
+            rev.getAttachments().clear();
+            datastore.updateDocumentFromRevision(rev);
+        }
+        Assert.assertEquals(100, attachments.listFiles().length);
+
+        Assert.assertTrue(datastore.compactIncrementally());
+
+        Assert.assertEquals(0, count("SELECT COUNT(*) FROM revs WHERE current = 0 " +
+                "AND json NOT NULL"));
+        Assert.assertEquals(0, attachments.listFiles().length);
+        Assert.assertEquals(0, pragma("freelist_count"));
+
+        DatabaseCompactionProgress.Stage stage = DatabaseCompactionProgress.Stage.REMOVING_BODIES;
+        for (DatabaseCompactionProgress event : events) {
+            Assert.assertTrue(event.stage.compareTo(stage) >= 0);
+            stage = event.stage;
+        }
+        Assert.assertEquals(DatabaseCompactionProgress.Stage.COMPLETE, stage);
+        Assert.assertTrue(eventsFor(DatabaseCompactionProgress.Stage.VACUUMING) > 0);
+        Assert.assertEquals(1, eventsFor(DatabaseCompactionProgress.Stage.COMPLETE));
+    }
+
+    @Test
+    public void compactIncrementally_interrupted_stopsEarly() throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        rev = datastore.createDocumentFromRevision(rev);
+        rev.setBody(bodyTwo);
+        datastore.updateDocumentFromRevision(rev);
+
+        Thread.currentThread().interrupt();
+        try {
+            Assert.assertFalse(datastore.compactIncrementally());
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertTrue(events.isEmpty());
+        Assert.assertEquals(1, count("SELECT COUNT(*) FROM revs WHERE current = 0 " +
+                "AND json NOT NULL"));
+
+        Assert.assertTrue(datastore.compactIncrementally());
+        Assert.assertEquals(0, count("SELECT COUNT(*) FROM revs WHERE current = 0 " +
+                "AND json NOT NULL"));
+    }
+
+    @Test
+    public void compactIncrementally_interruptedRemovingBodies_cacheInvalidated()
+            throws Exception {
+        datastore.setDocumentCacheSize(1024 * 1024);
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        DocumentRevision first = datastore.createDocumentFromRevision(rev);
+        first.setBody(bodyTwo);
+        datastore.updateDocumentFromRevision(first);
+        // more than one batch of sequences, so the compaction stops part way
+        for (int i = 0; i < DatastoreImpl.COMPACTION_BATCH_SIZE; i++) {
+            rev = new DocumentRevision();
+            rev.setBody(bodyOne);
+            datastore.createDocumentFromRevision(rev);
+        }
+        datastore.getDocument(first.getId(), first.getRevision());
+        datastore.getDocument(first.getId(), first.getRevision());
+        Assert.assertEquals(1, datastore.getDocumentCacheStats().hitCount());
+
+        interruptOnProgress = true;
+        try {
+            Assert.assertFalse(datastore.compactIncrementally());
+        } finally {
+            interruptOnProgress = false;
+            Thread.interrupted();
+        }
+        Assert.assertEquals(1, eventsFor(DatabaseCompactionProgress.Stage.REMOVING_BODIES));
+
+        // the old revision's body has gone, so it must be read again
+        long misses = datastore.getDocumentCacheStats().missCount();
+        datastore.getDocument(first.getId(), first.getRevision());
+        Assert.assertEquals(misses + 1, datastore.getDocumentCacheStats().missCount());
+    }
+
+    private int eventsFor(DatabaseCompactionProgress.Stage stage) {
+        int count = 0;
+        for (DatabaseCompactionProgress event : events) {
+            if (event.stage == stage) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long pragma(String name) throws Exception {
+        return count("PRAGMA " + name);
+    }
+
+    private long count(final String sql) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor c = db.rawQuery(sql, null);
+                try {
+                    c.moveToFirst();
+                    return c.getLong(0);
+                } finally {
+                    c.close();
+                }
+            }
+        }).get();
+    }
+}
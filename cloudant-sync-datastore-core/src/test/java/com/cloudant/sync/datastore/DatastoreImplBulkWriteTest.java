@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.notifications.DocumentModified;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DatastoreImplBulkWriteTest extends BasicDatastoreTestBase {
+
+    private final List<DocumentModified> events = new ArrayList<DocumentModified>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        datastore.getEventBus().register(this);
+    }
+
+    @Subscribe
+    public void onDocumentModified(DocumentModified event) {
+        events.add(event);
+    }
+
+    private DocumentRevision newRevision(String id, DocumentBody body) {
+        DocumentRevision rev = new DocumentRevision(id);
+        rev.setBody(body);
+        return rev;
+    }
+
+    @Test
+    public void createDocuments_existingId_othersCreated() throws Exception {
+        DocumentRevision existing = datastore.createDocumentFromRevision(
+                newRevision("existing", bodyOne));
+        events.clear();
+
+        List<BulkWriteResult> results = datastore.createDocumentsFromRevisions(Arrays.asList(
+                newRevision("a", bodyOne),
+                newRevision("existing", bodyTwo),
+                newRevision(null, bodyTwo)));
+
+        Assert.assertEquals(3, results.size());
+        Assert.assertTrue(results.get(0).isSuccessful());
+        Assert.assertEquals("a", results.get(0).getRevision().getId());
+        Assert.assertEquals(bodyOne.asMap(), results.get(0).getRevision().getBody().asMap());
+        Assert.assertFalse(results.get(1).isSuccessful());
+        Assert.assertNull(results.get(1).getRevision());
+        Assert.assertTrue(results.get(1).getError() instanceof ConflictException);
+        Assert.assertTrue(results.get(2).isSuccessful());
+        Assert.assertNotNull(results.get(2).getRevision().getId());
+
+        Assert.assertEquals(3, datastore.getDocumentCount());
+        Assert.assertEquals(existing.getRevision(),
+                datastore.getDocument("existing").getRevision());
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(results.get(0).getRevision(), events.get(0).newDocument);
+    }
+
+    @Test
+    public void createDocuments_withAttachment_attachmentSaved() throws Exception {
+        String attachmentName = "attachment_1.txt";
+        DocumentRevision rev = newRevision("with_attachment", bodyOne);
+        rev.getAttachments().put(attachmentName, new UnsavedFileAttachment(
+                TestUtils.loadFixture("fixture/" + attachmentName), "text/plain"));
+
+        List<BulkWriteResult> results = datastore.createDocumentsFromRevisions(
+                Arrays.asList(rev, newRevision("without_attachment", bodyTwo)));
+
+        Assert.assertTrue(results.get(0).isSuccessful());
+        DocumentRevision saved = results.get(0).getRevision();
+        Assert.assertNotNull(datastore.getAttachment(saved.getId(), saved.getRevision(),
+                attachmentName));
+        Assert.assertTrue(results.get(1).getRevision().getAttachments().isEmpty());
+    }
+
+    @Test
+    public void createDocuments_invalidRevision_nothingWritten() throws Exception {
+        DocumentRevision withRevision = newRevision("b", bodyTwo);
+        withRevision.setRevision("1-abc");
+        try {
+            datastore.createDocumentsFromRevisions(Arrays.asList(
+                    newRevision("a", bodyOne), withRevision));
+            Assert.fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(0, datastore.getDocumentCount());
+        Assert.assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void updateDocuments_staleRevision_othersUpdated() throws Exception {
+        List<BulkWriteResult> created = datastore.createDocumentsFromRevisions(Arrays.asList(
+                newRevision("a", bodyOne), newRevision("b", bodyOne)));
+        DocumentRevision a = created.get(0).getRevision();
+        DocumentRevision b = created.get(1).getRevision();
+        b.setBody(bodyTwo);
+        datastore.updateDocumentFromRevision(b);
+        events.clear();
+
+        a.setBody(bodyTwo);
+        b.setBody(bodyOne);
+        List<BulkWriteResult> results = datastore.updateDocumentsFromRevisions(
+                Arrays.asList(a, b));
+
+        Assert.assertTrue(results.get(0).isSuccessful());
+        Assert.assertTrue(results.get(0).getRevision().getRevision().startsWith("2-"));
+        Assert.assertTrue(results.get(1).getError() instanceof ConflictException);
+        Assert.assertEquals(bodyTwo.asMap(), datastore.getDocument("a").getBody().asMap());
+        Assert.assertEquals(bodyTwo.asMap(), datastore.getDocument("b").getBody().asMap());
+
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(a.getRevision(), events.get(0).prevDocument.getRevision());
+    }
+
+    @Test
+    public void deleteDocuments_alreadyDeleted_othersDeleted() throws Exception {
+        List<BulkWriteResult> created = datastore.createDocumentsFromRevisions(Arrays.asList(
+                newRevision("a", bodyOne), newRevision("b", bodyOne), newRevision("c", bodyOne)));
+        DocumentRevision c = created.get(2).getRevision();
+        datastore.deleteDocumentFromRevision(c);
+        events.clear();
+
+        List<BulkWriteResult> results = datastore.deleteDocumentsFromRevisions(Arrays.asList(
+                created.get(0).getRevision(), created.get(1).getRevision(), c));
+
+        Assert.assertTrue(results.get(0).getRevision().isDeleted());
+        Assert.assertTrue(results.get(1).getRevision().isDeleted());
+        Assert.assertFalse(results.get(2).isSuccessful());
+        Assert.assertEquals(0, datastore.getDocumentCount());
+        Assert.assertEquals(2, events.size());
+    }
+}
@@ -286,6 +286,82 @@ public class DatastoreImplCRUDTest extends BasicDatastoreTestBase {
         Assert.assertFalse(newInsertedRevision.isCurrent());
     }
 
+    @Test
+    public void getRevisionTreeOfDocument_sameStructureWithoutBodies() throws Exception {
+        DocumentRevision rev1aMut = new DocumentRevision();
+        rev1aMut.setBody(bodyOne);
+        DocumentRevision rev1a = this.datastore.createDocumentFromRevision(rev1aMut);
+        rev1a.setBody(bodyTwo);
+        this.datastore.updateDocumentFromRevision(rev1a);
+        DocumentRevision rev3b = this.createDetachedDocumentRevision(rev1a.getId(), "3-b", bodyOne);
+        this.datastore.forceInsert(rev3b, rev1a.getRevision(), "2-b", "3-b");
+
+        DocumentRevisionTree full = this.datastore.getAllRevisionsOfDocument(rev1a.getId());
+        DocumentRevisionTree structure = this.datastore.getRevisionTreeOfDocument(rev1a.getId());
+
+        Assert.assertEquals(full.leafRevisionIds(), structure.leafRevisionIds());
+        Assert.assertEquals(full.hasConflicts(), structure.hasConflicts());
+        Assert.assertEquals(full.getCurrentRevision().getRevision(),
+                structure.getCurrentRevision().getRevision());
+        for (DocumentRevision leaf : structure.leafRevisions()) {
+            Assert.assertNull(leaf.getBody());
+            Assert.assertEquals(full.getPath(leaf.getSequence()),
+                    structure.getPath(leaf.getSequence()));
+        }
+    }
+
+    @Test
+    public void getAllRevisionsOfDocuments_sameTreesAsSingleDocument() throws Exception {
+        DocumentRevision[] revs = createThreeDocuments();
+        DocumentRevision rev3b = this.createDetachedDocumentRevision(revs[0].getId(), "3-b",
+                bodyTwo);
+        // a second tree makes the first document conflicted
+        this.datastore.forceInsert(rev3b, "1-b", "2-b", "3-b");
+
+        List<String> ids = new ArrayList<String>();
+        for (DocumentRevision rev : revs) {
+            ids.add(rev.getId());
+        }
+        ids.add("no_such_document");
+        Map<String, DocumentRevisionTree> trees = this.datastore.getAllRevisionsOfDocuments(ids);
+        Map<String, DocumentRevisionTree> structures =
+                this.datastore.getRevisionTreesOfDocuments(ids);
+
+        Assert.assertThat(trees.keySet(), hasSize(3));
+        Assert.assertThat(structures.keySet(), hasSize(3));
+        for (DocumentRevision rev : revs) {
+            DocumentRevisionTree expected = this.datastore.getAllRevisionsOfDocument(rev.getId());
+            DocumentRevisionTree tree = trees.get(rev.getId());
+            Assert.assertEquals(expected.leafRevisionIds(), tree.leafRevisionIds());
+            Assert.assertEquals(expected.leafRevisionIds(),
+                    structures.get(rev.getId()).leafRevisionIds());
+            Assert.assertEquals(expected.getCurrentRevision().getBody().asMap(),
+                    tree.getCurrentRevision().getBody().asMap());
+        }
+        Assert.assertTrue(trees.get(revs[0].getId()).hasConflicts());
+    }
+
+    @Test
+    public void getRevisionsWithSequences_sameRevisionsAsGetDocument() throws Exception {
+        DocumentRevision[] revs = createThreeDocuments();
+        List<Long> sequences = new ArrayList<Long>();
+        for (DocumentRevision rev : revs) {
+            sequences.add(rev.getSequence());
+        }
+        sequences.add(-1L);
+
+        Map<Long, DocumentRevision> revisions = this.datastore.getRevisionsWithSequences(sequences);
+
+        Assert.assertThat(revisions.keySet(), hasSize(3));
+        for (DocumentRevision rev : revs) {
+            DocumentRevision expected = this.datastore.getDocument(rev.getId(), rev.getRevision());
+            DocumentRevision actual = revisions.get(rev.getSequence());
+            Assert.assertEquals(expected.getId(), actual.getId());
+            Assert.assertEquals(expected.getRevision(), actual.getRevision());
+            Assert.assertEquals(expected.getBody().asMap(), actual.getBody().asMap());
+        }
+    }
+
     private DocumentRevision createDetachedDocumentRevision(String docId, String rev, DocumentBody body) {
         DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
         builder.setDocId(docId);
@@ -312,6 +388,63 @@ public class DatastoreImplCRUDTest extends BasicDatastoreTestBase {
         Assert.assertEquals(2, datastore.getDocumentCount());
     }
 
+    @Test
+    public void getDocumentCount_afterUpdatesAndDeletes() throws Exception {
+        DocumentRevision[] docs = createThreeDocuments();
+        Assert.assertEquals(3, datastore.getDocumentCount());
+        Assert.assertEquals(4, datastore.getLastSequence());
+
+        datastore.deleteDocumentFromRevision(docs[0]);
+        Assert.assertEquals(2, datastore.getDocumentCount());
+        Assert.assertEquals(5, datastore.getLastSequence());
+
+        // a new revision of a deleted document brings it back
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(docs[0].getId());
+        builder.setRevId("3-x");
+        builder.setDeleted(false);
+        builder.setBody(bodyTwo);
+        datastore.forceInsert(builder.build(), "1-x", "2-x", "3-x");
+        Assert.assertEquals(3, datastore.getDocumentCount());
+
+        datastore.deleteDocument(docs[1].getId());
+        Assert.assertEquals(2, datastore.getDocumentCount());
+        Assert.assertEquals(countDocuments(), datastore.getDocumentCount());
+    }
+
+    @Test
+    public void getDocumentCount_storedCountWrong_correctedOnOpen() throws Exception {
+        createTwoDocuments();
+        datastore.runOnDbQueue(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("UPDATE info SET value = '42' WHERE key = 'docCount'");
+                return null;
+            }
+        }).get();
+        Assert.assertEquals(42, datastore.getDocumentCount());
+        datastore.close();
+
+        datastore = (DatastoreImpl) datastoreManager.openDatastore(getClass().getSimpleName());
+        Assert.assertEquals(2, datastore.getDocumentCount());
+    }
+
+    private int countDocuments() throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = db.rawQuery("SELECT COUNT(DISTINCT doc_id) FROM revs " +
+                        "WHERE current = 1 AND deleted = 0", null);
+                try {
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+
     @Test
     public void getDocument_twoDoc() throws Exception {
         DocumentRevision rev_1Mut = new DocumentRevision();
@@ -552,6 +685,86 @@ public class DatastoreImplCRUDTest extends BasicDatastoreTestBase {
         getAllDocuments_testCountAndOffset(objectCount, reversedObjects, true);
     }
 
+    @Test
+    public void iterateAllDocuments() throws Exception {
+        int objectCount = 50;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        List<String> ids = new ArrayList<String>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodies.get(i));
+            DocumentRevision saved = datastore.createDocumentFromRevision(rev);
+            if (i % 10 == 0) {
+                datastore.deleteDocumentFromRevision(saved);
+            } else {
+                ids.add(saved.getId());
+            }
+        }
+        List<String> reversedIds = new ArrayList<String>(ids);
+        Collections.reverse(reversedIds);
+
+        Assert.assertEquals(ids, iteratedIds(datastore.iterateAllDocuments(false)));
+        Assert.assertEquals(reversedIds, iteratedIds(datastore.iterateAllDocuments(true)));
+        // chunks which don't divide the number of documents
+        Assert.assertEquals(ids, iteratedIds(datastore.iterateAllDocuments(false, 7)));
+        Assert.assertEquals(reversedIds, iteratedIds(datastore.iterateAllDocuments(true, 7)));
+
+        DocumentIterator iterator = datastore.iterateAllDocuments(false, 7);
+        Assert.assertEquals(ids.get(0), iterator.next().getId());
+        iterator.close();
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void getAllDocumentsAfter_pagesMatchGetAllDocuments() throws Exception {
+        int objectCount = 25;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodies.get(i));
+            DocumentRevision saved = datastore.createDocumentFromRevision(rev);
+            if (i == 10) {
+                // a deleted document can still be used as the start of a page
+                datastore.deleteDocumentFromRevision(saved);
+            }
+        }
+
+        for (boolean descending : new boolean[]{false, true}) {
+            List<DocumentRevision> expected = datastore.getAllDocuments(0, objectCount,
+                    descending);
+            List<DocumentRevision> paged = new ArrayList<DocumentRevision>();
+            List<DocumentRevision> page = datastore.getAllDocumentsAfter(null, 4, descending);
+            while (!page.isEmpty()) {
+                Assert.assertTrue(page.size() <= 4);
+                paged.addAll(page);
+                page = datastore.getAllDocumentsAfter(page.get(page.size() - 1).getId(), 4,
+                        descending);
+            }
+            Assert.assertEquals(expected.size(), paged.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getId(), paged.get(i).getId());
+                Assert.assertEquals(expected.get(i).getRevision(), paged.get(i).getRevision());
+            }
+        }
+    }
+
+    @Test(expected = DocumentNotFoundException.class)
+    public void getAllDocumentsAfter_unknownDocument_throws() throws Exception {
+        datastore.getAllDocumentsAfter("no_such_document", 10, false);
+    }
+
+    private static List<String> iteratedIds(DocumentIterator iterator) {
+        List<String> ids = new ArrayList<String>();
+        try {
+            while (iterator.hasNext()) {
+                ids.add(iterator.next().getId());
+            }
+        } finally {
+            iterator.close();
+        }
+        return ids;
+    }
+
     @Test
     public void getAllDocumentIds() throws Exception {
         Assert.assertTrue(datastore.getAllDocumentIds().isEmpty());
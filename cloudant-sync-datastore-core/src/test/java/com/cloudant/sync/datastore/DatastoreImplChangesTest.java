@@ -18,6 +18,9 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.hasItems;
 
@@ -94,6 +97,29 @@ public class DatastoreImplChangesTest extends BasicDatastoreTestBase {
         }
     }
 
+    @Test
+    public void iterateChanges_inChunksOfTwo_allChangesReturned() throws Exception {
+        DocumentRevision[] docs = createThreeDocuments();
+        DocumentIterator iterator = datastore.iterateChanges(0, 2);
+        List<String> ids = new ArrayList<String>();
+        long lastSequence = 0;
+        while (iterator.hasNext()) {
+            DocumentRevision rev = iterator.next();
+            ids.add(rev.getId());
+            lastSequence = rev.getSequence();
+        }
+        Assert.assertEquals(Arrays.asList(docs[0].getId(), docs[1].getId(), docs[2].getId()), ids);
+        Assert.assertEquals(4, lastSequence);
+
+        // resumes after the last sequence returned
+        Assert.assertFalse(datastore.iterateChanges(lastSequence).hasNext());
+    }
+
+    @Test
+    public void iterateChanges_noChanges_nothing() {
+        Assert.assertFalse(datastore.iterateChanges(0).hasNext());
+    }
+
     @Test
     public void changes_limitByTenByThereAreOnlyFourChanges_lastSequenceIsFour() throws Exception {
         DocumentRevision[] docs = createThreeDocuments();
@@ -18,6 +18,8 @@ import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.Matchers.hasSize;
 
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.notifications.DocumentUpdated;
 import com.cloudant.sync.util.CouchUtils;
 import com.google.common.collect.Lists;
 
@@ -26,13 +28,23 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DatastoreImplConflictsTest extends BasicDatastoreTestBase {
 
+    private final List<DocumentUpdated> events = new ArrayList<DocumentUpdated>();
+
+    @Subscribe
+    public void onDocumentUpdated(DocumentUpdated event) {
+        events.add(event);
+    }
+
     @Test
     public void getConflictedDocumentIds_oneConflictWithTwoConflictedLeafs() throws Exception {
         DocumentRevision rev = this.createDocumentRevision("Tom");
@@ -91,6 +103,150 @@ public class DatastoreImplConflictsTest extends BasicDatastoreTestBase {
         testWithConflictCount(1000);
     }
 
+    @Test
+    public void getConflictedDocumentIds_resolvedWhileIteratingInChunks_allReturned()
+            throws Exception {
+        List<String> expectedConflicts = createConflictDocuments(10);
+        ConflictResolver pickFirst = new ConflictResolver() {
+            @Override
+            public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                return conflicts.get(0);
+            }
+        };
+
+        List<String> actualConflicts = new ArrayList<String>();
+        Iterator<String> iterator = this.datastore.getConflictedDocumentIds(3);
+        while (iterator.hasNext()) {
+            String docId = iterator.next();
+            actualConflicts.add(docId);
+            this.datastore.resolveConflictsForDocument(docId, pickFirst);
+        }
+        Assert.assertEquals(expectedConflicts, actualConflicts);
+        Assert.assertFalse(this.datastore.getConflictedDocumentIds().hasNext());
+    }
+
+    @Test
+    public void getConflictedDocumentIds_conflictDeletedOrReintroduced_listUpdated()
+            throws Exception {
+        String docId = this.createConflictedDocument();
+        DocumentRevision nonWinner = this.datastore.getAllRevisionsOfDocument(docId)
+                .leafRevisions().get(0);
+        this.datastore.deleteDocumentFromRevision(nonWinner);
+        Assert.assertFalse(this.datastore.getConflictedDocumentIds().hasNext());
+
+        DocumentRevision newRev = this.createDetachedDocumentRevision(docId, "3-b", "Carl");
+        this.datastore.forceInsert(newRev, "1-b", "2-b", "3-b");
+        Assert.assertEquals(Lists.newArrayList(docId),
+                Lists.newArrayList(this.datastore.getConflictedDocumentIds()));
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_severalChunks_allResolvedWithEvents()
+            throws Exception {
+        int conflictCount = DatastoreImpl.CONFLICT_RESOLUTION_CHUNK_SIZE * 2 + 10;
+        List<String> expectedConflicts = createConflictDocuments(conflictCount);
+        this.datastore.getEventBus().register(this);
+
+        int resolved = this.datastore.resolveConflictsForDocuments(
+                this.datastore.getConflictedDocumentIds(), new ConflictResolver() {
+                    @Override
+                    public DocumentRevision resolve(String docId,
+                                                    List<DocumentRevision> conflicts) {
+                        return conflicts.get(0);
+                    }
+                });
+
+        Assert.assertEquals(conflictCount, resolved);
+        Assert.assertFalse(this.datastore.getConflictedDocumentIds().hasNext());
+        Assert.assertEquals(conflictCount, events.size());
+        for (int i = 0; i < conflictCount; i++) {
+            Assert.assertEquals(expectedConflicts.get(i), events.get(i).newDocument.getId());
+            Assert.assertEquals(events.get(i).newDocument.getRevision(),
+                    this.datastore.getDocument(expectedConflicts.get(i)).getRevision());
+        }
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_onExecutorWithNewWinners_sameAsSingleDocument()
+            throws Exception {
+        List<String> docIds = createConflictDocuments(20);
+        ConflictResolver merge = new ConflictResolver() {
+            @Override
+            public DocumentRevision resolve(String docId, List<DocumentRevision> conflicts) {
+                DocumentRevision newRev = conflicts.get(0);
+                Map<String, Object> body = newRev.getBody().asMap();
+                body.put("resolved", true);
+                newRev.setBody(DocumentBodyFactory.create(body));
+                return newRev;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Assert.assertEquals(10, this.datastore.resolveConflictsForDocuments(
+                    docIds.subList(0, 10).iterator(), merge, executor));
+        } finally {
+            executor.shutdown();
+        }
+        for (String docId : docIds.subList(10, 20)) {
+            this.datastore.resolveConflictsForDocument(docId, merge);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            DocumentRevision batch = this.datastore.getDocument(docIds.get(i));
+            DocumentRevision single = this.datastore.getDocument(docIds.get(i + 10));
+            Assert.assertEquals(single.getGeneration(), batch.getGeneration());
+            Assert.assertEquals(true, batch.getBody().asMap().get("resolved"));
+            Assert.assertEquals(single.getAttachments(), batch.getAttachments());
+            Assert.assertFalse(this.datastore.getAllRevisionsOfDocument(docIds.get(i))
+                    .hasConflicts());
+        }
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_resolverFailsOrReturnsNull_documentsUnchanged()
+            throws Exception {
+        final List<String> docIds = createConflictDocuments(3);
+        long expectedSequence = this.datastore.getLastSequence();
+        int resolved = this.datastore.resolveConflictsForDocuments(docIds.iterator(),
+                new ConflictResolver() {
+                    @Override
+                    public DocumentRevision resolve(String docId,
+                                                    List<DocumentRevision> conflicts) {
+                        if (docId.equals(docIds.get(0))) {
+                            throw new IllegalStateException("Mocked error");
+                        }
+                        return docId.equals(docIds.get(1)) ? null : conflicts.get(0);
+                    }
+                });
+        Assert.assertEquals(1, resolved);
+        Assert.assertEquals(docIds.subList(0, 2),
+                Lists.newArrayList(this.datastore.getConflictedDocumentIds()));
+        Assert.assertTrue(this.datastore.getLastSequence() > expectedSequence);
+    }
+
+    @Test
+    public void resolveConflictsForDocuments_newConflictWhileResolving_notResolved()
+            throws Exception {
+        final String docId = this.createConflictedDocument();
+        int resolved = this.datastore.resolveConflictsForDocuments(
+                Collections.singletonList(docId).iterator(), new ConflictResolver() {
+                    @Override
+                    public DocumentRevision resolve(String id, List<DocumentRevision> conflicts) {
+                        try {
+                            DocumentRevision newRev = createDetachedDocumentRevision(docId,
+                                    "3-b", "Carl");
+                            datastore.forceInsert(newRev, "1-b", "2-b", "3-b");
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        return conflicts.get(0);
+                    }
+                });
+        Assert.assertEquals(0, resolved);
+        Assert.assertEquals(3, this.datastore.getAllRevisionsOfDocument(docId)
+                .leafRevisions(true).size());
+    }
+
     @Test
     public void resolveConflictsForDocument_twoConflictAndException_nothing()
             throws Exception {
@@ -14,6 +14,7 @@
 
 package com.cloudant.sync.datastore;
 
+import com.cloudant.sync.query.IndexManager;
 import com.cloudant.sync.util.MultiThreadedTestHelper;
 
 import org.apache.commons.io.FileUtils;
@@ -25,10 +26,15 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class DatastoreManagerTest {
 
@@ -103,6 +109,168 @@ public class DatastoreManagerTest {
         ds.close();
     }
 
+    @Test
+    public void openDatastore_readerConnections_readsSeeWrites() throws Exception {
+        manager.setReaderConnectionsPerDatastore(2);
+        Datastore ds = null;
+        try {
+            ds = manager.openDatastore("readerdatastore");
+            DocumentRevision rev = new DocumentRevision("doc1");
+            rev.setBody(DocumentBodyFactory.create("{\"hello\":\"world\"}".getBytes()));
+            DocumentRevision saved = ds.createDocumentFromRevision(rev);
+
+            DocumentRevision read = ds.getDocument("doc1");
+            Assert.assertEquals(saved.getRevision(), read.getRevision());
+            Assert.assertEquals("world", read.getBody().asMap().get("hello"));
+            Assert.assertEquals(1, ds.getDocumentCount());
+            Assert.assertEquals(saved.getSequence(), ds.getLastSequence());
+        } finally {
+            manager.setReaderConnectionsPerDatastore(0);
+            if (ds != null) {
+                ds.close();
+            }
+        }
+    }
+
+    @Test
+    public void openDatastore_groupCommit_writesSucceedIndependently() throws Exception {
+        manager.setGroupCommitWindow(50, TimeUnit.MILLISECONDS);
+        final Datastore ds;
+        try {
+            ds = manager.openDatastore("groupcommitdatastore");
+        } finally {
+            manager.setGroupCommitWindow(0, TimeUnit.MILLISECONDS);
+        }
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<DocumentRevision>> results = new ArrayList<Future<DocumentRevision>>();
+            for (int i = 0; i < 8; i++) {
+                // two writes for each document id, so half of them conflict
+                final String docId = "doc" + (i % 4);
+                results.add(writers.submit(new Callable<DocumentRevision>() {
+                    @Override
+                    public DocumentRevision call() throws Exception {
+                        DocumentRevision rev = new DocumentRevision(docId);
+                        rev.setBody(DocumentBodyFactory.create("{}".getBytes()));
+                        return ds.createDocumentFromRevision(rev);
+                    }
+                }));
+            }
+            int failed = 0;
+            for (Future<DocumentRevision> result : results) {
+                try {
+                    Assert.assertNotNull(result.get());
+                } catch (java.util.concurrent.ExecutionException e) {
+                    failed++;
+                }
+            }
+            Assert.assertEquals(4, failed);
+            Assert.assertEquals(4, ds.getDocumentCount());
+        } finally {
+            writers.shutdown();
+            ds.close();
+        }
+    }
+
+    @Test
+    public void openDatastore_sharedThreadPool_datastoresAndIndexesWork() throws Exception {
+        DatastoreManager shared = DatastoreManager.getInstance(new File(TEST_PATH, "shared"));
+        shared.setSharedThreadPoolSize(2);
+        Assert.assertEquals(2, shared.getSharedThreadPoolSize());
+        List<Datastore> datastores = new ArrayList<Datastore>();
+        List<IndexManager> indexManagers = new ArrayList<IndexManager>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                Datastore ds = shared.openDatastore("shared" + i);
+                datastores.add(ds);
+                DocumentRevision rev = new DocumentRevision("doc" + i);
+                rev.setBody(DocumentBodyFactory.create(("{\"n\":" + i + "}").getBytes()));
+                ds.createDocumentFromRevision(rev);
+
+                IndexManager im = new IndexManager(ds);
+                indexManagers.add(im);
+                Assert.assertNotNull(im.ensureIndexed(Arrays.<Object>asList("n"), "n"));
+            }
+            for (int i = 0; i < 10; i++) {
+                Datastore ds = datastores.get(i);
+                Assert.assertEquals(1, ds.getDocumentCount());
+                Assert.assertEquals(i, ds.getDocument("doc" + i).getBody().asMap().get("n"));
+
+                Map<String, Object> query = new HashMap<String, Object>();
+                query.put("n", i);
+                Assert.assertEquals(Arrays.asList("doc" + i),
+                        indexManagers.get(i).find(query).documentIds());
+                // an empty query lists all documents in the datastore from the index
+                // manager's thread, which is shared with the datastore
+                Assert.assertEquals(Arrays.asList("doc" + i),
+                        indexManagers.get(i).find(new HashMap<String, Object>()).documentIds());
+            }
+        } finally {
+            for (IndexManager im : indexManagers) {
+                im.close();
+            }
+            for (Datastore ds : datastores) {
+                ds.close();
+            }
+            shared.setSharedThreadPoolSize(0);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setSharedThreadPoolSize_failsWhileDatastoresOpen() throws Exception {
+        Datastore ds = manager.openDatastore("poolsizedatastore");
+        try {
+            manager.setSharedThreadPoolSize(2);
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void openDatastore_maximumActiveDatastores_idleDatastoresReopened() throws Exception {
+        DatastoreManager bounded = DatastoreManager.getInstance(new File(TEST_PATH, "bounded"));
+        bounded.setMaximumActiveDatastores(2);
+        List<Datastore> datastores = new ArrayList<Datastore>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Datastore ds = bounded.openDatastore("bounded" + i);
+                datastores.add(ds);
+                DocumentRevision rev = new DocumentRevision("doc" + i);
+                rev.setBody(DocumentBodyFactory.create("{}".getBytes()));
+                ds.createDocumentFromRevision(rev);
+            }
+            Assert.assertEquals(2, bounded.getReleasedConnectionsCount());
+            Assert.assertFalse(((DatastoreImpl) datastores.get(0)).isActive());
+            Assert.assertTrue(((DatastoreImpl) datastores.get(3)).isActive());
+
+            // reopened on next use, and the least recently used one is released instead
+            Assert.assertSame(datastores.get(0), bounded.openDatastore("bounded0"));
+            Assert.assertNotNull(datastores.get(0).getDocument("doc0"));
+            Assert.assertEquals(1, bounded.getReopenedConnectionsCount());
+            Assert.assertEquals(3, bounded.getReleasedConnectionsCount());
+            Assert.assertTrue(((DatastoreImpl) datastores.get(0)).isActive());
+            Assert.assertFalse(((DatastoreImpl) datastores.get(2)).isActive());
+
+            // pinned datastores aren't released
+            ((DatastoreImpl) datastores.get(0)).pinConnections();
+            ((DatastoreImpl) datastores.get(3)).pinConnections();
+            Assert.assertEquals(1, datastores.get(1).getDocumentCount());
+            Assert.assertTrue(((DatastoreImpl) datastores.get(0)).isActive());
+            Assert.assertTrue(((DatastoreImpl) datastores.get(3)).isActive());
+            ((DatastoreImpl) datastores.get(0)).unpinConnections();
+            ((DatastoreImpl) datastores.get(3)).unpinConnections();
+
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(1, datastores.get(i).getDocumentCount());
+            }
+        } finally {
+            bounded.setMaximumActiveDatastores(0);
+            for (Datastore ds : datastores) {
+                ds.close();
+            }
+        }
+    }
+
     private Datastore createAndAssertDatastore() throws Exception {
         Datastore ds = manager.openDatastore("mydatastore");
         Assert.assertNotNull(ds);
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLDatabaseQueue;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class DatastoreRevisionsLimitTest extends BasicDatastoreTestBase {
+
+    @Test
+    public void updateDocument_beyondLimit_oldestRevisionsDeleted() throws Exception {
+        datastore.setRevisionsLimit(3);
+        List<DocumentRevision> revisions = createAndUpdate(5);
+        DocumentRevision latest = revisions.get(revisions.size() - 1);
+
+        DocumentRevisionTree tree = datastore.getRevisionTreeOfDocument(latest.getId());
+        List<DocumentRevision> path = tree.getPathForNode(latest.getSequence());
+        Assert.assertEquals(3, path.size());
+        Assert.assertEquals(1, tree.roots().size());
+        Assert.assertEquals(4, path.get(path.size() - 1).getGeneration());
+        Assert.assertEquals(latest.getRevision(), datastore.getDocument(latest.getId())
+                .getRevision());
+        try {
+            datastore.getDocument(latest.getId(), revisions.get(0).getRevision());
+            Assert.fail("Expected DocumentNotFoundException");
+        } catch (DocumentNotFoundException e) {
+            // pruned
+        }
+        Assert.assertEquals(1, datastore.getDocumentCount());
+    }
+
+    @Test
+    public void updateDocument_conflictedDocument_eachBranchKeepsLatestRevisions()
+            throws Exception {
+        datastore.setRevisionsLimit(3);
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        DocumentRevision rev1 = datastore.createDocumentFromRevision(rev);
+        rev1.setBody(bodyTwo);
+        DocumentRevision latest = datastore.updateDocumentFromRevision(rev1);
+        DocumentRevision branch = createDetachedDocumentRevision(rev1.getId(), "2-0", bodyTwo);
+        datastore.forceInsert(branch, rev1.getRevision(), "2-0");
+
+        List<String> kept = new ArrayList<String>();
+        kept.add(rev1.getRevision());
+        kept.add("2-0");
+        for (int i = 0; i < 3; i++) {
+            latest.setBody(i % 2 == 0 ? bodyOne : bodyTwo);
+            latest = datastore.updateDocumentFromRevision(latest);
+            kept.add(latest.getRevision());
+        }
+
+        // the first revision is kept for 2-0, the other branch's revision 2 has gone
+        DocumentRevisionTree tree = datastore.getRevisionTreeOfDocument(rev1.getId());
+        Assert.assertThat(revisionIds(tree), containsInAnyOrder(kept.toArray()));
+        Assert.assertEquals(2, tree.roots().size());
+        Assert.assertTrue(tree.hasConflicts());
+    }
+
+    @Test
+    public void forceInsert_historyIncludesPrunedRevisions_addedToExistingBranch()
+            throws Exception {
+        datastore.setRevisionsLimit(2);
+        List<DocumentRevision> revisions = createAndUpdate(4);
+        DocumentRevision latest = revisions.get(revisions.size() - 1);
+
+        List<String> history = new ArrayList<String>();
+        for (DocumentRevision revision : revisions) {
+            history.add(revision.getRevision());
+        }
+        history.add("6-remote");
+        DocumentRevision remote = createDetachedDocumentRevision(latest.getId(), "6-remote",
+                bodyTwo);
+        datastore.forceInsert(remote, history.toArray(new String[history.size()]));
+
+        DocumentRevisionTree tree = datastore.getRevisionTreeOfDocument(latest.getId());
+        Assert.assertFalse(tree.hasConflicts());
+        Assert.assertEquals(1, tree.roots().size());
+        Assert.assertEquals(2, revisionIds(tree).size());
+        Assert.assertEquals("6-remote", datastore.getDocument(latest.getId()).getRevision());
+    }
+
+    @Test
+    public void pruneRevisionHistories_limitSetAfterWrites_documentsPruned() throws Exception {
+        datastore.setDocumentCacheSize(1024 * 1024);
+        List<DocumentRevision> revisions = createAndUpdate(5);
+        DocumentRevision first = revisions.get(0);
+        DocumentRevision other = datastore.createDocumentFromRevision(newRevision());
+        // cache the revision which is pruned
+        datastore.getDocument(first.getId(), first.getRevision());
+        Assert.assertEquals(0, datastore.pruneRevisionHistories());
+
+        datastore.setRevisionsLimit(2);
+        Assert.assertEquals(1, datastore.pruneRevisionHistories());
+        Assert.assertEquals(2, revisionIds(datastore.getRevisionTreeOfDocument(first.getId()))
+                .size());
+        Assert.assertEquals(1, revisionIds(datastore.getRevisionTreeOfDocument(other.getId()))
+                .size());
+        Assert.assertFalse(datastore.containsDocument(first.getId(), first.getRevision()));
+        try {
+            datastore.getDocument(first.getId(), first.getRevision());
+            Assert.fail("Expected DocumentNotFoundException");
+        } catch (DocumentNotFoundException e) {
+            // pruned, and dropped from the cache
+        }
+        Assert.assertEquals(0, datastore.pruneRevisionHistories());
+    }
+
+    @Test
+    public void deleteDocument_beyondLimit_deletedRevisionKept() throws Exception {
+        datastore.setRevisionsLimit(1);
+        List<DocumentRevision> revisions = createAndUpdate(2);
+        DocumentRevision deleted = datastore.deleteDocumentFromRevision(
+                revisions.get(revisions.size() - 1));
+
+        DocumentRevisionTree tree = datastore.getRevisionTreeOfDocument(deleted.getId());
+        Assert.assertEquals(1, revisionIds(tree).size());
+        Assert.assertTrue(tree.getCurrentRevision().isDeleted());
+        Assert.assertEquals(0, datastore.getDocumentCount());
+    }
+
+    @Test
+    public void updateDocument_afterConnectionsReopened_revisionsPruned() throws Exception {
+        datastore.setRevisionsLimit(2);
+        DocumentRevision rev = newRevision();
+        rev.getAttachments().put("att", new UnsavedStreamAttachment(
+                new ByteArrayInputStream("attachment".getBytes()), "att", "text/plain"));
+        DocumentRevision latest = datastore.createDocumentFromRevision(rev);
+
+        datastore.releaseConnections();
+        // queued behind the release, so this reopens the connection
+        SQLDatabaseQueue.Priority previous =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        try {
+            Assert.assertEquals(1, query("PRAGMA foreign_keys"));
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previous);
+        }
+        for (int i = 0; i < 3; i++) {
+            latest.setBody(i % 2 == 0 ? bodyTwo : bodyOne);
+            latest = datastore.updateDocumentFromRevision(latest);
+        }
+
+        Assert.assertEquals(0, query("SELECT COUNT(*) FROM revs WHERE parent NOT NULL AND " +
+                "parent NOT IN (SELECT sequence FROM revs)"));
+        Assert.assertEquals(0, query("SELECT COUNT(*) FROM attachments WHERE " +
+                "sequence NOT IN (SELECT sequence FROM revs)"));
+        DocumentRevisionTree tree = datastore.getRevisionTreeOfDocument(latest.getId());
+        Assert.assertEquals(1, tree.roots().size());
+        Assert.assertEquals(2, revisionIds(tree).size());
+
+        // the document can still be read and written
+        latest = datastore.getDocument(latest.getId());
+        latest.setBody(bodyTwo);
+        Assert.assertEquals(5, datastore.updateDocumentFromRevision(latest).getGeneration());
+    }
+
+    /**
+     * @return the revisions of a new document, which is updated {@code updates} times
+     */
+    private List<DocumentRevision> createAndUpdate(int updates) throws Exception {
+        List<DocumentRevision> revisions = new ArrayList<DocumentRevision>();
+        DocumentRevision revision = datastore.createDocumentFromRevision(newRevision());
+        revisions.add(revision);
+        for (int i = 0; i < updates; i++) {
+            revision.setBody(i % 2 == 0 ? bodyTwo : bodyOne);
+            revision = datastore.updateDocumentFromRevision(revision);
+            revisions.add(revision);
+        }
+        return revisions;
+    }
+
+    private static Set<String> revisionIds(DocumentRevisionTree tree) {
+        Set<String> revisionIds = new HashSet<String>();
+        for (DocumentRevision leaf : tree.leafRevisions()) {
+            revisionIds.addAll(tree.getPath(leaf.getSequence()));
+        }
+        return revisionIds;
+    }
+
+    private DocumentRevision createDetachedDocumentRevision(String docId, String rev,
+                                                            DocumentBody body) {
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(docId);
+        builder.setRevId(rev);
+        builder.setDeleted(false);
+        builder.setBody(body);
+        return builder.build();
+    }
+
+    private DocumentRevision newRevision() {
+        DocumentRevision revision = new DocumentRevision();
+        revision.setBody(bodyOne);
+        return revision;
+    }
+
+    private long query(final String sql) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor c = db.rawQuery(sql, null);
+                try {
+                    return c.moveToFirst() ? c.getLong(0) : 0;
+                } finally {
+                    c.close();
+                }
+            }
+        }).get();
+    }
+}
@@ -26,6 +26,7 @@ import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.sqlite.SQLQueueCallable;
 import com.cloudant.sync.util.TestUtils;
+import com.google.common.collect.Lists;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
@@ -206,6 +207,176 @@ public class DatastoreSchemaTests {
         TestUtils.deleteTempTestingDir(temp_folder.getAbsolutePath());
     }
 
+    @Test
+    /**
+     * Ensure the leaf flags set when migrating to version 102, and maintained
+     * afterwards, match the revisions which aren't the parent of another.
+     *
+     * fixture/datastores-user_version6.zip contains a known database, at version 6 and
+     * with two attachments.
+     */
+    public void migrationToVersion102MarksLeafRevisions() throws Exception {
+        File temp_folder = new File(TestUtils.createTempTestingDir(this.getClass().getName()));
+        File zippedVersion6 = f("fixture/datastores-user_version6.zip");
+        Assert.assertTrue(unzipToDirectory(zippedVersion6, temp_folder));
+
+        DatastoreImpl datastore = (DatastoreImpl) DatastoreManager.getInstance(
+                new File(temp_folder, "datastores").getAbsolutePath())
+                .openDatastore("testdb");
+
+        SQLQueueCallable<Integer> countWrongLeafFlags = new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Assert.assertTrue("DB version should be 102 or more", db.getVersion() >= 102);
+                Cursor c = db.rawQuery("SELECT COUNT(*) FROM revs WHERE leaf != " +
+                        "(sequence NOT IN (SELECT parent FROM revs WHERE parent NOT NULL))",
+                        null);
+                try {
+                    c.moveToFirst();
+                    return c.getInt(0);
+                } finally {
+                    c.close();
+                }
+            }
+        };
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongLeafFlags).get());
+
+        // revisions written after the migration
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(DocumentBodyFactory.create("{\"hello\": \"world\"}".getBytes()));
+        rev = datastore.createDocumentFromRevision(rev);
+        rev.setBody(DocumentBodyFactory.create("{\"hello\": \"everyone\"}".getBytes()));
+        rev = datastore.updateDocumentFromRevision(rev);
+        datastore.deleteDocumentFromRevision(rev);
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongLeafFlags).get());
+
+        datastore.close();
+
+        TestUtils.deleteTempTestingDir(temp_folder.getAbsolutePath());
+    }
+
+    @Test
+    public void migrationToVersion105ListsConflictedDocuments() throws Exception {
+        File temp_folder = new File(TestUtils.createTempTestingDir(this.getClass().getName()));
+        File zippedVersion6 = f("fixture/datastores-user_version6.zip");
+        Assert.assertTrue(unzipToDirectory(zippedVersion6, temp_folder));
+
+        DatastoreImpl datastore = (DatastoreImpl) DatastoreManager.getInstance(
+                new File(temp_folder, "datastores").getAbsolutePath())
+                .openDatastore("testdb");
+
+        // documents listed in the conflicts table which don't have two
+        // non-deleted leaf revisions, and the other way round
+        SQLQueueCallable<Integer> countWrongConflicts = new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Assert.assertTrue("DB version should be 105 or more", db.getVersion() >= 105);
+                String conflicted = "SELECT doc_id FROM revs WHERE leaf = 1 AND deleted = 0 " +
+                        "GROUP BY doc_id HAVING COUNT(*) > 1";
+                Cursor c = db.rawQuery("SELECT " +
+                        "(SELECT COUNT(*) FROM conflicts WHERE doc_id NOT IN (" + conflicted +
+                        ")) + (SELECT COUNT(*) FROM (" + conflicted + ") WHERE doc_id NOT IN " +
+                        "(SELECT doc_id FROM conflicts))", null);
+                try {
+                    c.moveToFirst();
+                    return c.getInt(0);
+                } finally {
+                    c.close();
+                }
+            }
+        };
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongConflicts).get());
+
+        // revisions written after the migration
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(DocumentBodyFactory.create("{\"hello\": \"world\"}".getBytes()));
+        rev = datastore.createDocumentFromRevision(rev);
+        DocumentRevision conflict = new DocumentRevision(rev.getId(), "2-a");
+        conflict.setBody(DocumentBodyFactory.create("{\"hello\": \"everyone\"}".getBytes()));
+        datastore.forceInsert(conflict, "1-a", "2-a");
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongConflicts).get());
+        Assert.assertTrue(Lists.newArrayList(datastore.getConflictedDocumentIds())
+                .contains(rev.getId()));
+
+        datastore.deleteDocumentFromRevision(datastore.getDocument(rev.getId()));
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongConflicts).get());
+
+        datastore.close();
+
+        TestUtils.deleteTempTestingDir(temp_folder.getAbsolutePath());
+    }
+
+    @Test
+    public void migrationToVersion106ListsUnusedAttachments() throws Exception {
+        File temp_folder = new File(TestUtils.createTempTestingDir(this.getClass().getName()));
+        File zippedVersion6 = f("fixture/datastores-user_version6.zip");
+        Assert.assertTrue(unzipToDirectory(zippedVersion6, temp_folder));
+
+        DatastoreImpl datastore = (DatastoreImpl) DatastoreManager.getInstance(
+                new File(temp_folder, "datastores").getAbsolutePath())
+                .openDatastore("testdb");
+
+        // blobs which are used by an attachment, and listed as unused, and the
+        // other way round
+        SQLQueueCallable<Integer> countWrongOrphans = new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Assert.assertTrue("DB version should be 106 or more", db.getVersion() >= 106);
+                String used = "SELECT lower(hex(key)) FROM attachments";
+                Cursor c = db.rawQuery("SELECT " +
+                        "(SELECT COUNT(*) FROM attachments_orphans WHERE key IN (" + used +
+                        ")) + (SELECT COUNT(*) FROM attachments_key_filename WHERE key NOT IN (" +
+                        used + ") AND key NOT IN (SELECT key FROM attachments_orphans))", null);
+                try {
+                    c.moveToFirst();
+                    return c.getInt(0);
+                } finally {
+                    c.close();
+                }
+            }
+        };
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongOrphans).get());
+
+        datastore.compact();
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(countWrongOrphans).get());
+
+        datastore.close();
+
+        TestUtils.deleteTempTestingDir(temp_folder.getAbsolutePath());
+    }
+
+    @Test
+    public void compactEnablesIncrementalVacuumForOldDatabase() throws Exception {
+        File temp_folder = new File(TestUtils.createTempTestingDir(this.getClass().getName()));
+        File zippedVersion6 = f("fixture/datastores-user_version6.zip");
+        Assert.assertTrue(unzipToDirectory(zippedVersion6, temp_folder));
+
+        DatastoreImpl datastore = (DatastoreImpl) DatastoreManager.getInstance(
+                new File(temp_folder, "datastores").getAbsolutePath())
+                .openDatastore("testdb");
+
+        SQLQueueCallable<Integer> autoVacuum = new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor c = db.rawQuery("PRAGMA auto_vacuum", null);
+                try {
+                    c.moveToFirst();
+                    return c.getInt(0);
+                } finally {
+                    c.close();
+                }
+            }
+        };
+        Assert.assertEquals(0, (int) datastore.runOnDbQueue(autoVacuum).get());
+        datastore.compact();
+        Assert.assertEquals(2, (int) datastore.runOnDbQueue(autoVacuum).get());
+        Assert.assertTrue(datastore.compactIncrementally());
+
+        datastore.close();
+
+        TestUtils.deleteTempTestingDir(temp_folder.getAbsolutePath());
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")  // mkdirs result should be fine
     private boolean unzipToDirectory(File zipPath, File outputDirectory) {
         try {
@@ -38,6 +38,7 @@ public class DatastoreTestUtils {
         FileUtils.touch(dbFile);
         SQLDatabase database = SQLDatabaseFactory.openSqlDatabase(dbFile.getAbsolutePath(),
                 new NullKeyProvider());
+        SQLDatabaseFactory.configureConnection(database);
         SQLDatabaseFactory.updateSchema(database,
                 new SchemaOnlyMigration(DatastoreConstants.getSchemaVersion3()), 3);
         SQLDatabaseFactory.updateSchema(database,
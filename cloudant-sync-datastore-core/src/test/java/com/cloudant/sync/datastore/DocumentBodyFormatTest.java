@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.JSONUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DocumentBodyFormatTest extends BasicDatastoreTestBase {
+
+    @Test
+    public void defaultFormat_isJson() {
+        Assert.assertEquals(DocumentBodyFormat.JSON, datastore.getDocumentBodyFormat());
+    }
+
+    @Test
+    public void smileFormat_revisionsReadBackUnchanged() throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        DocumentRevision jsonRev = datastore.createDocumentFromRevision(rev);
+        String jsonRevId = jsonRev.getRevision();
+
+        datastore.setDocumentBodyFormat(DocumentBodyFormat.SMILE);
+        rev = new DocumentRevision();
+        rev.setBody(bodyTwo);
+        DocumentRevision smileRev = datastore.createDocumentFromRevision(rev);
+        jsonRev.setBody(bodyTwo);
+        DocumentRevision updatedRev = datastore.updateDocumentFromRevision(jsonRev);
+
+        Assert.assertEquals(1, countRevisionsInFormat(DocumentBodyFormat.JSON));
+        Assert.assertEquals(2, countRevisionsInFormat(DocumentBodyFormat.SMILE));
+
+        assertBodyEquals(bodyOne, datastore.getDocument(jsonRev.getId(), jsonRevId));
+        assertBodyEquals(bodyTwo, datastore.getDocument(smileRev.getId()));
+        assertBodyEquals(bodyTwo, datastore.getDocument(updatedRev.getId()));
+    }
+
+    @Test
+    public void convertDocumentBodies_convertsExistingRevisions() throws Exception {
+        DocumentRevision[] revs = createThreeDocuments();
+        int revisions = countRevisionsInFormat(DocumentBodyFormat.JSON);
+        Assert.assertEquals(4, revisions);
+
+        // nothing to convert when the format hasn't changed
+        Assert.assertEquals(0, datastore.convertDocumentBodies());
+
+        datastore.setDocumentBodyFormat(DocumentBodyFormat.SMILE);
+        Assert.assertEquals(revisions, datastore.convertDocumentBodies());
+        Assert.assertEquals(revisions, countRevisionsInFormat(DocumentBodyFormat.SMILE));
+        assertBodyEquals(bodyOne, datastore.getDocument(revs[0].getId()));
+        assertBodyEquals(bodyTwo, datastore.getDocument(revs[1].getId()));
+        assertBodyEquals(bodyOne, datastore.getDocument(revs[2].getId()));
+
+        datastore.setDocumentBodyFormat(DocumentBodyFormat.JSON);
+        Assert.assertEquals(revisions, datastore.convertDocumentBodies());
+        Assert.assertEquals(revisions, countRevisionsInFormat(DocumentBodyFormat.JSON));
+        assertBodyEquals(bodyOne, datastore.getDocument(revs[0].getId()));
+    }
+
+    @Test
+    public void compression_onlyBodiesOverThresholdCompressed() throws Exception {
+        datastore.setDocumentBodyCompressionThreshold(1000);
+        DocumentBody large = largeBody();
+
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(large);
+        DocumentRevision largeRev = datastore.createDocumentFromRevision(rev);
+        rev = new DocumentRevision();
+        rev.setBody(bodyOne);
+        DocumentRevision smallRev = datastore.createDocumentFromRevision(rev);
+
+        Assert.assertEquals(1, countCompressedRevisions());
+        assertBodyEquals(large, datastore.getDocument(largeRev.getId()));
+        assertBodyEquals(bodyOne, datastore.getDocument(smallRev.getId()));
+
+        // compressed Smile
+        datastore.setDocumentBodyFormat(DocumentBodyFormat.SMILE);
+        largeRev.setBody(large);
+        DocumentRevision updatedRev = datastore.updateDocumentFromRevision(largeRev);
+        Assert.assertEquals(2, countCompressedRevisions());
+        assertBodyEquals(large, datastore.getDocument(updatedRev.getId()));
+    }
+
+    @Test
+    public void convertDocumentBodies_compressesAndDecompresses() throws Exception {
+        DocumentBody large = largeBody();
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(large);
+        DocumentRevision largeRev = datastore.createDocumentFromRevision(rev);
+        createTwoDocuments();
+        Assert.assertEquals(0, countCompressedRevisions());
+
+        int uncompressedLength = storedBodyLength(largeRev.getId());
+        datastore.setDocumentBodyCompressionThreshold(1000);
+        Assert.assertEquals(1, datastore.convertDocumentBodies());
+        Assert.assertEquals(1, countCompressedRevisions());
+        Assert.assertTrue(storedBodyLength(largeRev.getId()) < uncompressedLength);
+        assertBodyEquals(large, datastore.getDocument(largeRev.getId()));
+        Assert.assertEquals(0, datastore.convertDocumentBodies());
+
+        datastore.setDocumentBodyCompressionThreshold(DatastoreImpl.NO_BODY_COMPRESSION);
+        Assert.assertEquals(1, datastore.convertDocumentBodies());
+        Assert.assertEquals(0, countCompressedRevisions());
+        assertBodyEquals(large, datastore.getDocument(largeRev.getId()));
+    }
+
+    private static DocumentBody largeBody() {
+        Map<String, Object> body = new HashMap<String, Object>();
+        for (int i = 0; i < 200; i++) {
+            body.put("field" + i, "value of field " + i);
+        }
+        return DocumentBodyFactory.create(body);
+    }
+
+    private void assertBodyEquals(DocumentBody expected, DocumentRevision actual) {
+        Assert.assertEquals(expected.asMap(), actual.getBody().asMap());
+        // bodies are always JSON outside the datastore
+        Assert.assertEquals(expected.asMap(), JSONUtils.deserialize(actual.getBody().asBytes()));
+    }
+
+    private int countRevisionsInFormat(DocumentBodyFormat format) throws Exception {
+        return countRevisions("json_format = ?", Integer.toString(format.code));
+    }
+
+    private int countCompressedRevisions() throws Exception {
+        return countRevisions("json_deflated = 1");
+    }
+
+    private int storedBodyLength(final String docId) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT LENGTH(json) FROM revs, docs WHERE " +
+                            "revs.doc_id = docs.doc_id AND docs.docid = ? AND current = 1",
+                            new String[]{docId});
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+
+    private int countRevisions(final String where, final String... args) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT COUNT(*) FROM revs WHERE " + where, args);
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.cache.CacheStats;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class DocumentCacheTest extends BasicDatastoreTestBase {
+
+    private static final long CACHE_SIZE = 1024 * 1024;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        datastore.setDocumentCacheSize(CACHE_SIZE);
+    }
+
+    @Test
+    public void cacheOffByDefault() throws Exception {
+        DatastoreImpl other = (DatastoreImpl) datastoreManager.openDatastore("uncached");
+        try {
+            Assert.assertEquals(0, other.getDocumentCacheSize());
+            DocumentRevision rev = new DocumentRevision();
+            rev.setBody(bodyOne);
+            DocumentRevision saved = other.createDocumentFromRevision(rev);
+            other.getDocument(saved.getId());
+            Assert.assertEquals(0, other.getDocumentCacheStats().requestCount());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void getDocument_secondReadIsCached() throws Exception {
+        DocumentRevision saved = createDocument(bodyOne);
+
+        DocumentRevision first = datastore.getDocument(saved.getId());
+        DocumentRevision second = datastore.getDocument(saved.getId());
+        DocumentRevision byRevId = datastore.getDocument(saved.getId(), saved.getRevision());
+
+        assertSameRevision(first, second);
+        assertSameRevision(first, byRevId);
+        CacheStats stats = datastore.getDocumentCacheStats();
+        Assert.assertEquals(1, stats.missCount());
+        Assert.assertEquals(2, stats.hitCount());
+    }
+
+    @Test
+    public void getDocument_returnsCopies() throws Exception {
+        DocumentRevision saved = createDocument(bodyOne);
+        datastore.getDocument(saved.getId());
+
+        DocumentRevision cached = datastore.getDocument(saved.getId());
+        Map<String, Object> map = cached.getBody().asMap();
+        map.put("changed", true);
+        cached.setBody(bodyTwo);
+        cached.getAttachments().put("attachment", null);
+
+        DocumentRevision again = datastore.getDocument(saved.getId());
+        Assert.assertEquals(bodyOne.asMap(), again.getBody().asMap());
+        Assert.assertTrue(again.getAttachments().isEmpty());
+    }
+
+    @Test
+    public void updateDocument_cachedRevisionsDropped() throws Exception {
+        DocumentRevision saved = createDocument(bodyOne);
+        datastore.getDocument(saved.getId());
+
+        saved.setBody(bodyTwo);
+        DocumentRevision updated = datastore.updateDocumentFromRevision(saved);
+
+        DocumentRevision winner = datastore.getDocument(saved.getId());
+        Assert.assertEquals(updated.getRevision(), winner.getRevision());
+        Assert.assertEquals(bodyTwo.asMap(), winner.getBody().asMap());
+        Assert.assertFalse(datastore.getDocument(saved.getId(), saved.getRevision()).isCurrent());
+    }
+
+    @Test
+    public void deleteDocument_cachedRevisionsDropped() throws Exception {
+        DocumentRevision saved = createDocument(bodyOne);
+        datastore.getDocument(saved.getId());
+
+        datastore.deleteDocumentFromRevision(saved);
+        Assert.assertTrue(datastore.getDocument(saved.getId()).isDeleted());
+    }
+
+    @Test
+    public void forceInsert_newWinnerRead() throws Exception {
+        DocumentRevision saved = createDocument(bodyOne);
+        datastore.getDocument(saved.getId());
+
+        DocumentRevision pulled = new DocumentRevision(saved.getId(), "2-pulled");
+        pulled.setBody(bodyTwo);
+        datastore.forceInsert(pulled, saved.getRevision(), "2-pulled");
+
+        DocumentRevision winner = datastore.getDocument(saved.getId());
+        Assert.assertEquals("2-pulled", winner.getRevision());
+        Assert.assertEquals(bodyTwo.asMap(), winner.getBody().asMap());
+    }
+
+    @Test
+    public void bulkUpdate_cachedRevisionsDropped() throws Exception {
+        DocumentRevision saved = createDocument(bodyOne);
+        datastore.getDocument(saved.getId());
+
+        saved.setBody(bodyTwo);
+        List<BulkWriteResult> results = datastore.updateDocumentsFromRevisions(
+                Collections.singletonList(saved));
+
+        DocumentRevision winner = datastore.getDocument(saved.getId());
+        Assert.assertEquals(results.get(0).getRevision().getRevision(),
+                winner.getRevision());
+    }
+
+    @Test
+    public void put_notCachedIfWrittenSinceRead() throws Exception {
+        DocumentCache cache = datastore.getDocumentCache();
+        DocumentRevision saved = createDocument(bodyOne);
+
+        long writeCount = cache.beforeRead();
+        DocumentRevision read = datastore.getDocument(saved.getId());
+        // forget the revision cached by getDocument, to add it again here
+        cache.invalidateAll();
+        createDocument(bodyTwo);
+        cache.put(read, writeCount);
+        Assert.assertNull(cache.get(saved.getId(), null));
+
+        writeCount = cache.beforeRead();
+        cache.put(read, writeCount);
+        Assert.assertNotNull(cache.get(saved.getId(), null));
+        Assert.assertNotNull(cache.get(saved.getId(), saved.getRevision()));
+    }
+
+    @Test
+    public void leastRecentlyUsedDocumentsEvicted() throws Exception {
+        // room for a few documents
+        datastore.setDocumentCacheSize(4 * (256 + bodyOne.asBytes().length));
+        for (int i = 0; i < 20; i++) {
+            datastore.getDocument(createDocument(bodyOne).getId());
+        }
+        Assert.assertTrue(datastore.getDocumentCacheStats().evictionCount() > 0);
+    }
+
+    private DocumentRevision createDocument(DocumentBody body) throws Exception {
+        DocumentRevision rev = new DocumentRevision();
+        rev.setBody(body);
+        return datastore.createDocumentFromRevision(rev);
+    }
+
+    private static void assertSameRevision(DocumentRevision expected, DocumentRevision actual) {
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getRevision(), actual.getRevision());
+        Assert.assertEquals(expected.getSequence(), actual.getSequence());
+        Assert.assertEquals(expected.isCurrent(), actual.isCurrent());
+        Assert.assertEquals(expected.getBody().asMap(), actual.getBody().asMap());
+        Assert.assertEquals(expected.getAttachments().keySet(), actual.getAttachments().keySet());
+    }
+}
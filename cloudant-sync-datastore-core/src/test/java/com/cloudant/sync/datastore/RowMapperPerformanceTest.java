@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLQueueCallable;
+import com.cloudant.sync.util.DatabaseUtils;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the rate at which rows of revisions are decoded, comparing
+ * {@link RevisionRowMapper} with looking up each column by name for every row.
+ */
+@Category(PerformanceTest.class)
+public class RowMapperPerformanceTest extends BasicDatastoreTestBase {
+
+    private static final int DOCUMENTS = 10000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int ROUNDS = 20;
+
+    private static final String SELECT_REVISIONS = "SELECT docs.docid, docs.doc_id, revid, " +
+            "sequence, json, current, deleted, parent FROM revs, docs " +
+            "WHERE revs.doc_id = docs.doc_id";
+
+    @Test
+    public void decodeRevisionRows() throws Exception {
+        for (int batch = 0; batch < DOCUMENTS / BATCH_SIZE; batch++) {
+            List<DocumentRevision> revisions = new ArrayList<DocumentRevision>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                DocumentRevision revision = new DocumentRevision();
+                revision.setBody(bodyOne);
+                revisions.add(revision);
+            }
+            datastore.createDocumentsFromRevisions(revisions);
+        }
+
+        // warm up both, then measure
+        decode(false, 1);
+        decode(true, 1);
+        long byName = decode(false, ROUNDS);
+        long mapped = decode(true, ROUNDS);
+
+        long rows = (long) DOCUMENTS * ROUNDS;
+        System.out.println(String.format("%d rows decoded: looking up columns by name %d ms " +
+                "(%d rows/s), row mapper %d ms (%d rows/s)", rows, byName,
+                rows * 1000 / Math.max(byName, 1), mapped, rows * 1000 / Math.max(mapped, 1)));
+    }
+
+    /**
+     * Runs the query {@code rounds} times and returns the total time spent
+     * decoding its rows, excluding the time spent running the query.
+     */
+    private long decode(final boolean useMapper, final int rounds) throws Exception {
+        return datastore.runOnDbQueue(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                long decoding = 0;
+                for (int round = 0; round < rounds; round++) {
+                    Cursor cursor = null;
+                    try {
+                        cursor = db.rawQuery(SELECT_REVISIONS, new String[]{});
+                        long start = System.nanoTime();
+                        if (useMapper) {
+                            RevisionRowMapper mapper = new RevisionRowMapper(cursor);
+                            while (cursor.moveToNext()) {
+                                mapper.mapRow().build();
+                            }
+                        } else {
+                            while (cursor.moveToNext()) {
+                                decodeByName(cursor);
+                            }
+                        }
+                        decoding += System.nanoTime() - start;
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                }
+                return decoding / 1000000;
+            }
+        }).get();
+    }
+
+    // how rows were decoded before RevisionRowMapper
+    private static DocumentRevision decodeByName(Cursor cursor) {
+        long parent = -1L;
+        if (cursor.columnType(cursor.getColumnIndex("parent")) == Cursor.FIELD_TYPE_INTEGER) {
+            parent = cursor.getLong(cursor.getColumnIndex("parent"));
+        }
+        return new DocumentRevisionBuilder()
+                .setDocId(cursor.getString(cursor.getColumnIndex("docid")))
+                .setRevId(cursor.getString(cursor.getColumnIndex("revid")))
+                .setBody(DocumentBodyImpl.bodyWith(cursor.getBlob(cursor.getColumnIndex("json"))))
+                .setDeleted(cursor.getInt(cursor.getColumnIndex("deleted")) > 0)
+                .setSequence(cursor.getLong(cursor.getColumnIndex("sequence")))
+                .setInternalId(cursor.getLong(cursor.getColumnIndex("doc_id")))
+                .setCurrent(cursor.getInt(cursor.getColumnIndex("current")) > 0)
+                .setParent(parent)
+                .build();
+    }
+}
@@ -59,6 +59,7 @@ public class SQLDatabaseFactoryTest {
     public void setUp() throws Exception {
         database_dir = TestUtils.createTempTestingDir(SQLDatabaseFactoryTest.class.getName());
         database = TestUtils.createEmptyDatabase(database_dir, database_file);
+        SQLDatabaseFactory.configureConnection(database);
     }
 
     @After
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityTaskQueueTest {
+
+    /**
+     * Holds on to the placeholders it is given, so the test controls when tasks run.
+     */
+    private final List<Runnable> placeholders = new ArrayList<Runnable>();
+    private final Executor holdingExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            placeholders.add(command);
+        }
+    };
+
+    private final List<String> order = new ArrayList<String>();
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    private void runPlaceholders() {
+        for (Runnable placeholder : placeholders) {
+            placeholder.run();
+        }
+        placeholders.clear();
+    }
+
+    @Test
+    public void highestPriorityRunsFirst() {
+        PriorityTaskQueue tasks = new PriorityTaskQueue(TimeUnit.MINUTES.toNanos(1));
+        tasks.execute(holdingExecutor, SQLDatabaseQueue.Priority.BACKGROUND, record("b"));
+        tasks.execute(holdingExecutor, SQLDatabaseQueue.Priority.NORMAL, record("n"));
+        tasks.execute(holdingExecutor, SQLDatabaseQueue.Priority.INTERACTIVE, record("i1"));
+        tasks.execute(holdingExecutor, SQLDatabaseQueue.Priority.INTERACTIVE, record("i2"));
+
+        Assert.assertEquals(4, placeholders.size());
+        runPlaceholders();
+        Assert.assertEquals(Arrays.asList("i1", "i2", "n", "b"), order);
+        Assert.assertNull(tasks.poll());
+    }
+
+    @Test
+    public void starvedTaskRunsBeforeHigherPriority() throws Exception {
+        PriorityTaskQueue tasks = new PriorityTaskQueue(TimeUnit.MILLISECONDS.toNanos(20));
+        tasks.execute(holdingExecutor, SQLDatabaseQueue.Priority.BACKGROUND, record("b"));
+        Thread.sleep(50);
+        tasks.execute(holdingExecutor, SQLDatabaseQueue.Priority.INTERACTIVE, record("i"));
+
+        runPlaceholders();
+        Assert.assertEquals(Arrays.asList("b", "i"), order);
+    }
+
+    @Test
+    public void rejectedTaskIsNotQueued() {
+        PriorityTaskQueue tasks = new PriorityTaskQueue(TimeUnit.MINUTES.toNanos(1));
+        try {
+            tasks.execute(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    throw new RejectedExecutionException();
+                }
+            }, SQLDatabaseQueue.Priority.NORMAL, record("rejected"));
+            Assert.fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        Assert.assertNull(tasks.poll());
+    }
+}
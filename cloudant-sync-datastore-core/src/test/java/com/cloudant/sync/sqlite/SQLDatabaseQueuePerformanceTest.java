@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures read throughput from many threads while a writer continuously
+ * commits, with and without a pool of reader connections, and write throughput
+ * from many threads with and without group commit.
+ */
+@Category(PerformanceTest.class)
+public class SQLDatabaseQueuePerformanceTest {
+
+    private static final int ROWS = 1000;
+    private static final int CLIENT_THREADS = 8;
+    private static final int READS_PER_THREAD = 500;
+
+    private String databaseDir;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseDir = TestUtils.createTempTestingDir(
+                SQLDatabaseQueuePerformanceTest.class.getName());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtils.deleteTempTestingDir(databaseDir);
+    }
+
+    @Test
+    public void readThroughputUnderWriteLoad() throws Exception {
+        long singleConnection = timeReads(0);
+        long pooled = timeReads(4);
+        System.out.println(String.format("%d reads with concurrent writes: single connection " +
+                "%d ms, 4 reader connections %d ms", CLIENT_THREADS * READS_PER_THREAD,
+                singleConnection, pooled));
+    }
+
+    @Test
+    public void writeThroughputFromManyThreads() throws Exception {
+        long separate = timeWrites(0);
+        long grouped = timeWrites(1);
+        System.out.println(String.format("%d concurrent single-row transactions: separate " +
+                "commits %d ms, group commit %d ms", CLIENT_THREADS * READS_PER_THREAD,
+                separate, grouped));
+    }
+
+    private long timeWrites(long groupCommitWindowMillis) throws Exception {
+        String file = new File(databaseDir, "perf_write_" + groupCommitWindowMillis +
+                ".sqlite4java").getAbsolutePath();
+        final SQLDatabaseQueue queue = new SQLDatabaseQueue(file, new NullKeyProvider());
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        try {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
+                    db.execSQL("CREATE TABLE things (id INTEGER PRIMARY KEY, name TEXT)");
+                    return null;
+                }
+            }).get();
+            queue.setGroupCommit(groupCommitWindowMillis, TimeUnit.MILLISECONDS,
+                    SQLDatabaseQueue.DEFAULT_GROUP_COMMIT_SIZE);
+
+            List<Future<?>> writers = new ArrayList<Future<?>>();
+            long start = System.currentTimeMillis();
+            for (int t = 0; t < CLIENT_THREADS; t++) {
+                writers.add(clients.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                                @Override
+                                public Object call(SQLDatabase db) throws Exception {
+                                    db.execSQL("INSERT INTO things (name) VALUES ('thing')");
+                                    return null;
+                                }
+                            }).get();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            clients.shutdown();
+            queue.shutdown();
+        }
+    }
+
+    private long timeReads(int readerConnections) throws Exception {
+        String file = new File(databaseDir, "perf_" + readerConnections + ".sqlite4java")
+                .getAbsolutePath();
+        final SQLDatabaseQueue queue = new SQLDatabaseQueue(file, new NullKeyProvider(),
+                readerConnections);
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS + 1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        try {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
+                    db.execSQL("CREATE TABLE things (id INTEGER PRIMARY KEY, name TEXT)");
+                    for (int i = 0; i < ROWS; i++) {
+                        db.execSQL("INSERT INTO things (name) VALUES (?)",
+                                new Object[]{"thing" + i});
+                    }
+                    return null;
+                }
+            }).get();
+
+            Future<?> writer = clients.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    while (writing.get()) {
+                        queue.submitTransaction(new SQLQueueCallable<Object>() {
+                            @Override
+                            public Object call(SQLDatabase db) throws Exception {
+                                db.execSQL("INSERT INTO things (name) VALUES ('more')");
+                                return null;
+                            }
+                        }).get();
+                    }
+                    return null;
+                }
+            });
+
+            List<Future<?>> readers = new ArrayList<Future<?>>();
+            long start = System.currentTimeMillis();
+            for (int t = 0; t < CLIENT_THREADS; t++) {
+                readers.add(clients.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            final String id = String.valueOf(1 + (i % ROWS));
+                            String name = queue.submitRead(new SQLQueueCallable<String>() {
+                                @Override
+                                public String call(SQLDatabase db) throws Exception {
+                                    Cursor cursor = null;
+                                    try {
+                                        cursor = db.rawQuery(
+                                                "SELECT name FROM things WHERE id = ?",
+                                                new String[]{id});
+                                        cursor.moveToFirst();
+                                        return cursor.getString(0);
+                                    } finally {
+                                        DatabaseUtils.closeCursorQuietly(cursor);
+                                    }
+                                }
+                            }).get();
+                            Assert.assertNotNull(name);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            writing.set(false);
+            writer.get();
+            return elapsed;
+        } finally {
+            writing.set(false);
+            clients.shutdown();
+            queue.shutdown();
+        }
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.sync.datastore.encryption.NullKeyProvider;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SQLDatabaseQueueTest {
+
+    private String databaseDir;
+    private String databaseFile;
+    private SQLDatabaseQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseDir = TestUtils.createTempTestingDir(SQLDatabaseQueueTest.class.getName());
+        databaseFile = new File(databaseDir, "queue_test.sqlite4java").getAbsolutePath();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null && !queue.isShutdown()) {
+            queue.shutdown();
+        }
+        TestUtils.deleteTempTestingDir(databaseDir);
+    }
+
+    private void createTable() throws Exception {
+        queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("CREATE TABLE things (id INTEGER PRIMARY KEY, name TEXT)");
+                db.execSQL("INSERT INTO things (name) VALUES ('first')");
+                return null;
+            }
+        }).get();
+    }
+
+    private static SQLQueueCallable<Long> countThings() {
+        return new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT COUNT(*) FROM things", null);
+                    cursor.moveToFirst();
+                    return cursor.getLong(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void readsDoNotWaitForWriteTransaction() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider(), 2);
+        Assert.assertEquals(2, queue.getReaderConnections());
+        createTable();
+
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final CountDownLatch finishTransaction = new CountDownLatch(1);
+        Future<Object> write = queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES ('second')");
+                inTransaction.countDown();
+                finishTransaction.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+
+        try {
+            Assert.assertTrue(inTransaction.await(10, TimeUnit.SECONDS));
+            // The writer is blocked mid-transaction, the read must complete regardless
+            // and only see committed data.
+            Assert.assertEquals(Long.valueOf(1),
+                    queue.submitRead(countThings()).get(10, TimeUnit.SECONDS));
+        } finally {
+            finishTransaction.countDown();
+        }
+        write.get();
+
+        Assert.assertEquals(Long.valueOf(2), queue.submitRead(countThings()).get());
+    }
+
+    @Test
+    public void readsUseWriteAheadLogging() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider(), 1);
+        String mode = queue.submit(new SQLQueueCallable<String>() {
+            @Override
+            public String call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("PRAGMA journal_mode", null);
+                    cursor.moveToFirst();
+                    return cursor.getString(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+        Assert.assertEquals("wal", mode.toLowerCase());
+    }
+
+    @Test(expected = java.util.concurrent.ExecutionException.class)
+    public void readersCannotWrite() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider(), 1);
+        createTable();
+        queue.submitRead(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES ('second')");
+                return null;
+            }
+        }).get();
+    }
+
+    @Test
+    public void readsWithoutReadersRunInOrderOnWriter() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        Assert.assertEquals(0, queue.getReaderConnections());
+        createTable();
+        queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES ('second')");
+                return null;
+            }
+        });
+        Assert.assertEquals(Long.valueOf(2), queue.submitRead(countThings()).get());
+    }
+
+    private static SQLQueueCallable<Object> insertThing(final String name) {
+        return new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES (?)", new Object[]{name});
+                return name;
+            }
+        };
+    }
+
+    @Test
+    public void writeCountIncrementedOnceWritesCommitted() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        createTable();
+        long writes = queue.getWriteCount();
+
+        queue.submitRead(countThings()).get();
+        Assert.assertEquals(writes, queue.getWriteCount());
+
+        final long[] countInsideTask = new long[1];
+        queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                queue.submitTransaction(new SQLQueueCallable<Object>() {
+                    @Override
+                    public Object call(SQLDatabase db) throws Exception {
+                        db.execSQL("INSERT INTO things (name) VALUES ('nested')");
+                        return null;
+                    }
+                }).get();
+                // the nested task isn't committed until this one is
+                countInsideTask[0] = queue.getWriteCount();
+                return null;
+            }
+        }).get();
+        Assert.assertEquals(writes, countInsideTask[0]);
+        Assert.assertEquals(writes + 1, queue.getWriteCount());
+    }
+
+    @Test
+    public void groupCommit_failedTaskRolledBackAlone() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        createTable();
+        queue.setGroupCommit(200, TimeUnit.MILLISECONDS, 10);
+
+        Future<Object> first = queue.submitTransaction(insertThing("a"));
+        Future<Object> failing = queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES ('b')");
+                throw new IllegalStateException("roll me back");
+            }
+        });
+        Future<Object> last = queue.submitTransaction(insertThing("c"));
+
+        Assert.assertEquals("a", first.get());
+        Assert.assertEquals("c", last.get());
+        try {
+            failing.get();
+            Assert.fail("Failing task should throw");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(Long.valueOf(3), queue.submit(countThings()).get());
+    }
+
+    @Test
+    public void groupCommit_errorFailsOnlyItsTask() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        createTable();
+        queue.setGroupCommit(200, TimeUnit.MILLISECONDS, 10);
+
+        Future<Object> first = queue.submitTransaction(insertThing("a"));
+        Future<Object> failing = queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES ('b')");
+                throw new AssertionError("roll me back");
+            }
+        });
+        Future<Object> last = queue.submitTransaction(insertThing("c"));
+
+        Assert.assertEquals("a", first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("c", last.get(10, TimeUnit.SECONDS));
+        try {
+            failing.get(10, TimeUnit.SECONDS);
+            Assert.fail("Failing task should throw");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AssertionError);
+        }
+        Assert.assertEquals(Long.valueOf(3), queue.submit(countThings()).get());
+    }
+
+    @Test
+    public void groupCommit_failedNestedTransactionDoesNotPoisonGroup() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        createTable();
+        queue.setGroupCommit(200, TimeUnit.MILLISECONDS, 10);
+
+        Future<Object> first = queue.submitTransaction(insertThing("a"));
+        Future<Object> nested = queue.submitTransaction(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("INSERT INTO things (name) VALUES ('b')");
+                // inner transaction not marked successful, rolling back this task only
+                db.beginTransaction();
+                db.endTransaction();
+                return "b";
+            }
+        });
+        Future<Object> last = queue.submitTransaction(insertThing("c"));
+
+        first.get();
+        nested.get();
+        last.get();
+        Assert.assertEquals(Long.valueOf(3), queue.submit(countThings()).get());
+    }
+
+    @Test
+    public void groupCommit_fullGroupCommitsBeforeWindow() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        createTable();
+        queue.setGroupCommit(1, TimeUnit.MINUTES, 2);
+
+        Future<Object> first = queue.submitTransaction(insertThing("a"));
+        Future<Object> second = queue.submitTransaction(insertThing("b"));
+        Assert.assertEquals("a", first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("b", second.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Long.valueOf(3), queue.submit(countThings()).get());
+    }
+
+    @Test
+    public void groupCommit_windowDoesNotBlockWriter() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        createTable();
+        queue.setGroupCommit(1, TimeUnit.MINUTES, 10);
+
+        Future<Object> grouped = queue.submitTransaction(insertThing("a"));
+        // runs while the group is still waiting for its window to close
+        Assert.assertEquals(Long.valueOf(1), queue.submit(countThings()).get(10, TimeUnit.SECONDS));
+        Assert.assertFalse(grouped.isDone());
+
+        // shutting down commits the waiting group
+        queue.shutdown();
+        Assert.assertEquals("a", grouped.get(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Blocks the writer thread until {@code release} is counted down.
+     */
+    private Future<Object> blockWriter(final CountDownLatch blocked, final CountDownLatch release) {
+        return queue.submit(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                blocked.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+    }
+
+    private static SQLQueueCallable<Object> record(final List<String> order, final String name) {
+        return new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                order.add(name);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void waitingTasksRunInPriorityOrder() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        Future<Object> blocker = blockWriter(blocked, release);
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        queue.submit(record(order, "background1"), SQLDatabaseQueue.Priority.BACKGROUND);
+        queue.submit(record(order, "normal"));
+        queue.submit(record(order, "background2"), SQLDatabaseQueue.Priority.BACKGROUND);
+        Future<Object> last = queue.submitTransaction(record(order, "interactive"),
+                SQLDatabaseQueue.Priority.INTERACTIVE);
+        release.countDown();
+        blocker.get();
+        last.get();
+        queue.submit(record(order, "done"), SQLDatabaseQueue.Priority.BACKGROUND).get();
+
+        Assert.assertEquals(Arrays.asList("interactive", "normal", "background1", "background2",
+                "done"), order);
+    }
+
+    @Test
+    public void threadPriorityLimitsSubmittedTasks() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        Future<Object> blocker = blockWriter(blocked, release);
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        SQLDatabaseQueue.Priority previous =
+                SQLDatabaseQueue.setThreadPriority(SQLDatabaseQueue.Priority.BACKGROUND);
+        try {
+            Assert.assertEquals(SQLDatabaseQueue.Priority.INTERACTIVE, previous);
+            queue.submit(record(order, "limited"), SQLDatabaseQueue.Priority.INTERACTIVE);
+        } finally {
+            SQLDatabaseQueue.setThreadPriority(previous);
+        }
+        queue.submit(record(order, "normal"));
+        release.countDown();
+        blocker.get();
+        queue.submit(record(order, "done"), SQLDatabaseQueue.Priority.BACKGROUND).get();
+
+        Assert.assertEquals(Arrays.asList("normal", "limited", "done"), order);
+    }
+
+    @Test
+    public void releasedConnectionsReopenedForNextTask() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider(), 2);
+        createTable();
+        final List<SQLDatabaseQueue> opened =
+                Collections.synchronizedList(new ArrayList<SQLDatabaseQueue>());
+        queue.setConnectionListener(new SQLDatabaseQueue.ConnectionListener() {
+            @Override
+            public void connectionsOpened(SQLDatabaseQueue queue) {
+                opened.add(queue);
+            }
+        });
+
+        queue.releaseConnections();
+        Assert.assertFalse(queue.isActive());
+        Assert.assertEquals(Long.valueOf(1), queue.submitRead(countThings()).get());
+        Assert.assertTrue(queue.isActive());
+        Assert.assertEquals(Arrays.asList(queue), opened);
+
+        queue.releaseConnections();
+        Assert.assertEquals("a", queue.submitTransaction(insertThing("a")).get());
+        Assert.assertEquals(Long.valueOf(2), queue.submit(countThings()).get());
+        Assert.assertTrue(queue.isActive());
+        Assert.assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void concurrentReadsAfterRelease_listenerCalledOnce() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider(), 2);
+        createTable();
+        final AtomicInteger opened = new AtomicInteger();
+        queue.setConnectionListener(new SQLDatabaseQueue.ConnectionListener() {
+            @Override
+            public void connectionsOpened(SQLDatabaseQueue queue) {
+                opened.incrementAndGet();
+            }
+        });
+        queue.releaseConnections();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        queue.submitRead(countThings()).get();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(queue.isActive());
+        Assert.assertEquals(1, opened.get());
+    }
+
+    @Test
+    public void reopenedConnectionHasForeignKeysEnabled() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider());
+        SQLQueueCallable<Long> foreignKeys = new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("PRAGMA foreign_keys", null);
+                    cursor.moveToFirst();
+                    return cursor.getLong(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        };
+        Assert.assertEquals(Long.valueOf(1), queue.submit(foreignKeys).get());
+
+        queue.releaseConnections();
+        // queued after the task closing the connection, so runs on a new one
+        Assert.assertEquals(Long.valueOf(1),
+                queue.submit(foreignKeys, SQLDatabaseQueue.Priority.BACKGROUND).get());
+        Assert.assertTrue(queue.isActive());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void readsRejectedAfterShutdown() throws Exception {
+        queue = new SQLDatabaseQueue(databaseFile, new NullKeyProvider(), 2);
+        createTable();
+        queue.submitRead(countThings()).get();
+        queue.shutdown();
+        queue.submitRead(countThings());
+    }
+
+}
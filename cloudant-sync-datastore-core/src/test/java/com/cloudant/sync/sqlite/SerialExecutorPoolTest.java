@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SerialExecutorPoolTest {
+
+    private SerialExecutorPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new SerialExecutorPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private static Callable<Thread> currentThread() {
+        return new Callable<Thread>() {
+            @Override
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        };
+    }
+
+    @Test
+    public void sameKeyRunsOnSameThread() throws Exception {
+        ExecutorService first = pool.executorFor("db1");
+        ExecutorService second = pool.executorFor("db1");
+        Thread thread = first.submit(currentThread()).get();
+        Assert.assertTrue(thread.isDaemon());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(thread, first.submit(currentThread()).get());
+            Assert.assertSame(thread, second.submit(currentThread()).get());
+        }
+    }
+
+    @Test
+    public void shutdownOnlyAffectsOneExecutor() throws Exception {
+        ExecutorService first = pool.executorFor("db1");
+        ExecutorService second = pool.executorFor("db1");
+        final CountDownLatch release = new CountDownLatch(1);
+        first.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        first.shutdown();
+        Assert.assertTrue(first.isShutdown());
+        Assert.assertFalse(first.isTerminated());
+        Assert.assertFalse(first.awaitTermination(10, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(first.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(first.isTerminated());
+
+        Assert.assertFalse(second.isShutdown());
+        Assert.assertNotNull(second.submit(currentThread()).get());
+        try {
+            first.submit(currentThread());
+            Assert.fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failingTaskDoesNotReplaceThread() throws Exception {
+        ExecutorService executor = pool.executorFor("db1");
+        Thread thread = executor.submit(currentThread()).get();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected failure");
+            }
+        });
+        Assert.assertSame(thread, executor.submit(currentThread()).get());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StatementCacheTest {
+
+    private List<String> disposed;
+    private StatementCache<String> cache;
+
+    @Before
+    public void setUp() {
+        disposed = new ArrayList<String>();
+        cache = newCache(2);
+    }
+
+    private StatementCache<String> newCache(int capacity) {
+        return new StatementCache<String>(capacity) {
+            @Override
+            protected void dispose(String statement) {
+                disposed.add(statement);
+            }
+        };
+    }
+
+    @Test
+    public void checkout_missThenHit() {
+        Assert.assertNull(cache.checkout("a"));
+        cache.checkin("a", "stmt-a");
+        Assert.assertEquals("stmt-a", cache.checkout("a"));
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void checkout_removesStatementUntilCheckedIn() {
+        cache.checkin("a", "stmt-a");
+        Assert.assertEquals("stmt-a", cache.checkout("a"));
+        Assert.assertNull(cache.checkout("a"));
+    }
+
+    @Test
+    public void checkin_overCapacity_disposesLeastRecentlyUsed() {
+        cache.checkin("a", "stmt-a");
+        cache.checkin("b", "stmt-b");
+        cache.checkin("a", cache.checkout("a"));
+        cache.checkin("c", "stmt-c");
+        Assert.assertEquals(Arrays.asList("stmt-b"), disposed);
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void checkin_sameSqlTwice_disposesPrevious() {
+        cache.checkin("a", "stmt-a1");
+        cache.checkin("a", "stmt-a2");
+        Assert.assertEquals(Arrays.asList("stmt-a1"), disposed);
+        Assert.assertEquals("stmt-a2", cache.checkout("a"));
+    }
+
+    @Test
+    public void checkin_zeroCapacity_disposesImmediately() {
+        cache = newCache(0);
+        cache.checkin("a", "stmt-a");
+        Assert.assertEquals(Arrays.asList("stmt-a"), disposed);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void clear_disposesAll() {
+        cache.checkin("a", "stmt-a");
+        cache.checkin("b", "stmt-b");
+        cache.clear();
+        Assert.assertEquals(2, disposed.size());
+        Assert.assertEquals(0, cache.size());
+    }
+}
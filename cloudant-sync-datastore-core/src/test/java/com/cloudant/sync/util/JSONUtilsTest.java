@@ -52,6 +52,22 @@ public class JSONUtilsTest {
         Assert.assertFalse(JSONUtils.isValidJSON("101"));
     }
 
+    @Test
+    public void isValidJSON_nestedObjectBytes() {
+        String json = "{\"a\":[1,{\"b\":null},\"c\"],\"d\":{\"e\":true}}";
+        Assert.assertTrue(JSONUtils.isValidJSON(json.getBytes()));
+    }
+
+    @Test
+    public void isValidJSON_truncatedObjectBytes() {
+        Assert.assertFalse(JSONUtils.isValidJSON("{\"a\":[1,2".getBytes()));
+    }
+
+    @Test
+    public void isValidJSON_arrayString() {
+        Assert.assertFalse(JSONUtils.isValidJSON("[{\"a\":1}]"));
+    }
+
     @Test
     public void serializeAsBytes() {
         Map obj = new HashMap<String, String>();
@@ -151,5 +167,22 @@ public class JSONUtilsTest {
         byte[] data = FileUtils.readFileToByteArray(TestUtils.loadFixture(filename));
         return data;
     }
-}
 
+    @Test
+    public void jsonToSmile_roundTrip_sameObject() {
+        String json = "{\"a\":[1,{\"b\":null},\"c\"],\"d\":{\"e\":true,\"f\":1.5}}";
+        byte[] smile = JSONUtils.jsonToSmile(json.getBytes());
+        Assert.assertEquals(JSONUtils.deserialize(json.getBytes()),
+                JSONUtils.deserializeSmile(smile));
+        Assert.assertEquals(json, JSONUtils.bytesToString(JSONUtils.smileToJson(smile)));
+    }
+
+    @Test
+    public void serializeAsSmile_sameObjectAsJson() {
+        Map<String, Object> obj = new HashMap<String, Object>();
+        obj.put("name", "the great wall");
+        obj.put("length", 21196);
+        Assert.assertEquals(JSONUtils.deserialize(JSONUtils.serializeAsBytes(obj)),
+                JSONUtils.deserializeSmile(JSONUtils.serializeAsSmile(obj)));
+    }
+}
@@ -19,6 +19,7 @@ import com.almworks.sqlite4java.SQLiteException;
 import com.almworks.sqlite4java.SQLiteStatement;
 import com.cloudant.android.ContentValues;
 import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.StatementCache;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -45,8 +46,23 @@ public class SQLiteWrapper extends SQLDatabase {
 
     private final String databaseFilePath;
 
+    private final boolean readOnly;
+
     private SQLiteConnection localConnection;
 
+    /**
+     * Compiled statements for {@link #localConnection}, reused by
+     * {@link #execSQL(String, Object[])}, {@link #rawQuery(String, String[])} and
+     * the insert, update and delete methods.
+     */
+    private final StatementCache<SQLiteStatement> statementCache =
+            new StatementCache<SQLiteStatement>(StatementCache.DEFAULT_CAPACITY) {
+                @Override
+                protected void dispose(SQLiteStatement statement) {
+                    SQLiteWrapperUtils.disposeQuietly(statement);
+                }
+            };
+
     /**
      * Tracks whether the current nested set of transactions has had any
      * failed transactions so far.
@@ -62,7 +78,12 @@ public class SQLiteWrapper extends SQLDatabase {
     private Stack<Boolean> transactionStack = new Stack<Boolean>();
 
     public SQLiteWrapper(String databaseFilePath) {
+        this(databaseFilePath, false);
+    }
+
+    public SQLiteWrapper(String databaseFilePath, boolean readOnly) {
         this.databaseFilePath = databaseFilePath;
+        this.readOnly = readOnly;
     }
 
     public static SQLiteWrapper openSQLiteWrapper(String databaseFilePath) {
@@ -71,6 +92,20 @@ public class SQLiteWrapper extends SQLDatabase {
         return db;
     }
 
+    /**
+     * Opens a connection which can only read from the database. Read-only
+     * connections are used to serve queries concurrently with the connection
+     * which writes to the database when it is in write-ahead logging mode.
+     *
+     * @param databaseFilePath full file path of the db file
+     * @return a read-only {@code SQLiteWrapper} for the file
+     */
+    public static SQLiteWrapper openReadOnlySQLiteWrapper(String databaseFilePath) {
+        SQLiteWrapper db = new SQLiteWrapper(databaseFilePath, true);
+        db.open();
+        return db;
+    }
+
     public String getDatabaseFile() {
         return this.databaseFilePath;
     }
@@ -86,7 +121,11 @@ public class SQLiteWrapper extends SQLDatabase {
     SQLiteConnection createNewConnection() {
         try {
             SQLiteConnection conn = new SQLiteConnection(new File(this.databaseFilePath));
-            conn.open();
+            if (readOnly) {
+                conn.openReadonly();
+            } else {
+                conn.open();
+            }
             conn.setBusyTimeout(30*1000);
             return conn;
         } catch (SQLiteException ex) {
@@ -108,6 +147,11 @@ public class SQLiteWrapper extends SQLDatabase {
         }
     }
 
+    @Override
+    public StatementCache<SQLiteStatement> getStatementCache() {
+        return statementCache;
+    }
+
     @Override
     public int getVersion() {
         try {
@@ -203,6 +247,7 @@ public class SQLiteWrapper extends SQLDatabase {
         // for the same thread as us
         SQLiteConnection conn = localConnection;
         if (conn != null && !conn.isDisposed()) {
+            statementCache.clear();
             conn.dispose();
         }
     }
@@ -222,16 +267,10 @@ public class SQLiteWrapper extends SQLDatabase {
     public void execSQL(String sql, Object[] bindArgs) throws SQLException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(sql.trim()),
                 "Input SQL can not be empty String.");
-        SQLiteStatement stmt = null;
         try {
-            stmt = this.getConnection().prepare(sql);
-            stmt = SQLiteWrapperUtils.bindArguments(stmt, bindArgs);
-            while (stmt.step()) {
-            }
+            this.executeSQLStatement(sql, bindArgs);
         } catch (SQLiteException e) {
             throw new SQLException(e);
-        } finally {
-            SQLiteWrapperUtils.disposeQuietly(stmt);
         }
     }
 
@@ -255,10 +294,14 @@ public class SQLiteWrapper extends SQLDatabase {
 
     @Override
     public SQLiteCursor rawQuery(String sql, String[] bindArgs) throws SQLException {
+        SQLiteStatement stmt = null;
         try {
-            return SQLiteWrapperUtils.buildSQLiteCursor(getConnection(), sql, bindArgs);
+            stmt = this.prepareStatement(sql);
+            return SQLiteWrapperUtils.buildSQLiteCursor(stmt, bindArgs);
         } catch (SQLiteException e) {
             throw new SQLException(e);
+        } finally {
+            this.releaseStatement(sql, stmt);
         }
     }
 
@@ -326,9 +369,45 @@ public class SQLiteWrapper extends SQLDatabase {
     }
 
     private void executeSQLStatement(String sql, Object[] values) throws SQLiteException{
-        SQLiteStatement stmt = getConnection().prepare(sql);
-        stmt = SQLiteWrapperUtils.bindArguments(stmt, values);
-        while (stmt.step()) {
+        SQLiteStatement stmt = null;
+        try {
+            stmt = this.prepareStatement(sql);
+            stmt = SQLiteWrapperUtils.bindArguments(stmt, values);
+            while (stmt.step()) {
+            }
+        } finally {
+            this.releaseStatement(sql, stmt);
+        }
+    }
+
+    /**
+     * Returns a compiled statement for {@code sql}, from the statement cache
+     * if possible. The statement must be passed to
+     * {@link #releaseStatement(String, SQLiteStatement)} once used.
+     */
+    private SQLiteStatement prepareStatement(String sql) throws SQLiteException {
+        SQLiteStatement stmt = statementCache.checkout(sql);
+        if (stmt == null || stmt.isDisposed()) {
+            // bypass sqlite4java's own cache, statements are cached by us
+            stmt = getConnection().prepare(sql, false);
+        }
+        return stmt;
+    }
+
+    /**
+     * Resets a statement, clearing its bindings, and returns it to the
+     * statement cache. Statements which can't be reset are disposed.
+     */
+    private void releaseStatement(String sql, SQLiteStatement stmt) {
+        if (stmt == null || stmt.isDisposed()) {
+            return;
+        }
+        try {
+            // resetting also ends the statement's implicit read transaction
+            stmt.reset(true);
+            statementCache.checkin(sql, stmt);
+        } catch (SQLiteException e) {
+            SQLiteWrapperUtils.disposeQuietly(stmt);
         }
     }
 }
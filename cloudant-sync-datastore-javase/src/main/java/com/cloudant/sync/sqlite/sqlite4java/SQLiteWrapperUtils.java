@@ -137,27 +137,41 @@ public class SQLiteWrapperUtils {
             throws SQLiteException {
         SQLiteStatement stmt = null;
         try {
-            stmt = bindArguments(conn.prepare(sql), bindArgs);
-            List<String> columnNames = null;
-            List<Tuple> resultSet = new ArrayList<Tuple>();
-            while (!stmt.hasStepped() || stmt.hasRow()) {
-                if (!stmt.step()) {
-                    break;
-                }
-                if (columnNames == null) {
-                    columnNames = getColumnNames(stmt);
-                }
-
-                Tuple t = getDataRow(stmt);
-                logger.finest("Tuple: "+ t.toString());
-                resultSet.add(t);
-            }
-            return new SQLiteCursor(columnNames, resultSet);
+            stmt = conn.prepare(sql);
+            return buildSQLiteCursor(stmt, bindArgs);
         } finally {
             SQLiteWrapperUtils.disposeQuietly(stmt);
         }
     }
 
+    /**
+     * Binds the arguments to a prepared statement and reads all its result rows
+     * into a cursor. The statement is not disposed, so it can be reset and reused.
+     */
+    static SQLiteCursor buildSQLiteCursor(SQLiteStatement stmt, Object[] bindArgs)
+            throws SQLiteException {
+        stmt = bindArguments(stmt, bindArgs);
+        List<String> columnNames = null;
+        List<Tuple> resultSet = new ArrayList<Tuple>();
+        while (!stmt.hasStepped() || stmt.hasRow()) {
+            if (!stmt.step()) {
+                break;
+            }
+            if (columnNames == null) {
+                columnNames = getColumnNames(stmt);
+            }
+
+            Tuple t = getDataRow(stmt);
+            logger.finest("Tuple: "+ t.toString());
+            resultSet.add(t);
+        }
+        if (columnNames == null) {
+            // no rows, but callers may still look up the columns
+            columnNames = getColumnNames(stmt);
+        }
+        return new SQLiteCursor(columnNames, resultSet);
+    }
+
     static Tuple getDataRow(SQLiteStatement stmt) throws SQLiteException {
         logger.entering("com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapperUtils","getDataRow",stmt);
         Tuple result = new Tuple(getColumnTypes(stmt));
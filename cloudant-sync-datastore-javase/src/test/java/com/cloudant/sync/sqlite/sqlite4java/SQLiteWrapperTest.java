@@ -561,6 +561,50 @@ public class SQLiteWrapperTest {
         }
     }
 
+    @Test
+    public void statementCache_repeatedStatement_compiledOnce() throws Exception {
+        prepareDatabaseForTesting();
+        // prepareDatabaseForTesting compiles the insert once and reuses it
+        long misses = database.getStatementCache().getMisses();
+        long hits = database.getStatementCache().getHits();
+
+        for (int i = 0; i < 3; i++) {
+            Cursor cursor = database.rawQuery("SELECT doc_id FROM docs WHERE doc_name = ?",
+                    new String[]{"haha"});
+            try {
+                Assert.assertEquals(2, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+        Cursor cursor = database.rawQuery("SELECT doc_id FROM docs WHERE doc_name = ?",
+                new String[]{"hihi"});
+        try {
+            Assert.assertEquals(1, cursor.getCount());
+            Assert.assertTrue(cursor.moveToFirst());
+            Assert.assertEquals(3, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+
+        Assert.assertEquals(misses + 1, database.getStatementCache().getMisses());
+        Assert.assertEquals(hits + 3, database.getStatementCache().getHits());
+    }
+
+    @Test
+    public void statementCache_failedStatement_canBeReused() throws Exception {
+        prepareDatabaseForTesting();
+        try {
+            database.execSQL(insert_into_docs, new Object[]{1, "duplicate", "", "1.0", null});
+            Assert.fail("Inserting a duplicate primary key should fail");
+        } catch (SQLException e) {
+            // expected
+        }
+        database.execSQL(insert_into_docs, new Object[]{5, "hoho", "", "1.0", null});
+        int n = SQLiteWrapperUtils.intForQuery(conn, "SELECT count(*) FROM docs", new Object[]{});
+        Assert.assertEquals(5, n);
+    }
+
     @Test(expected = SQLException.class)
     public void close_queryAfterClose() throws SQLException {
         this.database.close();